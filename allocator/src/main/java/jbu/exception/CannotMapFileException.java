@@ -0,0 +1,11 @@
+package jbu.exception;
+
+public class CannotMapFileException extends RuntimeException {
+    public CannotMapFileException(String message) {
+        super(message);
+    }
+
+    public CannotMapFileException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
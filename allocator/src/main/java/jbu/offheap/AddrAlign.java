@@ -1,7 +1,14 @@
 package jbu.offheap;
 
+/**
+ * Logical address of a chunk: run length - 1 (15 bits), bin id (16 bits), chunk id (32 bits).
+ * A run is a set of physically adjacent chunks used as one big chunk. Address of a single chunk has no run bits
+ */
 final class AddrAlign {
 
+    static final int MAX_BIN_ID = 0xffff;
+    static final int MAX_RUN_LENGTH = 1 << 15;
+
     private AddrAlign() {
     }
 
@@ -9,12 +16,34 @@ final class AddrAlign {
         return ((long) binId << 32L) | ((long) chunkId & 0xffffffffL);
     }
 
+    static long constructAddr(int binId, int chunkId, int runLength) {
+        return ((long) (runLength - 1) << 48L) | constructAddr(binId, chunkId);
+    }
+
     static int getChunkId(long chunkAdr) {
         // masking is implicit
         return (int) (chunkAdr & 0xffffffffL);
     }
 
     static int getBinId(long chunkAdr) {
-        return (int) (chunkAdr >> 32L);
+        return (int) (chunkAdr >> 32L) & MAX_BIN_ID;
+    }
+
+    static int getRunLength(long chunkAdr) {
+        return (int) (chunkAdr >>> 48L) + 1;
+    }
+
+    // Chunk id of a segmented bin: segment id in high bits, index in segment in low {@code segmentShift} bits
+
+    static int constructChunkId(int segmentId, int indexInSegment, int segmentShift) {
+        return (segmentId << segmentShift) | indexInSegment;
+    }
+
+    static int getSegmentId(int chunkId, int segmentShift) {
+        return chunkId >>> segmentShift;
+    }
+
+    static int getIndexInSegment(int chunkId, int segmentShift) {
+        return chunkId & (int) ((1L << segmentShift) - 1);
     }
 }
@@ -4,16 +4,22 @@ import jbu.exception.InvalidParameterException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static jbu.Primitive.LONG_LENGTH;
+import static jbu.UnsafeUtil.unsafe;
+
 import javax.management.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Frontend of off-heap store
+ * <p/>
+ * Memory is split in size classes, each one backed by a {@link Bins} of chunks of the same size.
+ * Use {@link Builder} for configuring many size classes (geometric scale or custom list)
  */
 public class Allocator implements AllocatorMBean {
 
@@ -24,16 +30,38 @@ public class Allocator implements AllocatorMBean {
 
     private static final int DEFAULT_MIN_CHUNK_SIZE = 256;
     private static final double MIN_FILL_FACTOR = 0.75d;
+    private static final int DEFAULT_MAGAZINE_SIZE = 32;
+    private static final long DEFAULT_SEGMENT_SIZE = 16L * 1024L * 1024L;
+    private static final long DEFAULT_SEGMENT_IDLE_MILLIS = 60L * 1000L;
+    private static final CommitStrategy DEFAULT_COMMIT_STRATEGY = CommitStrategy.LAZY;
+
+    // Bins sorted by chunk size. Index is the bin id, so it is also the table of bins by address.
+    // Never modified after construction
+    private final Bins[] binsBySize;
+    // Fill factor of each size class
+    private final double[] minFillFactors;
+    // Size classes where a value bigger than a chunk try first a run (or a buddy block)
+    private final boolean[] runFirst;
+    private final SizeClassTable sizeClassTable;
+
+    // Striped, updated by each alloc and free without contention between threads
+    private final StripedCounter usedMemory = new StripedCounter();
+    private final StripedCounter nbAllocation = new StripedCounter();
+    private final StripedCounter nbFree = new StripedCounter();
+    // Values stored in one chunk or run vs values stored in a chain
+    private final StripedCounter nbContiguousValues = new StripedCounter();
+    private final StripedCounter nbChainedValues = new StripedCounter();
 
-    //Thread safe until cannot be modified at runtime
-    private final Map<Integer, Bins> binsByAddr = new HashMap<>();
-    //Thread safe until cannot be modified at runtime
-    private final NavigableMap<Integer, Bins> binsBySize = new TreeMap<>();
+    // Null with lazy commit
+    private final PageToucher pageToucher;
 
-    private final AtomicInteger allocatedMemory = new AtomicInteger(0);
-    private final AtomicInteger usedMemory = new AtomicInteger(0);
-    private final AtomicLong nbAllocation = new AtomicLong(0);
-    private final AtomicLong nbFree = new AtomicLong(0);
+    // Latency of operations, null when latency recording is disabled
+    private final LatencyHistogram allocLatency;
+    private final LatencyHistogram freeLatency;
+    private final LatencyHistogram extendLatency;
+    private final LatencyHistogram chunkRefillLatency;
+    // Operations slower than this emit a JFR event, 0 for no event
+    private final long slowOperationNanos;
 
     public Allocator(long maxMemory) {
         this(maxMemory, DEFAULT_MIN_CHUNK_SIZE);
@@ -47,86 +75,301 @@ public class Allocator implements AllocatorMBean {
      * @param firstChunkSize
      */
     public Allocator(long maxMemory, int firstChunkSize) {
-        if (!checkFirstChunkSizeValid(firstChunkSize)) {
-            throw new InvalidParameterException("FirstChunkSize must be a power of two and at least 8");
-        }
-        constructWithLinearScale(maxMemory, 1, firstChunkSize);
+        this(maxMemory, firstChunkSize, false);
     }
 
-    private void constructWithLinearScale(long initialMemory, int maxBins, int firstChunkSize) {
-        LOGGER.info("allocate_native_memory, total_user_size:{} Mb, {} buffers, initial_chunk_size: {}", initialMemory / 1024 / 1024, maxBins, firstChunkSize);
+    /**
+     * Allocate {@code maxMemory} with the smaller chunk size {@code firstChunkSize}
+     * If {@code threadLocalMagazines} each thread keep a small cache of chunks for each bin. Alloc and free of
+     * a chunk don't touch shared state while the cache is not empty (or full)
+     *
+     * @param maxMemory
+     * @param firstChunkSize
+     * @param threadLocalMagazines
+     */
+    public Allocator(long maxMemory, int firstChunkSize, boolean threadLocalMagazines) {
+        this(maxMemory, firstChunkSize, threadLocalMagazines, false);
+    }
 
-        // Construct scale
-        long binsSize = initialMemory / maxBins;
-        int currentChunkSize = firstChunkSize;
+    /**
+     * Allocate {@code maxMemory} with the smaller chunk size {@code firstChunkSize}
+     * If {@code freeList} free chunks are kept in a lock free stack linked by the next chunk slot of each chunk
+     * instead of a bitmap. Alloc and free are O(1) whatever the occupation
+     *
+     * @param maxMemory
+     * @param firstChunkSize
+     * @param threadLocalMagazines
+     * @param freeList
+     */
+    public Allocator(long maxMemory, int firstChunkSize, boolean threadLocalMagazines, boolean freeList) {
+        this(singleClassBuilder(maxMemory, firstChunkSize)
+                .threadLocalMagazines(threadLocalMagazines)
+                .freeList(freeList));
+    }
 
-        for (int i = 0; i < maxBins; i++) {
-            //int numberOfChunk = (int) Math.ceil((double) binsSize / (double) currentChunkSize);
-            int noc = (int) (binsSize / currentChunkSize);
-            if (binsSize % currentChunkSize > 0) {
-                noc++;
+    private Allocator(Builder builder) {
+        if (builder.chunkSizes.isEmpty()) {
+            throw new InvalidParameterException("At least one size class must be defined");
+        }
+        if (builder.chunkSizes.size() > AddrAlign.MAX_BIN_ID + 1) {
+            throw new InvalidParameterException("Too many size classes, max is " + (AddrAlign.MAX_BIN_ID + 1));
+        }
+        // Sort size classes by chunk size
+        int nbClasses = builder.chunkSizes.size();
+        Integer[] order = new Integer[nbClasses];
+        for (int i = 0; i < nbClasses; i++) {
+            order[i] = i;
+        }
+        final List<Integer> chunkSizes = builder.chunkSizes;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Integer.compare(chunkSizes.get(o1), chunkSizes.get(o2));
+            }
+        });
+
+        LOGGER.info("allocate_native_memory, {} size classes", nbClasses);
+        this.binsBySize = new Bins[nbClasses];
+        this.minFillFactors = new double[nbClasses];
+        this.runFirst = new boolean[nbClasses];
+        int[] userSizes = new int[nbClasses];
+        for (int i = 0; i < nbClasses; i++) {
+            int chunkSize = chunkSizes.get(order[i]);
+            long memory = builder.memories.get(order[i]);
+            if (i > 0 && chunkSize == binsBySize[i - 1].realChunkSize) {
+                throw new InvalidParameterException("Size class " + chunkSize + " is defined twice");
+            }
+            Long maxMemory = builder.maxMemories.get(order[i]);
+            Bins bbb;
+            File file = builder.files.get(order[i]);
+            if (file != null) {
+                bbb = new MappedBins(file, chunkCount(memory, chunkSize), chunkSize, i);
+            } else if (builder.buddyClasses.get(order[i])) {
+                bbb = new BuddyBins(chunkCount(memory, chunkSize), chunkSize, i);
+            } else if (maxMemory != null) {
+                if (builder.freeList) {
+                    throw new InvalidParameterException("Elastic size classes cannot use free list");
+                }
+                bbb = elasticBins(chunkSize, memory, maxMemory, i, builder);
+            } else {
+                int noc = chunkCount(memory, chunkSize);
+                bbb = builder.freeList ? new FreeListBins(noc, chunkSize, i) : new UnsafeBins(noc, chunkSize, i);
+            }
+            if (builder.threadLocalMagazines) {
+                bbb.enableMagazines(builder.magazineSize);
             }
-            Bins bbb = new UnsafeBins(noc, currentChunkSize, i);
-            binsBySize.put(currentChunkSize, bbb);
-            binsByAddr.put(i, bbb);
-            currentChunkSize = currentChunkSize * 2;
+            Double fillFactor = builder.fillFactors.get(order[i]);
+            minFillFactors[i] = fillFactor == null ? builder.minFillFactor : fillFactor;
+            runFirst[i] = builder.contiguous || bbb instanceof BuddyBins;
+            binsBySize[i] = bbb;
+            userSizes[i] = bbb.userDataChunkSize;
+        }
+        this.sizeClassTable = new SizeClassTable(userSizes);
+
+        if (builder.commitStrategy == CommitStrategy.PRE_TOUCH) {
+            this.pageToucher = new PageToucher(nativeRegions(false), nativeRegions(true));
+            this.pageToucher.touch(builder.preTouchParallelism);
+        } else {
+            this.pageToucher = null;
+        }
+
+        if (builder.latencyHistograms) {
+            this.allocLatency = new LatencyHistogram("alloc");
+            this.freeLatency = new LatencyHistogram("free");
+            this.extendLatency = new LatencyHistogram("extend");
+            this.chunkRefillLatency = new LatencyHistogram("chunkRefill");
+        } else {
+            this.allocLatency = null;
+            this.freeLatency = null;
+            this.extendLatency = null;
+            this.chunkRefillLatency = null;
+        }
+        this.slowOperationNanos = builder.slowOperationNanos;
+        if (slowOperationNanos > 0 && !SlowOperationEvents.isAvailable()) {
+            LOGGER.warn("Slow operation threshold is set but JFR events are not available on this JVM");
         }
     }
 
+    /**
+     * @param fileBacked regions of mapped files or of anonymous memory
+     */
+    private long[] nativeRegions(boolean fileBacked) {
+        List<long[]> byBin = new ArrayList<>();
+        int length = 0;
+        for (Bins bbb : binsBySize) {
+            if (bbb.isFileBacked() != fileBacked) {
+                continue;
+            }
+            long[] regions = bbb.nativeRegions();
+            byBin.add(regions);
+            length += regions.length;
+        }
+        long[] res = new long[length];
+        int offset = 0;
+        for (long[] regions : byBin) {
+            System.arraycopy(regions, 0, res, offset, regions.length);
+            offset += regions.length;
+        }
+        return res;
+    }
+
+    private static int chunkCount(long memory, int chunkSize) {
+        long noc = memory / chunkSize;
+        if (memory % chunkSize > 0) {
+            noc++;
+        }
+        if (noc > Integer.MAX_VALUE) {
+            throw new InvalidParameterException("Too many chunks for size class " + chunkSize);
+        }
+        return (int) noc;
+    }
+
+    private static Bins elasticBins(int chunkSize, long initialMemory, long maxMemory, int binId, Builder builder) {
+        // Segment of a power of two number of chunks, as near as possible of segment size
+        long chunksBySegment = Math.max(1L, Math.min(builder.segmentSize / chunkSize, 1L << 30));
+        int segmentChunks = Integer.highestOneBit((int) chunksBySegment);
+        long segmentMemory = (long) segmentChunks * chunkSize;
+        long initialSegments = Math.max(1L, (initialMemory + segmentMemory - 1) / segmentMemory);
+        long maxSegments = Math.max(initialSegments, (maxMemory + segmentMemory - 1) / segmentMemory);
+        if (maxSegments * segmentChunks > Integer.MAX_VALUE) {
+            throw new InvalidParameterException("Too many chunks for size class " + chunkSize);
+        }
+        return new UnsafeBins(segmentChunks, (int) initialSegments, (int) maxSegments, chunkSize, binId,
+                builder.segmentIdleMillis);
+    }
+
+    private static Builder singleClassBuilder(long maxMemory, int firstChunkSize) {
+        if (!checkFirstChunkSizeValid(firstChunkSize)) {
+            throw new InvalidParameterException("FirstChunkSize must be a power of two and at least 8");
+        }
+        return new Builder().sizeClass(firstChunkSize, maxMemory);
+    }
 
     /**
      * Alloc with the littest chunk size
      * @return
      */
     public long alloc() {
-        return alloc(binsBySize.firstKey());
+        return alloc(binsBySize[0].userDataChunkSize);
     }
 
-    // Allocate with less waste but much more chunks
+    /**
+     * Allocate a chain of chunks for storing {@code memorySize} bytes.
+     * For each chunk of the chain take the smallest size class able to store remaining bytes if it will be filled
+     * at least at its min fill factor, else take the greatest size class smaller than remaining bytes.
+     * In contiguous mode (or for a buddy size class) a run of adjacent chunks of this class is tried first,
+     * so the value is one flat memory region. The chain is only the fallback when no run is free.
+     *
+     * @param memorySize
+     * @return address of first chunk or -1 if memory cannot be allocated
+     */
     public long alloc(int memorySize) {
-        int usedMemoryByAllocate = 0;
+        if (allocLatency == null) {
+            return allocChain(memorySize, true);
+        }
+        long start = System.nanoTime();
+        long firstChunk = allocChain(memorySize, true);
+        recordLatency(allocLatency, start, memorySize);
+        return firstChunk;
+    }
+
+    /**
+     * Record time since {@code start} and emit a JFR event if operation is slow
+     *
+     * @param histogram
+     * @param start     {@link System#nanoTime()} at beginning of operation
+     * @param size      bytes asked by operation
+     */
+    private void recordLatency(LatencyHistogram histogram, long start, long size) {
+        long nanos = System.nanoTime() - start;
+        histogram.record(nanos);
+        if (slowOperationNanos > 0 && nanos >= slowOperationNanos) {
+            SlowOperationEvents.commit(histogram.getOperation(), nanos, size);
+        }
+    }
+
+    /**
+     * Time when a {@link StoreContext} take a new chunk at end of its chain
+     *
+     * @return start time for {@link #recordChunkRefill(long)}, 0 when latency is not recorded
+     */
+    long beginChunkRefill() {
+        return chunkRefillLatency == null ? 0 : System.nanoTime();
+    }
+
+    void recordChunkRefill(long start) {
+        if (chunkRefillLatency != null) {
+            recordLatency(chunkRefillLatency, start, 0);
+        }
+    }
+
+    /**
+     * @param memorySize
+     * @param newValue   false when chain extend an existing value, not counted as a value
+     * @return address of first chunk or -1
+     */
+    private long allocChain(int memorySize, boolean newValue) {
+        long usedMemoryByAllocate = 0;
         int memoryToAllocate = memorySize;
         long previousChunkAddr = -1;
         long firstChunk = -1;
         int nbAllocateChunk = 0;
-        // Search for the bin with just size lesser
-        while (memoryToAllocate > 0) {
-            Map.Entry<Integer, Bins> usedBin;
-            // Search upper and lesser
-            Map.Entry<Integer, Bins> lesserBin = binsBySize.floorEntry(memoryToAllocate);
-            Map.Entry<Integer, Bins> upperBin = binsBySize.ceilingEntry(memoryToAllocate);
+        int nbClasses = binsBySize.length;
+        do {
+            int upper = sizeClassTable.ceilIndex(memoryToAllocate);
+            int usedClass;
             // Fill factor determine when stop cutting in two memory to allocate
-            if (lesserBin == null || (((double) memorySize / (double) lesserBin.getKey().intValue()) > MIN_FILL_FACTOR && upperBin != null)) {
-                // take upper
-                usedBin = upperBin;
+            if (upper == nbClasses) {
+                // Too big for one chunk. Take the greatest
+                usedClass = nbClasses - 1;
+            } else if (upper == 0 || (double) memoryToAllocate / (double) binsBySize[upper].userDataChunkSize >= minFillFactors[upper]) {
+                usedClass = upper;
             } else {
-                usedBin = lesserBin;
+                usedClass = sizeClassTable.floorIndex(memoryToAllocate);
+            }
+            Bins usedBin = binsBySize[usedClass];
+            long chunkAddr = -1;
+            if (runFirst[usedClass] && nbAllocateChunk == 0 && memoryToAllocate > usedBin.userDataChunkSize) {
+                // Exact number of adjacent chunks for all data
+                chunkAddr = usedBin.allocateRun(runLength(usedBin, memoryToAllocate));
+            }
+            if (chunkAddr < 0) {
+                // Allocate one chunk
+                chunkAddr = usedBin.allocateOneChunk();
             }
-            // Allocate one chunk
-            long chunkAddr = usedBin.getValue().allocateOneChunk();
 
-            // If no chunk available
-            // Try to take a inferior chunk if not available superior chunk and two inf chunk two sup chunk etc...
+            // If no chunk available try to take a inferior chunk then a superior chunk
             if (chunkAddr < 0) {
-                Map.Entry<Integer, Bins> currentBin = usedBin;
-                // take inf
-                currentBin = binsBySize.lowerEntry(currentBin.getKey());
-                if (currentBin != null) {
-                    chunkAddr = currentBin.getValue().allocateOneChunk();
+                BinStats stats = usedBin.stats;
+                stats.failedAllocs.increment();
+                if (usedClass > 0) {
+                    usedBin = binsBySize[usedClass - 1];
+                    chunkAddr = usedBin.allocateOneChunk();
+                    if (chunkAddr >= 0) {
+                        stats.fallbacksToLower.increment();
+                    }
+                }
+                if (chunkAddr < 0 && usedClass < nbClasses - 1) {
+                    usedBin = binsBySize[usedClass + 1];
+                    chunkAddr = usedBin.allocateOneChunk();
+                    if (chunkAddr >= 0) {
+                        stats.fallbacksToHigher.increment();
+                    }
                 }
             }
 
-            // Here try superior chunk
             if (chunkAddr < 0) {
-                Map.Entry<Integer, Bins> currentBin = usedBin;
-                // take inf
-                currentBin = binsBySize.higherEntry(currentBin.getKey());
-                if (currentBin != null) {
-                    chunkAddr = currentBin.getValue().allocateOneChunk();
+                // No more memory. Free already allocated chunks
+                if (firstChunk != -1) {
+                    setNextChunk(previousChunkAddr, -1);
+                    release(firstChunk, false);
+                }
+                if (LOGGER_IS_DEBUG_ENABLED) {
+                    LOGGER.debug("no_more_memory, memory_size: {} Bytes", memorySize);
                 }
+                return -1;
             }
 
-
             // update next chunk of previous element
             if (previousChunkAddr != -1) {
                 setNextChunk(previousChunkAddr, chunkAddr);
@@ -135,40 +378,124 @@ public class Allocator implements AllocatorMBean {
                 firstChunk = chunkAddr;
             }
             previousChunkAddr = chunkAddr;
+            usedBin.stats.allocs.increment();
             // update memory to allocate
-            memoryToAllocate -= usedBin.getValue().userDataChunkSize;
+            memoryToAllocate -= usedBin.userDataSize(chunkAddr);
             // update used memory
-            usedMemoryByAllocate += usedBin.getValue().realChunkSize;
+            usedMemoryByAllocate += (long) AddrAlign.getRunLength(chunkAddr) * usedBin.realChunkSize;
 
             nbAllocateChunk++;
-        }
+        } while (memoryToAllocate > 0);
         // Set no next chunk to last chunk
         setNextChunk(previousChunkAddr, -1);
-        this.usedMemory.getAndAdd(usedMemoryByAllocate);
-        this.nbAllocation.getAndAdd(nbAllocateChunk);
+        this.usedMemory.add(usedMemoryByAllocate);
+        this.nbAllocation.add(nbAllocateChunk);
+        if (newValue) {
+            if (nbAllocateChunk == 1) {
+                nbContiguousValues.increment();
+            } else {
+                nbChainedValues.increment();
+            }
+            getBinFromAddr(firstChunk).stats.recordChainLength(nbAllocateChunk);
+        }
         if (LOGGER_IS_DEBUG_ENABLED) {
             LOGGER.debug("take_memory, memory_size: {} Bytes, first_chunk_id: {}, used_memory: {}, nb_chunk_allocated {}",
-                    memorySize, firstChunk, this.usedMemory.get(), this.nbAllocation.get());
+                    memorySize, firstChunk, this.usedMemory.sum(), this.nbAllocation.sum());
         }
         return firstChunk;
     }
 
+    /**
+     * Allocate one flat chunk or run able to store {@code memorySize} bytes, never a chain
+     *
+     * @param memorySize
+     * @return address of chunk or run, -1 if no chunk or run is free
+     */
+    long allocFlat(int memorySize) {
+        int usedClass = sizeClassTable.ceilIndex(memorySize);
+        long chunkAddr;
+        Bins usedBin;
+        if (usedClass < binsBySize.length) {
+            usedBin = binsBySize[usedClass];
+            chunkAddr = usedBin.allocateOneChunk();
+        } else {
+            usedBin = binsBySize[binsBySize.length - 1];
+            chunkAddr = usedBin.allocateRun(runLength(usedBin, memorySize));
+        }
+        if (chunkAddr < 0) {
+            usedBin.stats.failedAllocs.increment();
+            return -1;
+        }
+        usedBin.setNextChunkAdr(chunkAddr, -1);
+        usedBin.stats.allocs.increment();
+        this.usedMemory.add((long) AddrAlign.getRunLength(chunkAddr) * usedBin.realChunkSize);
+        this.nbAllocation.increment();
+        return chunkAddr;
+    }
+
+    /**
+     * @return a new arena taking blocks of default size in this allocator
+     */
+    public Arena newArena() {
+        return new Arena(this, Arena.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize size of blocks taken in this allocator
+     * @return a new arena
+     */
+    public Arena newArena(int blockSize) {
+        return new Arena(this, blockSize);
+    }
+
+    /**
+     * @return number of chunks of a run storing {@code memorySize} bytes in {@code bin}, -1 if it is longer than
+     * the longest run of bin
+     */
+    private static int runLength(Bins bin, int memorySize) {
+        long needed = (long) memorySize + Bins.LENGTH_OFFSET + LONG_LENGTH;
+        long n = (needed + bin.realChunkSize - 1) / bin.realChunkSize;
+        return n > bin.maxRunLength ? -1 : (int) n;
+    }
+
     public void free(long firstChunkAdr) {
-        // get all chunk ref
-        // FIXME find bin
-        // Get next adr
+        if (freeLatency == null) {
+            release(firstChunkAdr, true);
+            return;
+        }
+        long start = System.nanoTime();
+        release(firstChunkAdr, true);
+        recordLatency(freeLatency, start, 0);
+    }
+
+    /**
+     * Give back a chain to bins by run of consecutive chunks of same bin
+     *
+     * @param firstChunkAdr
+     * @param account       update used memory and free counters, false for a chain not counted yet
+     */
+    private void release(long firstChunkAdr, boolean account) {
         long currentAdr = firstChunkAdr;
-        long nextAdr;
-        do {
-            Bins bin = getBinFromAddr(currentAdr);
-            nextAdr = bin.getNextChunkId(AddrAlign.getChunkId(currentAdr));
-            // and free current
-            bin.freeChunk(currentAdr);
-            currentAdr = nextAdr;
-            // update counter
-            usedMemory.getAndAdd(-bin.realChunkSize);
-            nbFree.incrementAndGet();
-        } while (nextAdr != -1);
+        while (currentAdr != -1) {
+            Bins runBin = getBinFromAddr(currentAdr);
+            long runFirstAdr = currentAdr;
+            long runLastAdr;
+            int runLength = 0;
+            int nbChunk = 0;
+            do {
+                runLastAdr = currentAdr;
+                nbChunk += AddrAlign.getRunLength(currentAdr);
+                currentAdr = runBin.getNextChunkAdr(currentAdr);
+                runLength++;
+            } while (currentAdr != -1 && AddrAlign.getBinId(currentAdr) == runBin.baseAddr);
+            runBin.freeChain(runFirstAdr, runLastAdr, runLength);
+            runBin.stats.frees.add(runLength);
+            if (account) {
+                usedMemory.add(-(long) nbChunk * runBin.realChunkSize);
+                // Same unit as allocations: an element of chain, a run is one element
+                nbFree.add(runLength);
+            }
+        }
     }
 
     /**
@@ -179,7 +506,12 @@ public class Allocator implements AllocatorMBean {
         if (LOGGER_IS_DEBUG_ENABLED) {
             LOGGER.debug("extends, currentChunk: {}, with {} byte", currentBaseAdr);
         }
-        long chunkToAdd = alloc(getBinFromAddr(currentBaseAdr).realChunkSize);
+        long start = extendLatency == null ? 0 : System.nanoTime();
+        int size = getBinFromAddr(currentBaseAdr).userDataChunkSize;
+        long chunkToAdd = allocChain(size, false);
+        if (extendLatency != null) {
+            recordLatency(extendLatency, start, size);
+        }
         if (chunkToAdd < 0) {
             return false;
         } else {
@@ -188,8 +520,293 @@ public class Allocator implements AllocatorMBean {
         }
     }
 
+    /**
+     * Resize a value in place, its address don't change.
+     * Elements of chain (chunks or runs) after the ones needed for {@code newSize} bytes are given back to their
+     * bins. If chain is too small, just enough chunks for missing bytes are appended.
+     * A run is kept or freed as a whole.
+     *
+     * @param firstChunkAdr
+     * @param newSize       new size of value in bytes, {@link StoreContext#getWrittenBytes()} after a rewrite
+     * @return false if no memory can be allocated for growing, chain is unchanged
+     */
+    public boolean realloc(long firstChunkAdr, int newSize) {
+        long capacity = 0;
+        long currentAdr = firstChunkAdr;
+        while (true) {
+            Bins bin = getBinFromAddr(currentAdr);
+            capacity += bin.userDataSize(currentAdr);
+            long nextAdr = bin.getNextChunkAdr(currentAdr);
+            if (capacity >= newSize) {
+                if (nextAdr != -1) {
+                    // Cut chain then free tail
+                    bin.setNextChunkAdr(currentAdr, -1);
+                    free(nextAdr);
+                }
+                return true;
+            }
+            if (nextAdr == -1) {
+                long tail = allocChain((int) (newSize - capacity), false);
+                if (tail < 0) {
+                    return false;
+                }
+                bin.setNextChunkAdr(currentAdr, tail);
+                return true;
+            }
+            currentAdr = nextAdr;
+        }
+    }
+
+    /**
+     * @param firstChunkAdr
+     * @return number of elements (chunks or runs) of the chain
+     */
+    public int chainLength(long firstChunkAdr) {
+        int length = 0;
+        long currentAdr = firstChunkAdr;
+        while (currentAdr != -1) {
+            length++;
+            currentAdr = getBinFromAddr(currentAdr).getNextChunkAdr(currentAdr);
+        }
+        return length;
+    }
+
+    /**
+     * Copy a chained value in a shorter chain, a flat chunk or run if possible.
+     * The old chain is not freed, caller swap addresses and free it when no reader use it.
+     *
+     * @param firstChunkAdr
+     * @return address of copy or -1 if value is not chained or no shorter chain can be allocated
+     */
+    public long relocate(long firstChunkAdr) {
+        int oldLength = chainLength(firstChunkAdr);
+        long totalLength = dataLength(firstChunkAdr);
+        if (oldLength <= 1 || totalLength > Integer.MAX_VALUE) {
+            return -1;
+        }
+        long newAdr = allocFlat((int) totalLength);
+        if (newAdr < 0) {
+            newAdr = allocChain((int) totalLength, false);
+            if (newAdr >= 0 && chainLength(newAdr) >= oldLength) {
+                free(newAdr);
+                return -1;
+            }
+        }
+        if (newAdr < 0) {
+            return -1;
+        }
+        copyChain(firstChunkAdr, newAdr);
+        return newAdr;
+    }
+
+    /**
+     * @param firstChunkAdr
+     * @return sum of data length stored in header of each element of chain
+     */
+    public long dataLength(long firstChunkAdr) {
+        long length = 0;
+        long currentAdr = firstChunkAdr;
+        while (currentAdr != -1) {
+            Bins bin = getBinFromAddr(currentAdr);
+            length += chunkDataLength(bin, currentAdr);
+            currentAdr = bin.getNextChunkAdr(currentAdr);
+        }
+        return length;
+    }
+
+    /**
+     * Compare first {@code length} bytes of data of two values, without copy
+     *
+     * @param firstChunkAdr
+     * @param otherFirstChunkAdr
+     * @param length
+     * @return true if both values have at least length bytes and they are equals
+     */
+    public boolean dataEquals(long firstChunkAdr, long otherFirstChunkAdr, long length) {
+        long adr = firstChunkAdr;
+        long data = 0;
+        int remaining = 0;
+        long otherAdr = otherFirstChunkAdr;
+        long otherData = 0;
+        int otherRemaining = 0;
+        while (length > 0) {
+            if (remaining == 0) {
+                if (adr == -1) {
+                    return false;
+                }
+                Bins bin = getBinFromAddr(adr);
+                data = bin.chunkAddr(AddrAlign.getChunkId(adr)) + Bins.LENGTH_OFFSET;
+                remaining = chunkDataLength(bin, adr);
+                adr = bin.getNextChunkAdr(adr);
+                continue;
+            }
+            if (otherRemaining == 0) {
+                if (otherAdr == -1) {
+                    return false;
+                }
+                Bins bin = getBinFromAddr(otherAdr);
+                otherData = bin.chunkAddr(AddrAlign.getChunkId(otherAdr)) + Bins.LENGTH_OFFSET;
+                otherRemaining = chunkDataLength(bin, otherAdr);
+                otherAdr = bin.getNextChunkAdr(otherAdr);
+                continue;
+            }
+            int n = (int) Math.min(length, Math.min(remaining, otherRemaining));
+            int i = 0;
+            for (; i + 8 <= n; i += 8) {
+                if (unsafe.getLong(data + i) != unsafe.getLong(otherData + i)) {
+                    return false;
+                }
+            }
+            for (; i < n; i++) {
+                if (unsafe.getByte(data + i) != unsafe.getByte(otherData + i)) {
+                    return false;
+                }
+            }
+            data += n;
+            remaining -= n;
+            otherData += n;
+            otherRemaining -= n;
+            length -= n;
+        }
+        return true;
+    }
+
+    /**
+     * Compare first {@code length} bytes of data of a value with data of a native region
+     * (see {@link #getRegionStoreContext(long, int)}), without copy
+     *
+     * @param firstChunkAdr
+     * @param regionAdr
+     * @param length
+     * @return true if value has at least length bytes and they are equals
+     */
+    public boolean dataEqualsRegion(long firstChunkAdr, long regionAdr, long length) {
+        long adr = firstChunkAdr;
+        long otherData = regionAdr + Bins.LENGTH_OFFSET;
+        while (length > 0) {
+            if (adr == -1) {
+                return false;
+            }
+            Bins bin = getBinFromAddr(adr);
+            long data = bin.chunkAddr(AddrAlign.getChunkId(adr)) + Bins.LENGTH_OFFSET;
+            int n = (int) Math.min(length, chunkDataLength(bin, adr));
+            int i = 0;
+            for (; i + 8 <= n; i += 8) {
+                if (unsafe.getLong(data + i) != unsafe.getLong(otherData + i)) {
+                    return false;
+                }
+            }
+            for (; i < n; i++) {
+                if (unsafe.getByte(data + i) != unsafe.getByte(otherData + i)) {
+                    return false;
+                }
+            }
+            otherData += n;
+            length -= n;
+            adr = bin.getNextChunkAdr(adr);
+        }
+        return true;
+    }
+
+    /**
+     * @return size of a native region holding {@code dataLength} bytes: length header then data
+     */
+    public static long regionSize(int dataLength) {
+        return Bins.LENGTH_OFFSET + (long) dataLength;
+    }
+
+    /**
+     * Store context over a native region of {@link #regionSize(int)} bytes not taken in an allocator, like a value
+     * of {@link Arena}. Context cannot write more than {@code dataLength} bytes
+     *
+     * @param regionAdr  native address of region, owned by caller
+     * @param dataLength
+     * @return
+     */
+    public static StoreContext getRegionStoreContext(long regionAdr, int dataLength) {
+        return new StoreContext(regionAdr, dataLength);
+    }
+
+    /**
+     * Length stored in chunk header, at most the user data size (header of a never written chunk is garbage)
+     */
+    private static int chunkDataLength(Bins bin, long chunkAdr) {
+        int length = unsafe.getInt(bin.chunkAddr(AddrAlign.getChunkId(chunkAdr)));
+        return Math.max(0, Math.min(length, bin.userDataSize(chunkAdr)));
+    }
+
+    /**
+     * Copy data of each element of source chain one after the other in destination chain.
+     * Each destination element is filled before going to next one, its header is the copied length
+     */
+    private void copyChain(long srcAdr, long dstAdr) {
+        Bins dstBin = getBinFromAddr(dstAdr);
+        long dstBase = dstBin.chunkAddr(AddrAlign.getChunkId(dstAdr));
+        // Padding of aligned values is not in header lengths, copy is a plain value
+        unsafe.putInt(dstBase + Bins.FLAGS_OFFSET, 0);
+        int dstRemaining = dstBin.userDataSize(dstAdr);
+        int dstWritten = 0;
+        while (srcAdr != -1) {
+            Bins srcBin = getBinFromAddr(srcAdr);
+            long srcData = srcBin.chunkAddr(AddrAlign.getChunkId(srcAdr)) + Bins.LENGTH_OFFSET;
+            int srcRemaining = chunkDataLength(srcBin, srcAdr);
+            while (srcRemaining > 0) {
+                if (dstRemaining == 0) {
+                    unsafe.putInt(dstBase, dstWritten);
+                    dstAdr = dstBin.getNextChunkAdr(dstAdr);
+                    dstBin = getBinFromAddr(dstAdr);
+                    dstBase = dstBin.chunkAddr(AddrAlign.getChunkId(dstAdr));
+                    dstRemaining = dstBin.userDataSize(dstAdr);
+                    dstWritten = 0;
+                }
+                int n = Math.min(srcRemaining, dstRemaining);
+                unsafe.copyMemory(srcData, dstBase + Bins.LENGTH_OFFSET + dstWritten, n);
+                srcData += n;
+                srcRemaining -= n;
+                dstRemaining -= n;
+                dstWritten += n;
+            }
+            srcAdr = srcBin.getNextChunkAdr(srcAdr);
+        }
+        unsafe.putInt(dstBase, dstWritten);
+    }
+
+    /**
+     * Read only view over value without copy, valid until released
+     *
+     * @param firstChunkAdr
+     * @return
+     */
+    public OffheapView getView(long firstChunkAdr) {
+        return new OffheapView(this, firstChunkAdr, null);
+    }
+
+    /**
+     * Read only view over a value which can be retired by other threads in {@code reclaimer}.
+     * Value is not freed before view is released
+     *
+     * @param firstChunkAdr
+     * @param reclaimer
+     * @return
+     */
+    public OffheapView getView(long firstChunkAdr, EpochReclaimer reclaimer) {
+        return new OffheapView(this, firstChunkAdr, reclaimer);
+    }
+
     public StoreContext getStoreContext(long firstChunkAdr) {
-        return new StoreContext(this, firstChunkAdr);
+        return new StoreContext(this, firstChunkAdr, false);
+    }
+
+    /**
+     * Store context with aligned layout: a primitive which don't fit at end of a chunk is written at beginning
+     * of next chunk, it is never split. Value is flagged, {@link LoadContext} skip the padding
+     *
+     * @param firstChunkAdr
+     * @param aligned
+     * @return
+     */
+    public StoreContext getStoreContext(long firstChunkAdr, boolean aligned) {
+        return new StoreContext(this, firstChunkAdr, aligned);
     }
 
     public LoadContext getLoadContext(long firstChunkAdr) {
@@ -198,12 +815,37 @@ public class Allocator implements AllocatorMBean {
 
     private void setNextChunk(long currentChunkAdr, long nextChunkAddr) {
         // FIXME find bin
-        getBinFromAddr(currentChunkAdr).setNextChunkId(AddrAlign.getChunkId(currentChunkAdr), nextChunkAddr);
+        getBinFromAddr(currentChunkAdr).setNextChunkAdr(currentChunkAdr, nextChunkAddr);
     }
 
 
+    /**
+     * Bin of a chunk, a plain array read (called for each element of a chain)
+     *
+     * @param chunkAddr
+     * @return
+     */
     Bins getBinFromAddr(long chunkAddr) {
-        return binsByAddr.get(AddrAlign.getBinId(chunkAddr));
+        return binsBySize[AddrAlign.getBinId(chunkAddr)];
+    }
+
+    /**
+     * Write dirty pages of mapped size classes to their files. Nothing to do for other size classes
+     */
+    public void force() {
+        for (Bins bbb : binsBySize) {
+            bbb.force();
+        }
+    }
+
+    /**
+     * Give back native memory of all size classes, mapped files are written and unmapped.
+     * Allocator and all its values cannot be used after, even by a view or a context still open
+     */
+    public void close() {
+        for (Bins bbb : binsBySize) {
+            bbb.close();
+        }
     }
 
     // JMX
@@ -211,8 +853,11 @@ public class Allocator implements AllocatorMBean {
     public void registerInMBeanServer(MBeanServer mbs) {
         try {
             mbs.registerMBean(this, new ObjectName("Allocator:name=allocator"));
-            for (Bins bbb : binsBySize.values()) {
-                mbs.registerMBean(bbb, new ObjectName("Allocator.UnsafeBins:maxChunk=" + bbb.userDataChunkSize));
+            for (Bins bbb : binsBySize) {
+                mbs.registerMBean(bbb, new ObjectName(jmxType(bbb) + ":maxChunk=" + bbb.userDataChunkSize));
+            }
+            for (LatencyHistogram histogram : latencyHistograms()) {
+                mbs.registerMBean(histogram, new ObjectName("Allocator.Latency:operation=" + histogram.getOperation()));
             }
         } catch (InstanceAlreadyExistsException | MBeanRegistrationException | NotCompliantMBeanException | MalformedObjectNameException e) {
             LOGGER.warn("Cannot register JMX Beans", e);
@@ -220,36 +865,383 @@ public class Allocator implements AllocatorMBean {
 
     }
 
+    private List<LatencyHistogram> latencyHistograms() {
+        if (allocLatency == null) {
+            return new ArrayList<>();
+        }
+        return Arrays.asList(allocLatency, freeLatency, extendLatency, chunkRefillLatency);
+    }
+
+    /**
+     * @param operation alloc, free, extend or chunkRefill
+     * @return latency histogram of operation or null if latency is not recorded
+     */
+    LatencyHistogram getLatencyHistogram(String operation) {
+        for (LatencyHistogram histogram : latencyHistograms()) {
+            if (histogram.getOperation().equals(operation)) {
+                return histogram;
+            }
+        }
+        return null;
+    }
+
+    private static String jmxType(Bins bbb) {
+        if (bbb instanceof BuddyBins) {
+            return "Allocator.BuddyBins";
+        } else if (bbb instanceof MappedBins) {
+            return "Allocator.MappedBins";
+        }
+        return "Allocator.UnsafeBins";
+    }
+
     public void unRegisterInMBeanServer(MBeanServer mbs) {
         try {
             mbs.unregisterMBean(new ObjectName("Allocator:name=allocator"));
+            for (LatencyHistogram histogram : latencyHistograms()) {
+                mbs.unregisterMBean(new ObjectName("Allocator.Latency:operation=" + histogram.getOperation()));
+            }
         } catch (InstanceNotFoundException | MBeanRegistrationException | MalformedObjectNameException e) {
             LOGGER.warn("Cannot unregister JMX Beans", e);
         }
     }
 
+    /**
+     * @return memory reserved by bins, grow and shrink with elastic size classes
+     */
     @Override
-    public int getAllocatedMemory() {
-        return allocatedMemory.intValue();
+    public long getAllocatedMemory() {
+        long reserved = 0;
+        for (Bins bbb : binsBySize) {
+            reserved += bbb.getReservedMemory();
+        }
+        return reserved;
     }
 
     @Override
-    public int getUsedMemory() {
-        return usedMemory.intValue();
+    public long getUsedMemory() {
+        return usedMemory.sum();
     }
 
     @Override
     public long getNbAllocation() {
-        return nbAllocation.longValue();
+        return nbAllocation.sum();
     }
 
     @Override
     public long getNbFree() {
-        return nbFree.longValue();
+        return nbFree.sum();
+    }
+
+    @Override
+    public long getPreTouchedMemory() {
+        return pageToucher == null ? 0 : pageToucher.getTouchedBytes();
+    }
+
+    @Override
+    public long getPreTouchMillis() {
+        return pageToucher == null ? 0 : pageToucher.getElapsedMillis();
+    }
+
+    @Override
+    public long getNbContiguousValues() {
+        return nbContiguousValues.sum();
+    }
+
+    @Override
+    public long getNbChainedValues() {
+        return nbChainedValues.sum();
     }
 
-    private boolean checkFirstChunkSizeValid(int firstChunkSize) {
+    private static boolean checkFirstChunkSizeValid(int firstChunkSize) {
         return (firstChunkSize > 8 && Integer.bitCount(firstChunkSize) == 1);
     }
 
+    /**
+     * Builder of {@link Allocator}.
+     * Each size class has its own chunk size, memory budget and min fill factor.
+     * The min fill factor of a class is the minimal ratio of its chunk that must be used by remaining data
+     * for taking it, else a smaller class is taken and data are chained.
+     */
+    public static final class Builder {
+
+        // Chunk must at least store its header and next chunk address
+        private static final int MIN_CHUNK_SIZE = Bins.LENGTH_OFFSET + LONG_LENGTH + 8;
+
+        private final List<Integer> chunkSizes = new ArrayList<>();
+        private final List<Long> memories = new ArrayList<>();
+        // Max memory of elastic classes, null for fixed classes
+        private final List<Long> maxMemories = new ArrayList<>();
+        private final List<Boolean> buddyClasses = new ArrayList<>();
+        // Backing file of mapped classes, null for classes in native memory
+        private final List<File> files = new ArrayList<>();
+        private final List<Double> fillFactors = new ArrayList<>();
+        private double minFillFactor = MIN_FILL_FACTOR;
+        private boolean threadLocalMagazines = false;
+        private int magazineSize = DEFAULT_MAGAZINE_SIZE;
+        private boolean freeList = false;
+        private boolean contiguous = false;
+        private CommitStrategy commitStrategy = DEFAULT_COMMIT_STRATEGY;
+        private int preTouchParallelism = Runtime.getRuntime().availableProcessors();
+        private long segmentSize = DEFAULT_SEGMENT_SIZE;
+        private long segmentIdleMillis = DEFAULT_SEGMENT_IDLE_MILLIS;
+        private boolean latencyHistograms = true;
+        private long slowOperationNanos = 0;
+
+        /**
+         * Add a size class with the default min fill factor
+         *
+         * @param chunkSize chunk size, must be a multiple of 8
+         * @param memory    memory reserved for this class
+         * @return this builder
+         */
+        public Builder sizeClass(int chunkSize, long memory) {
+            return addSizeClass(chunkSize, memory, null);
+        }
+
+        /**
+         * Add a size class backed by a buddy allocator. A value bigger than a block of {@code minBlockSize} take
+         * one block of the next power of two number of min blocks (up to 2^{@value BuddyBins#MAX_ORDER})
+         * instead of a chain. Usually the greatest size class, as too big values go to the greatest class.
+         *
+         * @param minBlockSize size of smallest block, must be a multiple of 8
+         * @param memory       memory reserved for this class, rounded up to a multiple of the biggest block
+         * @return this builder
+         */
+        public Builder buddySizeClass(int minBlockSize, long memory) {
+            addSizeClass(minBlockSize, memory, null);
+            buddyClasses.set(buddyClasses.size() - 1, true);
+            return this;
+        }
+
+        /**
+         * Add a size class stored in a memory mapped file instead of native memory. The OS page cache keep hot
+         * chunks in RAM, so memory can be bigger than RAM. The file is created or truncated to {@code memory}
+         * and mapped by regions of at most 2GB.
+         *
+         * @param chunkSize chunk size, must be a multiple of 8
+         * @param memory    size of the file
+         * @param file      backing file, its content is lost
+         * @return this builder
+         */
+        public Builder mappedSizeClass(int chunkSize, long memory, File file) {
+            addSizeClass(chunkSize, memory, null);
+            files.set(files.size() - 1, file);
+            return this;
+        }
+
+        /**
+         * Add an elastic size class with the default min fill factor. Memory is allocated by segments,
+         * a segment is added when the class is full and removed when it stay empty during segment idle time.
+         *
+         * @param chunkSize     chunk size, must be a multiple of 8
+         * @param initialMemory memory allocated at start, the class never shrink under it
+         * @param maxMemory     hard cap of memory of this class
+         * @return this builder
+         */
+        public Builder elasticSizeClass(int chunkSize, long initialMemory, long maxMemory) {
+            if (maxMemory < initialMemory) {
+                throw new InvalidParameterException("Max memory of a size class must be >= its initial memory");
+            }
+            addSizeClass(chunkSize, initialMemory, null);
+            maxMemories.set(maxMemories.size() - 1, maxMemory);
+            return this;
+        }
+
+        /**
+         * Add a size class
+         *
+         * @param chunkSize     chunk size, must be a multiple of 8
+         * @param memory        memory reserved for this class
+         * @param minFillFactor min fill factor of this class between 0 and 1
+         * @return this builder
+         */
+        public Builder sizeClass(int chunkSize, long memory, double minFillFactor) {
+            checkFillFactor(minFillFactor);
+            return addSizeClass(chunkSize, memory, minFillFactor);
+        }
+
+        /**
+         * Add {@code nbClasses} size classes. Chunk size of each class is the previous one multiplied by
+         * {@code growthFactor} (rounded to 8 bytes). {@code totalMemory} is shared equally between classes.
+         *
+         * @param totalMemory
+         * @param firstChunkSize
+         * @param nbClasses
+         * @param growthFactor
+         * @return this builder
+         */
+        public Builder geometricSizeClasses(long totalMemory, int firstChunkSize, int nbClasses, double growthFactor) {
+            if (nbClasses <= 0) {
+                throw new InvalidParameterException("Number of size classes must be > 0");
+            }
+            if (growthFactor <= 1d) {
+                throw new InvalidParameterException("Growth factor must be > 1");
+            }
+            long memoryByClass = totalMemory / nbClasses;
+            double chunkSize = firstChunkSize;
+            int previous = 0;
+            for (int i = 0; i < nbClasses; i++) {
+                int rounded = (int) Math.ceil(chunkSize / 8d) * 8;
+                if (rounded <= previous) {
+                    rounded = previous + 8;
+                }
+                addSizeClass(rounded, memoryByClass, null);
+                previous = rounded;
+                chunkSize = chunkSize * growthFactor;
+            }
+            return this;
+        }
+
+        /**
+         * Min fill factor of classes added without explicit one
+         *
+         * @param minFillFactor
+         * @return this builder
+         */
+        public Builder minFillFactor(double minFillFactor) {
+            checkFillFactor(minFillFactor);
+            this.minFillFactor = minFillFactor;
+            return this;
+        }
+
+        public Builder threadLocalMagazines(boolean threadLocalMagazines) {
+            this.threadLocalMagazines = threadLocalMagazines;
+            return this;
+        }
+
+        public Builder magazineSize(int magazineSize) {
+            if (magazineSize <= 0) {
+                throw new InvalidParameterException("Magazine size must be > 0");
+            }
+            this.magazineSize = magazineSize;
+            return this;
+        }
+
+        public Builder freeList(boolean freeList) {
+            this.freeList = freeList;
+            return this;
+        }
+
+        /**
+         * Store values bigger than a chunk in a run of adjacent chunks when possible instead of a chain.
+         * Free list bins never give runs, values stay chained
+         *
+         * @param contiguous
+         * @return this builder
+         */
+        public Builder contiguous(boolean contiguous) {
+            this.contiguous = contiguous;
+            return this;
+        }
+
+        /**
+         * Commit strategy of memory of all size classes at build. With {@link CommitStrategy#PRE_TOUCH}
+         * build wait all pages are touched. Segments added later to elastic classes are always lazy
+         *
+         * @param commitStrategy
+         * @return this builder
+         */
+        public Builder commitStrategy(CommitStrategy commitStrategy) {
+            this.commitStrategy = commitStrategy;
+            return this;
+        }
+
+        /**
+         * Number of threads touching pages with {@link CommitStrategy#PRE_TOUCH}. Default is number of processors
+         *
+         * @param parallelism
+         * @return this builder
+         */
+        public Builder preTouchParallelism(int parallelism) {
+            if (parallelism <= 0) {
+                throw new InvalidParameterException("Pre touch parallelism must be > 0");
+            }
+            this.preTouchParallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Memory of one segment of elastic size classes. Rounded down to a power of two number of chunks
+         *
+         * @param segmentSize
+         * @return this builder
+         */
+        public Builder segmentSize(long segmentSize) {
+            if (segmentSize <= 0) {
+                throw new InvalidParameterException("Segment size must be > 0");
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Time a segment of an elastic size class must stay empty before being released. 0 never release
+         *
+         * @param idleTime
+         * @param unit
+         * @return this builder
+         */
+        public Builder segmentIdleTime(long idleTime, TimeUnit unit) {
+            if (idleTime < 0) {
+                throw new InvalidParameterException("Segment idle time must be >= 0");
+            }
+            this.segmentIdleMillis = unit.toMillis(idleTime);
+            return this;
+        }
+
+        /**
+         * Record latency histograms of alloc, free, extend and chunk refill of store contexts, exposed in JMX.
+         * Default is true, cost two {@link System#nanoTime()} and few atomic increments by operation
+         *
+         * @param latencyHistograms
+         * @return this builder
+         */
+        public Builder latencyHistograms(boolean latencyHistograms) {
+            this.latencyHistograms = latencyHistograms;
+            return this;
+        }
+
+        /**
+         * Emit a JFR event jbu.offheap.SlowOperation for each operation slower than {@code threshold}.
+         * Need latency histograms and a JVM with JFR event factory (12+). Default 0 emit no event
+         *
+         * @param threshold
+         * @param unit
+         * @return this builder
+         */
+        public Builder slowOperationThreshold(long threshold, TimeUnit unit) {
+            if (threshold < 0) {
+                throw new InvalidParameterException("Slow operation threshold must be >= 0");
+            }
+            this.slowOperationNanos = unit.toNanos(threshold);
+            return this;
+        }
+
+        public Allocator build() {
+            return new Allocator(this);
+        }
+
+        private Builder addSizeClass(int chunkSize, long memory, Double minFillFactor) {
+            if (chunkSize < MIN_CHUNK_SIZE || chunkSize % 8 != 0) {
+                throw new InvalidParameterException("Chunk size must be a multiple of 8 and at least " + MIN_CHUNK_SIZE);
+            }
+            if (memory < chunkSize) {
+                throw new InvalidParameterException("Memory of a size class must be at least its chunk size");
+            }
+            chunkSizes.add(chunkSize);
+            memories.add(memory);
+            maxMemories.add(null);
+            buddyClasses.add(false);
+            files.add(null);
+            fillFactors.add(minFillFactor);
+            return this;
+        }
+
+        private static void checkFillFactor(double minFillFactor) {
+            if (minFillFactor < 0d || minFillFactor > 1d) {
+                throw new InvalidParameterException("Min fill factor must be between 0 and 1");
+            }
+        }
+    }
+
 }
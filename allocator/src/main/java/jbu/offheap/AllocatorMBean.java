@@ -1,11 +1,25 @@
 package jbu.offheap;
 
 public interface AllocatorMBean {
-    int getAllocatedMemory();
+    long getAllocatedMemory();
 
-    int getUsedMemory();
+    long getUsedMemory();
 
+    /**
+     * @return number of allocated elements of chains, a chunk or a run of chunks is one element
+     */
     long getNbAllocation();
 
+    /**
+     * @return number of freed elements of chains, same unit as {@link #getNbAllocation()}
+     */
     long getNbFree();
+
+    long getPreTouchedMemory();
+
+    long getPreTouchMillis();
+
+    long getNbContiguousValues();
+
+    long getNbChainedValues();
 }
@@ -0,0 +1,114 @@
+package jbu.offheap;
+
+import jbu.exception.InvalidParameterException;
+
+import java.util.Arrays;
+
+import static jbu.UnsafeUtil.unsafe;
+
+/**
+ * Bump pointer allocation of many short lived values, all released at once.
+ * Arena take blocks (a chunk or a run of chunks) in its {@link Allocator} and cut values in them by moving a
+ * pointer, allocation of a value touch no shared state. {@link #release()} give back all blocks.
+ * A value is a native region laid out like a chunk (length header then data), it is used through region
+ * {@link StoreContext} and {@link LoadContext} so serializers work unchanged.
+ * Not thread safe, an arena is used by one thread (request or batch scope).
+ */
+public class Arena {
+
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final int ALIGN = 8;
+
+    private final Allocator allocator;
+    private final int blockSize;
+
+    // Logical address of taken blocks
+    private long[] blocks = new long[16];
+    private int nbBlocks = 0;
+    // Native bump pointer and end of current block
+    private long top = 0;
+    private long limit = 0;
+    private long usedBytes = 0;
+
+    Arena(Allocator allocator, int blockSize) {
+        if (blockSize <= 0) {
+            throw new InvalidParameterException("Block size must be > 0");
+        }
+        this.allocator = allocator;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Allocate a value of {@code size} bytes. Value bigger than block size get its own block
+     *
+     * @param size
+     * @return native address of value or -1 if allocator has no more memory
+     */
+    public long alloc(int size) {
+        if (size < 0) {
+            throw new InvalidParameterException("Size must be >= 0");
+        }
+        long needed = (Bins.LENGTH_OFFSET + (long) size + ALIGN - 1) & ~(ALIGN - 1);
+        if (top + needed > limit && !newBlock(needed)) {
+            return -1;
+        }
+        long valueAdr = top;
+        top += needed;
+        usedBytes += needed;
+        unsafe.putInt(valueAdr, size);
+        return valueAdr;
+    }
+
+    public StoreContext getStoreContext(long valueAdr) {
+        return new StoreContext(valueAdr, unsafe.getInt(valueAdr));
+    }
+
+    public LoadContext getLoadContext(long valueAdr) {
+        return new LoadContext(valueAdr, unsafe.getInt(valueAdr));
+    }
+
+    /**
+     * Give back all blocks to allocator. All values of arena are invalid after, arena can be reused
+     */
+    public void release() {
+        for (int i = 0; i < nbBlocks; i++) {
+            allocator.free(blocks[i]);
+        }
+        nbBlocks = 0;
+        top = 0;
+        limit = 0;
+        usedBytes = 0;
+    }
+
+    public int getNbBlocks() {
+        return nbBlocks;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private boolean newBlock(long needed) {
+        if (needed > Integer.MAX_VALUE) {
+            return false;
+        }
+        long block = allocator.allocFlat((int) Math.max(blockSize, needed));
+        if (block < 0 && needed < blockSize) {
+            // No run of block size, try just enough for this value
+            block = allocator.allocFlat((int) needed);
+        }
+        if (block < 0) {
+            return false;
+        }
+        if (nbBlocks == blocks.length) {
+            blocks = Arrays.copyOf(blocks, nbBlocks * 2);
+        }
+        blocks[nbBlocks++] = block;
+        Bins bin = allocator.getBinFromAddr(block);
+        // Skip length header of block
+        top = bin.chunkAddr(AddrAlign.getChunkId(block)) + Bins.LENGTH_OFFSET;
+        limit = top + bin.userDataSize(block);
+        return true;
+    }
+}
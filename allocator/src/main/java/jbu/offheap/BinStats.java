@@ -0,0 +1,43 @@
+package jbu.offheap;
+
+/**
+ * Allocation statistics of one {@link Bins}, counted by {@link Allocator}.
+ * Allocs and frees count elements of chains (a chunk or a run)
+ */
+final class BinStats {
+
+    // Chain length buckets: 1, 2, 3-4, 5-8, 9-16, 17-32, 33-64, more
+    static final int NB_CHAIN_LENGTH_BUCKETS = 8;
+
+    final StripedCounter allocs = new StripedCounter();
+    final StripedCounter frees = new StripedCounter();
+    final StripedCounter failedAllocs = new StripedCounter();
+    // Allocations served by the previous or the next size class because this one was full
+    final StripedCounter fallbacksToLower = new StripedCounter();
+    final StripedCounter fallbacksToHigher = new StripedCounter();
+    // Chain length of values whose first element is in this bin
+    private final StripedCounter[] chainLengths = new StripedCounter[NB_CHAIN_LENGTH_BUCKETS];
+
+    BinStats() {
+        for (int i = 0; i < NB_CHAIN_LENGTH_BUCKETS; i++) {
+            chainLengths[i] = new StripedCounter();
+        }
+    }
+
+    static int chainLengthBucket(int chainLength) {
+        int bucket = 32 - Integer.numberOfLeadingZeros(chainLength - 1);
+        return Math.min(bucket, NB_CHAIN_LENGTH_BUCKETS - 1);
+    }
+
+    void recordChainLength(int chainLength) {
+        chainLengths[chainLengthBucket(chainLength)].increment();
+    }
+
+    long[] chainLengthHistogram() {
+        long[] res = new long[NB_CHAIN_LENGTH_BUCKETS];
+        for (int i = 0; i < NB_CHAIN_LENGTH_BUCKETS; i++) {
+            res[i] = chainLengths[i].sum();
+        }
+        return res;
+    }
+}
@@ -6,7 +6,6 @@ import static jbu.Primitive.*;
 
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicIntegerArray;
 
 abstract class Bins {
 
@@ -15,29 +14,49 @@ abstract class Bins {
      */
     static final int LENGTH_OFFSET = 8;
 
-    protected static final int FREE = 0;
-    protected static final int USED = 1;
+    // Flags of a value, int after the length in header of first chunk
+    static final int FLAGS_OFFSET = 4;
+    // Primitives are never split across chunks, end of a chunk can be padding (see StoreContext)
+    static final int FLAG_ALIGNED = 1;
 
     // Chunk real size
     final int realChunkSize;
     // Userdata chunk size
     final int userDataChunkSize;
+    // Max chunks of a run, size of a run must fit in an int
+    final int maxRunLength;
     // Base addr of bin
     final int baseAddr;
 
+    // Max number of chunks
     final int size;
 
     final AtomicInteger occupation = new AtomicInteger(0);
 
     /**
-     * Status of memory chunk (allocated, free)
+     * Status of memory chunk (allocated, free). One bit by chunk
      */
-    final AtomicIntegerArray chunks;
+    final ChunkBitmap chunks;
 
-    // Helper for find free chunk
-    final AtomicInteger chunkOffset = new AtomicInteger(0);
+    // Helper for find free chunk. Only a hint, no need to be atomic
+    volatile int chunkOffset = 0;
+
+    // Thread local cache of chunks. Null if not enabled
+    private ChunkMagazines magazines;
+
+    final BinStats stats = new BinStats();
 
     protected Bins(int initialChunkNumber, int realChunkSize, int baseAddr) {
+        this(initialChunkNumber, realChunkSize, baseAddr, true);
+    }
+
+    /**
+     * @param initialChunkNumber
+     * @param realChunkSize
+     * @param baseAddr
+     * @param useBitmap          false if subclass track free chunks by itself
+     */
+    protected Bins(int initialChunkNumber, int realChunkSize, int baseAddr, boolean useBitmap) {
         this.size = initialChunkNumber;
         this.realChunkSize = realChunkSize;
         this.baseAddr = baseAddr;
@@ -55,20 +74,54 @@ abstract class Bins {
         // And addr of next chunk. Adding 8 byte
         // User data is realSize minus this
         this.userDataChunkSize = realChunkSize - LENGTH_OFFSET - LONG_LENGTH;
-        this.chunks = new AtomicIntegerArray(initialChunkNumber);
+        this.maxRunLength = Math.min(AddrAlign.MAX_RUN_LENGTH, Integer.MAX_VALUE / realChunkSize);
+        this.chunks = useBitmap ? new ChunkBitmap(initialChunkNumber) : null;
+    }
+
+    /**
+     * Enable thread local magazines of {@code capacity} chunks in front of this bin.
+     * Must be called before publishing the bin to other threads.
+     * Chunks cached by a thread stay allocated after its death, until magazines of dead threads are harvested (see
+     * {@link ChunkMagazines})
+     *
+     * @param capacity
+     */
+    void enableMagazines(int capacity) {
+        if (capacity <= 0) {
+            throw new InvalidParameterException("Magazine capacity must be > 0");
+        }
+        this.magazines = new ChunkMagazines(this, capacity);
     }
 
     long allocateOneChunk() {
+        if (magazines != null) {
+            return magazines.allocate();
+        }
+        return claimOneChunk();
+    }
+
+    /**
+     * Give back to the bin chunks cached by magazines of dead threads
+     *
+     * @return number of chunk released
+     */
+    int harvestMagazines() {
+        return magazines == null ? 0 : magazines.harvestDeadThreads();
+    }
+
+    /**
+     * Claim one chunk directly in shared state of bin
+     *
+     * @return address of chunk or -1 if no chunk available
+     */
+    long claimOneChunk() {
         // Check if they are some chunk free
         if (occupation.get() < size) {
-            int currentChunkOffset = this.chunkOffset.get();
-            for (int i = 0; i < this.size; i++) {
-                int currentChunkIndex = (i + currentChunkOffset) % this.size;
-                if (chunks.compareAndSet(currentChunkIndex, FREE, USED)) {
-                    this.chunkOffset.set(currentChunkOffset + i + 1);
-                    occupation.incrementAndGet();
-                    return AddrAlign.constructAddr(baseAddr, currentChunkIndex);
-                }
+            int chunkIndex = chunks.claimOne(this.chunkOffset);
+            if (chunkIndex >= 0) {
+                this.chunkOffset = chunkIndex;
+                occupation.incrementAndGet();
+                return AddrAlign.constructAddr(baseAddr, chunkIndex);
             }
         }
         // Cannot allocate one chunk
@@ -80,63 +133,270 @@ abstract class Bins {
         if (n <= 0) {
             return null;
         }
+        if (occupation.get() + n > size) {
+            return null;
+        }
         long[] res = new long[n];
-        int nbChunckAllocated = 0;
         // Search for n free chunk
-        int currentChunkOffet = this.chunkOffset.get();
-        for (int i = 0; i < this.size; i++) {
-            int currentChunkIndex = (i + currentChunkOffet) % this.size;
-            if (chunks.compareAndSet(currentChunkIndex, FREE, USED)) {
-                res[nbChunckAllocated] = AddrAlign.constructAddr(baseAddr, currentChunkIndex);
-            } else {
-                continue;
-            }
-            if (++nbChunckAllocated == n) {
-                this.chunkOffset.set(currentChunkIndex + 1);
-                occupation.getAndAdd(nbChunckAllocated);
-                return res;
-            }
-        }
-        // Not enough chunk. Unallocate
+        int nbChunckAllocated = chunks.claim(n, res, this.chunkOffset);
         for (int i = 0; i < nbChunckAllocated; i++) {
-            chunks.compareAndSet(AddrAlign.getChunkId(res[i]), USED, FREE);
+            res[i] = AddrAlign.constructAddr(baseAddr, (int) res[i]);
+        }
+        if (nbChunckAllocated == n) {
+            this.chunkOffset = AddrAlign.getChunkId(res[n - 1]);
+            occupation.getAndAdd(nbChunckAllocated);
+            return res;
         }
-        occupation.getAndAdd(-nbChunckAllocated);
+        // Not enough chunk. Unallocate
+        chunks.release(res, 0, nbChunckAllocated);
         return null;
     }
 
+    /**
+     * Claim a run of {@code n} physically adjacent chunks. Run is used as one chunk of {@link #userDataSize(long)}
+     * bytes, its next chunk slot is the one of its last chunk
+     *
+     * @param n number of chunks, at most {@link #maxRunLength}
+     * @return address of run or -1 if no run of n free chunks can be found
+     */
+    long allocateRun(int n) {
+        if (chunks == null || n <= 0 || n > maxRunLength || occupation.get() + n > size) {
+            return -1;
+        }
+        int first = chunks.claimRun(n, this.chunkOffset, runAlignShift());
+        if (first < 0) {
+            return -1;
+        }
+        occupation.getAndAdd(n);
+        return AddrAlign.constructAddr(baseAddr, first, n);
+    }
+
+    /**
+     * @return runs never cross a multiple of 2^runAlignShift chunks
+     */
+    int runAlignShift() {
+        return 31;
+    }
+
+    /**
+     * @param chunkAdr
+     * @return number of bytes of user data in chunk or run {@code chunkAdr}
+     */
+    int userDataSize(long chunkAdr) {
+        // Never more than Integer.MAX_VALUE, see maxRunLength
+        return (int) ((long) AddrAlign.getRunLength(chunkAdr) * realChunkSize - LENGTH_OFFSET - LONG_LENGTH);
+    }
+
+    /**
+     * @param chunkAdr chunk or run
+     * @return next chunk address of {@code chunkAdr}
+     */
+    long getNextChunkAdr(long chunkAdr) {
+        return getNextChunkId(AddrAlign.getChunkId(chunkAdr) + AddrAlign.getRunLength(chunkAdr) - 1);
+    }
+
+    void setNextChunkAdr(long chunkAdr, long nextChunkAdr) {
+        setNextChunkId(AddrAlign.getChunkId(chunkAdr) + AddrAlign.getRunLength(chunkAdr) - 1, nextChunkAdr);
+    }
+
     /**
      * Free previously allocatedChunk
      *
      * @param chunks
      */
     void freeChunk(long... chunks) {
-        for (long chunkAdr : chunks) {
-            this.chunks.set(AddrAlign.getChunkId(chunkAdr), FREE);
-            occupation.decrementAndGet();
+        if (magazines != null) {
+            for (long chunkAdr : chunks) {
+                magazines.free(chunkAdr);
+            }
+        } else {
+            releaseChunks(chunks, 0, chunks.length);
+        }
+    }
+
+    /**
+     * Release {@code length} chunks from {@code offset} directly in shared state of bin
+     *
+     * @param chunks
+     * @param offset
+     * @param length
+     */
+    void releaseChunks(long[] chunks, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        this.chunks.release(chunks, offset, length);
+        occupation.getAndAdd(-length);
+        this.chunkOffset = AddrAlign.getChunkId(chunks[offset]);
+    }
+
+    /**
+     * Free a chain of {@code nbChunk} chunks of this bin linked by their next chunk id
+     *
+     * @param firstChunkAdr
+     * @param lastChunkAdr
+     * @param nbChunk
+     */
+    void freeChain(long firstChunkAdr, long lastChunkAdr, int nbChunk) {
+        if (magazines != null) {
+            long currentAdr = firstChunkAdr;
+            for (int i = 0; i < nbChunk; i++) {
+                // read next before the chunk can be reused
+                long nextAdr = getNextChunkAdr(currentAdr);
+                if (AddrAlign.getRunLength(currentAdr) > 1) {
+                    releaseRun(currentAdr);
+                } else {
+                    magazines.free(currentAdr);
+                }
+                currentAdr = nextAdr;
+            }
+        } else {
+            releaseChain(firstChunkAdr, lastChunkAdr, nbChunk);
+        }
+    }
+
+    /**
+     * Release a chain of chunks or runs directly in shared state of bin
+     *
+     * @param firstChunkAdr
+     * @param lastChunkAdr
+     * @param nbChunk       number of chunks or runs in chain
+     */
+    void releaseChain(long firstChunkAdr, long lastChunkAdr, int nbChunk) {
+        long currentAdr = firstChunkAdr;
+        int nbReleased = 0;
+        for (int i = 0; i < nbChunk; i++) {
+            int chunkId = AddrAlign.getChunkId(currentAdr);
+            int runLength = AddrAlign.getRunLength(currentAdr);
+            // read next before the chunk can be reused
+            long nextAdr = getNextChunkAdr(currentAdr);
+            if (runLength > 1) {
+                this.chunks.releaseRange(chunkId, runLength);
+            } else {
+                this.chunks.release(chunkId);
+            }
+            nbReleased += runLength;
+            currentAdr = nextAdr;
         }
-        this.chunkOffset.set(AddrAlign.getChunkId(chunks[0]));
+        occupation.getAndAdd(-nbReleased);
+        this.chunkOffset = AddrAlign.getChunkId(firstChunkAdr);
+    }
+
+    /**
+     * Release a run directly in shared state of bin
+     *
+     * @param runAdr
+     */
+    void releaseRun(long runAdr) {
+        int runLength = AddrAlign.getRunLength(runAdr);
+        this.chunks.releaseRange(AddrAlign.getChunkId(runAdr), runLength);
+        occupation.getAndAdd(-runLength);
     }
 
     abstract void setNextChunkId(int currentChunkId, long nextChunkId);
 
     abstract long getNextChunkId(int currentChunkId);
 
-    abstract boolean storeInChunk(int chunkId, byte[] data, int currentOffset, int length);
+    boolean storeInChunk(int chunkId, byte[] data, int currentOffset, int length) {
+        return storeInRun(AddrAlign.constructAddr(baseAddr, chunkId), data, currentOffset, length);
+    }
+
+    boolean storeInChunk(int currentChunkId, ByteBuffer data) {
+        return storeInRun(AddrAlign.constructAddr(baseAddr, currentChunkId), data);
+    }
+
+    /**
+     * Store in a chunk or a run
+     */
+    abstract boolean storeInRun(long chunkAdr, byte[] data, int currentOffset, int length);
 
-    abstract boolean storeInChunk(int currentChunkId, ByteBuffer data);
+    abstract boolean storeInRun(long chunkAdr, ByteBuffer data);
 
     abstract byte[] loadFromChunk(int chunkId);
 
-    long findOffsetForChunkId(int chunkId) {
-        return (long) chunkId * (long) realChunkSize;
+    /**
+     * @param chunkId
+     * @return native address of chunk
+     */
+    abstract long chunkAddr(int chunkId);
+
+    /**
+     * @return native memory currently reserved by this bin as address, length pairs
+     */
+    abstract long[] nativeRegions();
+
+    /**
+     * @return true if native regions are a mapping of a file, a write of a page make it dirty
+     */
+    boolean isFileBacked() {
+        return false;
+    }
+
+    /**
+     * Write dirty pages to backing file, nothing for anonymous memory
+     */
+    void force() {
     }
 
+    /**
+     * Give back native memory, bin cannot be used after
+     */
+    abstract void close();
+
     public int getAllocatedChunks() {
         return occupation.intValue();
     }
 
-    public int getUsedSize() {
-        return occupation.intValue() * realChunkSize;
+    public long getUsedSize() {
+        return (long) occupation.intValue() * (long) realChunkSize;
+    }
+
+    /**
+     * @return memory reserved by this bin
+     */
+    public long getReservedMemory() {
+        return (long) size * (long) realChunkSize;
+    }
+
+    public long getMagazineHits() {
+        return magazines == null ? 0 : magazines.getHits();
+    }
+
+    public long getMagazineMisses() {
+        return magazines == null ? 0 : magazines.getMisses();
+    }
+
+    public double getMagazineHitRate() {
+        long hits = getMagazineHits();
+        long total = hits + getMagazineMisses();
+        return total == 0 ? 0d : (double) hits / (double) total;
+    }
+
+    public int getMagazineCachedChunks() {
+        return magazines == null ? 0 : magazines.getCachedChunks();
+    }
+
+    public long getNbAlloc() {
+        return stats.allocs.sum();
+    }
+
+    public long getNbFree() {
+        return stats.frees.sum();
+    }
+
+    public long getNbFailedAlloc() {
+        return stats.failedAllocs.sum();
+    }
+
+    public long getNbFallbackToLower() {
+        return stats.fallbacksToLower.sum();
+    }
+
+    public long getNbFallbackToHigher() {
+        return stats.fallbacksToHigher.sum();
+    }
+
+    public long[] getChainLengthHistogram() {
+        return stats.chainLengthHistogram();
     }
 }
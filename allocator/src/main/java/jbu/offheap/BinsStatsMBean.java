@@ -0,0 +1,21 @@
+package jbu.offheap;
+
+/**
+ * Statistics common to all bins MBeans
+ */
+public interface BinsStatsMBean {
+    long getNbAlloc();
+
+    long getNbFree();
+
+    long getNbFailedAlloc();
+
+    long getNbFallbackToLower();
+
+    long getNbFallbackToHigher();
+
+    /**
+     * @return number of values by chain length: 1, 2, 3-4, 5-8, 9-16, 17-32, 33-64, more
+     */
+    long[] getChainLengthHistogram();
+}
@@ -0,0 +1,252 @@
+package jbu.offheap;
+
+import jbu.exception.InvalidParameterException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static jbu.Primitive.LONG_LENGTH;
+import static jbu.UnsafeUtil.unsafe;
+
+/**
+ * Bins backed by a binary buddy allocator over one native region.
+ * Smallest block (order 0) is one chunk. A block of order k is 2^k adjacent chunks, its address is a run
+ * of 2^k chunks (see {@link AddrAlign}) so contexts use it like any run.
+ * A value get one block of the next power of two number of chunks. Blocks are split on allocation and coalesced
+ * with their buddy on free. Free blocks of each order are in a doubly linked list stored in the blocks themselves.
+ * All operations on free lists are done under the bin lock.
+ */
+class BuddyBins extends NativeBins implements BuddyBinsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BuddyBins.class);
+
+    // A block of max order must be addressable as a run
+    static final int MAX_ORDER = Integer.numberOfTrailingZeros(AddrAlign.MAX_RUN_LENGTH);
+
+    private static final int FREE = 0x80;
+    private static final int NONE = -1;
+    // Links of a free block, after the length header
+    private static final int NEXT_FREE_OFFSET = LENGTH_OFFSET;
+    private static final int PREV_FREE_OFFSET = LENGTH_OFFSET + 4;
+
+    private final long regionAddr;
+    // Guarded by this
+    private boolean closed = false;
+    private final int maxOrder;
+    // For first chunk of a block: FREE | order when block is in a free list, else order. Meaningless for others
+    private final byte[] blockState;
+    // First block of free list of each order
+    private final int[] freeHeads;
+    private final int[] freeCounts;
+
+    /**
+     * @param initialChunkNumber number of order 0 blocks, rounded up to a multiple of the biggest block
+     * @param chunkSize          size of an order 0 block
+     * @param baseAddr
+     */
+    BuddyBins(int initialChunkNumber, int chunkSize, int baseAddr) {
+        super(roundToMaxBlock(initialChunkNumber), chunkSize, baseAddr, false);
+        if (chunkSize < LENGTH_OFFSET + 8 + LONG_LENGTH) {
+            throw new InvalidParameterException("Chunk size of buddy bins must be at least "
+                    + (LENGTH_OFFSET + 8 + LONG_LENGTH));
+        }
+        this.maxOrder = maxOrder(initialChunkNumber);
+        long regionSize = (long) size * (long) realChunkSize;
+        this.regionAddr = unsafe.allocateMemory(regionSize);
+        this.blockState = new byte[size];
+        this.freeHeads = new int[maxOrder + 1];
+        this.freeCounts = new int[maxOrder + 1];
+        for (int k = 0; k <= maxOrder; k++) {
+            freeHeads[k] = NONE;
+        }
+        for (int block = 0; block < size; block += 1 << maxOrder) {
+            pushFree(block, maxOrder);
+        }
+        LOGGER.info("allocate_buddy_buffer, size: {} MB, min_block_size: {}, max_order: {}, base_logical_addr: {}, begin_addr: {}"
+                , regionSize / 1024 / 1024, chunkSize, maxOrder, baseAddr, regionAddr);
+    }
+
+    private static int maxOrder(int chunkNumber) {
+        return Math.min(MAX_ORDER, 31 - Integer.numberOfLeadingZeros(chunkNumber));
+    }
+
+    private static int roundToMaxBlock(int chunkNumber) {
+        if (chunkNumber <= 0) {
+            // Checked by Bins
+            return chunkNumber;
+        }
+        long maxBlock = 1L << maxOrder(chunkNumber);
+        long rounded = (chunkNumber + maxBlock - 1) / maxBlock * maxBlock;
+        if (rounded > Integer.MAX_VALUE) {
+            throw new InvalidParameterException("Too many chunks in bin, max is " + Integer.MAX_VALUE);
+        }
+        return (int) rounded;
+    }
+
+    @Override
+    long chunkAddr(int chunkId) {
+        return regionAddr + (long) chunkId * (long) realChunkSize;
+    }
+
+    @Override
+    long[] nativeRegions() {
+        return new long[]{regionAddr, (long) size * (long) realChunkSize};
+    }
+
+    @Override
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            unsafe.freeMemory(regionAddr);
+        }
+    }
+
+    @Override
+    synchronized long claimOneChunk() {
+        int block = allocBlock(0);
+        return block == NONE ? -1 : AddrAlign.constructAddr(baseAddr, block);
+    }
+
+    @Override
+    synchronized long[] allocateNChunk(int n) {
+        if (n <= 0) {
+            return null;
+        }
+        long[] res = new long[n];
+        for (int i = 0; i < n; i++) {
+            int block = allocBlock(0);
+            if (block == NONE) {
+                // Not enough chunk. Unallocate
+                for (int j = 0; j < i; j++) {
+                    freeBlock(AddrAlign.getChunkId(res[j]), 0);
+                }
+                return null;
+            }
+            res[i] = AddrAlign.constructAddr(baseAddr, block);
+        }
+        return res;
+    }
+
+    /**
+     * Take one block of the smallest order containing {@code n} chunks
+     *
+     * @param n
+     * @return address of block as a run of 2^order chunks or -1
+     */
+    @Override
+    long allocateRun(int n) {
+        if (n <= 0) {
+            return -1;
+        }
+        int order = 32 - Integer.numberOfLeadingZeros(n - 1);
+        if (order > maxOrder || (1 << order) > maxRunLength) {
+            return -1;
+        }
+        int block;
+        synchronized (this) {
+            block = allocBlock(order);
+        }
+        return block == NONE ? -1 : AddrAlign.constructAddr(baseAddr, block, 1 << order);
+    }
+
+    @Override
+    synchronized void releaseChunks(long[] chunks, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            freeBlock(AddrAlign.getChunkId(chunks[i]), orderOf(chunks[i]));
+        }
+    }
+
+    @Override
+    synchronized void releaseChain(long firstChunkAdr, long lastChunkAdr, int nbChunk) {
+        long currentAdr = firstChunkAdr;
+        for (int i = 0; i < nbChunk; i++) {
+            // read next before the block can be merged
+            long nextAdr = getNextChunkAdr(currentAdr);
+            freeBlock(AddrAlign.getChunkId(currentAdr), orderOf(currentAdr));
+            currentAdr = nextAdr;
+        }
+    }
+
+    @Override
+    synchronized void releaseRun(long runAdr) {
+        freeBlock(AddrAlign.getChunkId(runAdr), orderOf(runAdr));
+    }
+
+    private static int orderOf(long blockAdr) {
+        return Integer.numberOfTrailingZeros(AddrAlign.getRunLength(blockAdr));
+    }
+
+    private int allocBlock(int order) {
+        int k = order;
+        while (k <= maxOrder && freeHeads[k] == NONE) {
+            k++;
+        }
+        if (k > maxOrder) {
+            return NONE;
+        }
+        int block = freeHeads[k];
+        removeFree(block, k);
+        // Split: keep lower half, upper half go to free list of lower order
+        while (k > order) {
+            k--;
+            pushFree(block + (1 << k), k);
+        }
+        blockState[block] = (byte) order;
+        occupation.getAndAdd(1 << order);
+        return block;
+    }
+
+    private void freeBlock(int block, int order) {
+        occupation.getAndAdd(-(1 << order));
+        int k = order;
+        // Coalesce while buddy is a free block of same order
+        while (k < maxOrder) {
+            int buddy = block ^ (1 << k);
+            if (buddy >= size || blockState[buddy] != (byte) (FREE | k)) {
+                break;
+            }
+            removeFree(buddy, k);
+            block &= ~(1 << k);
+            k++;
+        }
+        pushFree(block, k);
+    }
+
+    private void pushFree(int block, int order) {
+        int next = freeHeads[order];
+        long blockAddr = chunkAddr(block);
+        unsafe.putInt(blockAddr + NEXT_FREE_OFFSET, next);
+        unsafe.putInt(blockAddr + PREV_FREE_OFFSET, NONE);
+        if (next != NONE) {
+            unsafe.putInt(chunkAddr(next) + PREV_FREE_OFFSET, block);
+        }
+        freeHeads[order] = block;
+        blockState[block] = (byte) (FREE | order);
+        freeCounts[order]++;
+    }
+
+    private void removeFree(int block, int order) {
+        long blockAddr = chunkAddr(block);
+        int next = unsafe.getInt(blockAddr + NEXT_FREE_OFFSET);
+        int prev = unsafe.getInt(blockAddr + PREV_FREE_OFFSET);
+        if (prev == NONE) {
+            freeHeads[order] = next;
+        } else {
+            unsafe.putInt(chunkAddr(prev) + NEXT_FREE_OFFSET, next);
+        }
+        if (next != NONE) {
+            unsafe.putInt(chunkAddr(next) + PREV_FREE_OFFSET, prev);
+        }
+        blockState[block] = 0;
+        freeCounts[order]--;
+    }
+
+    @Override
+    public int getMaxOrder() {
+        return maxOrder;
+    }
+
+    @Override
+    public synchronized int[] getFreeBlocksByOrder() {
+        return freeCounts.clone();
+    }
+}
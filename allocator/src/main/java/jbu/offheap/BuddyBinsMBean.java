@@ -0,0 +1,21 @@
+package jbu.offheap;
+
+public interface BuddyBinsMBean extends BinsStatsMBean {
+    int getAllocatedChunks();
+
+    long getUsedSize();
+
+    long getReservedMemory();
+
+    int getMaxOrder();
+
+    int[] getFreeBlocksByOrder();
+
+    long getMagazineHits();
+
+    long getMagazineMisses();
+
+    double getMagazineHitRate();
+
+    int getMagazineCachedChunks();
+}
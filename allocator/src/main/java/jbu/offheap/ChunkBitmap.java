@@ -0,0 +1,341 @@
+package jbu.offheap;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free state of chunks of a bin. One bit by chunk, set when the chunk is used.
+ * A summary level keep one bit by word of chunks, set when the word may still have a free chunk.
+ * Free chunk are found with {@link Long#numberOfTrailingZeros(long)} on summary then on word,
+ * so search cost depend on number of full words and not on number of used chunks.
+ */
+final class ChunkBitmap {
+
+    private static final int WORD_SHIFT = 6;
+    private static final int WORD_MASK = 63;
+    private static final long FULL = -1L;
+
+    final int size;
+    final int nbWords;
+
+    // Bit set when chunk is used
+    private final AtomicLongArray words;
+    // Bit set when word may have free bits. Only a hint, words are always checked
+    private final AtomicLongArray summary;
+
+    ChunkBitmap(int size) {
+        this.size = size;
+        this.nbWords = (size + WORD_MASK) >>> WORD_SHIFT;
+        this.words = new AtomicLongArray(nbWords);
+        this.summary = new AtomicLongArray((nbWords + WORD_MASK) >>> WORD_SHIFT);
+        // Bits after last chunk are never free
+        int lastBits = size & WORD_MASK;
+        if (lastBits != 0) {
+            words.set(nbWords - 1, FULL << lastBits);
+        }
+        for (int si = 0; si < summary.length(); si++) {
+            int wordsInSummary = Math.min(64, nbWords - (si << WORD_SHIFT));
+            summary.set(si, wordsInSummary == 64 ? FULL : ~(FULL << wordsInSummary));
+        }
+    }
+
+    /**
+     * Claim one free chunk. Search begin at word containing {@code hint}
+     *
+     * @param hint
+     * @return index of claimed chunk or -1 if all chunks are used
+     */
+    int claimOne(int hint) {
+        int nbSummary = summary.length();
+        int si = (hint >>> WORD_SHIFT >>> WORD_SHIFT) % nbSummary;
+        for (int s = 0; s < nbSummary; s++) {
+            long sw = summary.get(si);
+            while (sw != 0) {
+                int wi = (si << WORD_SHIFT) + Long.numberOfTrailingZeros(sw);
+                int index = claimInWord(wi);
+                if (index >= 0) {
+                    return index;
+                }
+                sw &= sw - 1;
+            }
+            if (++si == nbSummary) {
+                si = 0;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Claim up to {@code n} free chunks, each CAS take all free bits needed in one word.
+     *
+     * @param n
+     * @param res     array filled with claimed index
+     * @param hint
+     * @return number of claimed chunks
+     */
+    int claim(int n, long[] res, int hint) {
+        int nbClaimed = 0;
+        int nbSummary = summary.length();
+        int si = (hint >>> WORD_SHIFT >>> WORD_SHIFT) % nbSummary;
+        for (int s = 0; s < nbSummary && nbClaimed < n; s++) {
+            long sw = summary.get(si);
+            while (sw != 0 && nbClaimed < n) {
+                int wi = (si << WORD_SHIFT) + Long.numberOfTrailingZeros(sw);
+                nbClaimed += claimInWord(wi, n - nbClaimed, res, nbClaimed);
+                sw &= sw - 1;
+            }
+            if (++si == nbSummary) {
+                si = 0;
+            }
+        }
+        return nbClaimed;
+    }
+
+    void release(int index) {
+        int wi = index >>> WORD_SHIFT;
+        releaseInWord(wi, 1L << (index & WORD_MASK));
+    }
+
+    /**
+     * Release {@code length} chunks addresses. Consecutive chunks of same word are released with one CAS
+     *
+     * @param chunkAdrs
+     * @param offset
+     * @param length
+     */
+    void release(long[] chunkAdrs, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            int wi = AddrAlign.getChunkId(chunkAdrs[i]) >>> WORD_SHIFT;
+            long mask = 0;
+            int index;
+            while (i < end && ((index = AddrAlign.getChunkId(chunkAdrs[i])) >>> WORD_SHIFT) == wi) {
+                mask |= 1L << (index & WORD_MASK);
+                i++;
+            }
+            releaseInWord(wi, mask);
+        }
+    }
+
+    /**
+     * Mark used all chunks of [{@code from}, {@code from + length}[ if they are all free. All or nothing:
+     * if one chunk is used, words already taken are given back
+     *
+     * @param from
+     * @param length
+     * @return true if range is claimed
+     */
+    boolean claimRange(int from, int length) {
+        int end = from + length;
+        int firstWord = from >>> WORD_SHIFT;
+        int lastWord = (end - 1) >>> WORD_SHIFT;
+        for (int wi = firstWord; wi <= lastWord; wi++) {
+            long mask = rangeMask(wi, from, end);
+            for (; ; ) {
+                long w = words.get(wi);
+                if ((w & mask) != 0) {
+                    // A chunk is used, rollback
+                    for (int rb = firstWord; rb < wi; rb++) {
+                        releaseInWord(rb, rangeMask(rb, from, end));
+                    }
+                    return false;
+                }
+                if (words.compareAndSet(wi, w, w | mask)) {
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Claim {@code n} adjacent free chunks. A run never cross a multiple of 2^{@code alignShift}.
+     * Search begin at word containing {@code hint}, full words are skipped without looking at bits.
+     *
+     * @param n
+     * @param hint
+     * @param alignShift
+     * @return index of first chunk of claimed run or -1 if no run found
+     */
+    int claimRun(int n, int hint, int alignShift) {
+        int hintWord = (hint >>> WORD_SHIFT) % nbWords;
+        int first = claimRunInWords(n, hintWord, nbWords, alignShift);
+        if (first < 0 && hintWord > 0) {
+            // Run can end after hint word
+            first = claimRunInWords(n, 0, Math.min(nbWords, hintWord + (n >>> WORD_SHIFT) + 1), alignShift);
+        }
+        return first;
+    }
+
+    private int claimRunInWords(int n, int fromWord, int toWord, int alignShift) {
+        long alignMask = (1L << alignShift) - 1;
+        int start = 0;
+        int count = 0;
+        for (int wi = fromWord; wi < toWord; wi++) {
+            long w = words.get(wi);
+            if (w == FULL) {
+                count = 0;
+                continue;
+            }
+            int b = 0;
+            while (b < 64) {
+                long rest = w >>> b;
+                int pos = (wi << WORD_SHIFT) + b;
+                if ((rest & 1) != 0) {
+                    // Skip used chunks
+                    b += Long.numberOfTrailingZeros(~rest);
+                    count = 0;
+                    continue;
+                }
+                if ((pos & alignMask) == 0) {
+                    count = 0;
+                }
+                int freeLen = rest == 0 ? 64 - b : Long.numberOfTrailingZeros(rest);
+                // Stop free run at next alignment boundary
+                freeLen = (int) Math.min(freeLen, alignMask + 1 - (pos & alignMask));
+                if (count == 0) {
+                    start = pos;
+                }
+                count += freeLen;
+                b += freeLen;
+                if (count >= n) {
+                    if (claimRange(start, n)) {
+                        return start;
+                    }
+                    // Lost a race, search after
+                    count = 0;
+                    w = words.get(wi);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Mark free all chunks of [{@code from}, {@code from + length}[
+     *
+     * @param from
+     * @param length
+     */
+    void releaseRange(int from, int length) {
+        int end = from + length;
+        for (int wi = from >>> WORD_SHIFT; wi <= (end - 1) >>> WORD_SHIFT; wi++) {
+            releaseInWord(wi, rangeMask(wi, from, end));
+        }
+    }
+
+    /**
+     * Snapshot check, a chunk can be claimed just after
+     *
+     * @param from
+     * @param length
+     * @return true if all chunks of [{@code from}, {@code from + length}[ are free
+     */
+    boolean isRangeFree(int from, int length) {
+        int end = from + length;
+        for (int wi = from >>> WORD_SHIFT; wi <= (end - 1) >>> WORD_SHIFT; wi++) {
+            if ((words.get(wi) & rangeMask(wi, from, end)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isUsed(int index) {
+        return (words.get(index >>> WORD_SHIFT) & (1L << (index & WORD_MASK))) != 0;
+    }
+
+    private int claimInWord(int wi) {
+        for (; ; ) {
+            long w = words.get(wi);
+            if (w == FULL) {
+                markFull(wi);
+                return -1;
+            }
+            int bit = Long.numberOfTrailingZeros(~w);
+            long nw = w | (1L << bit);
+            if (words.compareAndSet(wi, w, nw)) {
+                if (nw == FULL) {
+                    markFull(wi);
+                }
+                return (wi << WORD_SHIFT) + bit;
+            }
+        }
+    }
+
+    private int claimInWord(int wi, int max, long[] res, int resOffset) {
+        for (; ; ) {
+            long w = words.get(wi);
+            if (w == FULL) {
+                markFull(wi);
+                return 0;
+            }
+            // take the max lowest free bits
+            long free = ~w;
+            long taken = 0;
+            int nb = 0;
+            while (free != 0 && nb < max) {
+                long lowest = free & -free;
+                taken |= lowest;
+                free ^= lowest;
+                nb++;
+            }
+            long nw = w | taken;
+            if (words.compareAndSet(wi, w, nw)) {
+                if (nw == FULL) {
+                    markFull(wi);
+                }
+                for (int i = 0; i < nb; i++) {
+                    res[resOffset + i] = (wi << WORD_SHIFT) + Long.numberOfTrailingZeros(taken);
+                    taken &= taken - 1;
+                }
+                return nb;
+            }
+        }
+    }
+
+    private void releaseInWord(int wi, long mask) {
+        for (; ; ) {
+            long w = words.get(wi);
+            if (words.compareAndSet(wi, w, w & ~mask)) {
+                break;
+            }
+        }
+        markMayBeFree(wi);
+    }
+
+    // Bits of word wi in [from, end[
+    private static long rangeMask(int wi, int from, int end) {
+        int wordBegin = wi << WORD_SHIFT;
+        int lo = Math.max(from, wordBegin) - wordBegin;
+        int hi = Math.min(end - wordBegin, 64);
+        long upper = hi == 64 ? FULL : ~(FULL << hi);
+        return upper & (FULL << lo);
+    }
+
+    private void markMayBeFree(int wi) {
+        int si = wi >>> WORD_SHIFT;
+        long bit = 1L << (wi & WORD_MASK);
+        for (; ; ) {
+            long sw = summary.get(si);
+            if ((sw & bit) != 0 || summary.compareAndSet(si, sw, sw | bit)) {
+                return;
+            }
+        }
+    }
+
+    private void markFull(int wi) {
+        int si = wi >>> WORD_SHIFT;
+        long bit = 1L << (wi & WORD_MASK);
+        for (; ; ) {
+            long sw = summary.get(si);
+            if ((sw & bit) == 0 || summary.compareAndSet(si, sw, sw & ~bit)) {
+                break;
+            }
+        }
+        // A release can happen between the read of full word and the clear of summary. Check again
+        if (words.get(wi) != FULL) {
+            markMayBeFree(wi);
+        }
+    }
+}
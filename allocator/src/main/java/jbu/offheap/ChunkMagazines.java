@@ -0,0 +1,164 @@
+package jbu.offheap;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread local cache of chunk ids in front of one {@link Bins}.
+ * Each thread own a small stack (magazine) of chunk already claimed in the bin. Alloc and free pop and push
+ * in this stack without touching shared state. Magazine is refilled and drained by batch.
+ * Magazines of dead threads are given back to the bin when a new thread get its magazine, when the bin run out of
+ * chunk and on an explicit {@link #harvestDeadThreads()}. Until then their chunks are counted as allocated in the bin
+ * and as cached. Stats getters never change the state of the bin.
+ */
+final class ChunkMagazines {
+
+    private final Bins bins;
+    private final int capacity;
+    private final int batchSize;
+
+    private final ThreadLocal<Magazine> magazine = new ThreadLocal<Magazine>() {
+        @Override
+        protected Magazine initialValue() {
+            Magazine m = new Magazine(Thread.currentThread(), capacity);
+            synchronized (registry) {
+                registry.add(m);
+            }
+            // Thread churn, previous threads can be dead
+            harvestDeadThreads();
+            return m;
+        }
+    };
+
+    // All magazines of live (or not yet harvested) threads
+    private final List<Magazine> registry = new ArrayList<>();
+
+    // Stats of harvested magazines
+    private long retiredHits = 0;
+    private long retiredMisses = 0;
+
+    ChunkMagazines(Bins bins, int capacity) {
+        this.bins = bins;
+        this.capacity = capacity;
+        this.batchSize = Math.max(1, capacity / 2);
+    }
+
+    long allocate() {
+        Magazine m = magazine.get();
+        if (m.size > 0) {
+            m.hits++;
+            return m.chunks[--m.size];
+        }
+        m.misses++;
+        // Refill by batch. If bin cannot give a full batch, try with only one chunk
+        long[] claimed = bins.allocateNChunk(batchSize);
+        if (claimed == null) {
+            long chunk = bins.claimOneChunk();
+            if (chunk < 0 && harvestDeadThreads() > 0) {
+                chunk = bins.claimOneChunk();
+            }
+            return chunk;
+        }
+        // keep the first for caller, cache the others
+        for (int i = 1; i < claimed.length; i++) {
+            m.chunks[m.size++] = claimed[i];
+        }
+        return claimed[0];
+    }
+
+    void free(long chunkAdr) {
+        Magazine m = magazine.get();
+        if (m.size == capacity) {
+            // Drain the bottom half of the magazine in one batch
+            bins.releaseChunks(m.chunks, 0, batchSize);
+            System.arraycopy(m.chunks, batchSize, m.chunks, 0, m.size - batchSize);
+            m.size -= batchSize;
+        }
+        m.chunks[m.size++] = chunkAdr;
+    }
+
+    /**
+     * Give back to the bin all chunks cached by threads that are dead
+     *
+     * @return number of chunk released
+     */
+    int harvestDeadThreads() {
+        List<Magazine> dead = null;
+        synchronized (registry) {
+            for (int i = registry.size() - 1; i >= 0; i--) {
+                Magazine m = registry.get(i);
+                Thread owner = m.owner.get();
+                if (owner == null || !owner.isAlive()) {
+                    if (dead == null) {
+                        dead = new ArrayList<>();
+                    }
+                    dead.add(registry.remove(i));
+                    retiredHits += m.hits;
+                    retiredMisses += m.misses;
+                }
+            }
+        }
+        if (dead == null) {
+            return 0;
+        }
+        // Owner thread is terminated, its magazine can be read safely
+        int released = 0;
+        for (Magazine m : dead) {
+            if (m.size > 0) {
+                bins.releaseChunks(m.chunks, 0, m.size);
+                released += m.size;
+                m.size = 0;
+            }
+        }
+        return released;
+    }
+
+    // Stats are read without synchronization with owner threads. Values are approximate.
+
+    long getHits() {
+        synchronized (registry) {
+            long res = retiredHits;
+            for (Magazine m : registry) {
+                res += m.hits;
+            }
+            return res;
+        }
+    }
+
+    long getMisses() {
+        synchronized (registry) {
+            long res = retiredMisses;
+            for (Magazine m : registry) {
+                res += m.misses;
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Chunks cached by all magazines, including the ones of dead threads not yet harvested
+     */
+    int getCachedChunks() {
+        int res = 0;
+        synchronized (registry) {
+            for (Magazine m : registry) {
+                res += m.size;
+            }
+        }
+        return res;
+    }
+
+    private static final class Magazine {
+        final WeakReference<Thread> owner;
+        final long[] chunks;
+        int size = 0;
+        long hits = 0;
+        long misses = 0;
+
+        Magazine(Thread owner, int capacity) {
+            this.owner = new WeakReference<>(owner);
+            this.chunks = new long[capacity];
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package jbu.offheap;
+
+/**
+ * When native memory of bins is really given by the OS
+ */
+public enum CommitStrategy {
+    /**
+     * Pages are faulted on first access, on the request path. Fast startup, for dev boxes
+     */
+    LAZY,
+    /**
+     * All pages are touched in parallel at startup. Slow startup but no first touch latency.
+     * Pages of mapped files are only read, never dirtied
+     */
+    PRE_TOUCH
+}
@@ -0,0 +1,202 @@
+package jbu.offheap;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static jbu.UnsafeUtil.unsafe;
+
+/**
+ * Deferred free of values which can still be read by other threads (epoch based reclamation).
+ * A reader announce the current epoch with {@link #enter()} before reading an address and clear it with
+ * {@link #exit()}. A writer which unlinked an address give it to {@link #retire(long)} instead of freeing it.
+ * Retire advance the epoch, and the address is freed when no reader announced an epoch older or equal
+ * to its retire epoch: every reader still inside has read the address after it was unlinked.
+ * Enter and exit are two volatile writes in a thread local slot, no CAS and no lock.
+ * Native memory outside of allocator (tables of an index) can be retired the same way with
+ * {@link #retireMemory(long)}.
+ * Retire only append to a preallocated buffer. Retired addresses are freed by batch when
+ * {@value #RECLAIM_THRESHOLD} are waiting, or by an explicit {@link #reclaim()}: a write make no garbage and
+ * do not scan readers.
+ */
+public final class EpochReclaimer {
+
+    private static final long IDLE = Long.MAX_VALUE;
+    static final int RECLAIM_THRESHOLD = 64;
+
+    private final Allocator allocator;
+    private final AtomicLong epoch = new AtomicLong(0);
+
+    // Slots of all threads, copied on write (a new thread or a dead one)
+    private volatile Slot[] slots = new Slot[0];
+    private final ThreadLocal<Slot> slot = new ThreadLocal<Slot>() {
+        @Override
+        protected Slot initialValue() {
+            Slot s = new Slot(Thread.currentThread());
+            synchronized (slot) {
+                Slot[] current = slots;
+                Slot[] res = Arrays.copyOf(current, current.length + 1);
+                res[current.length] = s;
+                slots = res;
+            }
+            return s;
+        }
+    };
+
+    // Retired addresses, their retire epoch and if they are native memory. Guarded by this
+    private long[] retiredAdrs = new long[2 * RECLAIM_THRESHOLD];
+    private long[] retiredEpochs = new long[2 * RECLAIM_THRESHOLD];
+    private boolean[] retiredNative = new boolean[2 * RECLAIM_THRESHOLD];
+    private int nbRetired = 0;
+    // Reclaim when this number of addresses wait, more than kept ones by last reclaim. Guarded by this
+    private int reclaimAt = RECLAIM_THRESHOLD;
+
+    // Addresses freed by a reclaim, reused. Guarded by reclaimLock
+    private final Object reclaimLock = new Object();
+    private long[] toFree = new long[2 * RECLAIM_THRESHOLD];
+    private boolean[] toFreeNative = new boolean[2 * RECLAIM_THRESHOLD];
+
+    public EpochReclaimer(Allocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Begin a read of addresses. Can be nested
+     */
+    public void enter() {
+        Slot s = slot.get();
+        if (s.depth++ == 0) {
+            s.epoch = epoch.get();
+        }
+    }
+
+    public void exit() {
+        Slot s = slot.get();
+        if (--s.depth == 0) {
+            s.epoch = IDLE;
+        }
+    }
+
+    /**
+     * Free {@code firstChunkAdr} when no reader can still use it
+     *
+     * @param firstChunkAdr an address not reachable anymore by new readers
+     */
+    public void retire(long firstChunkAdr) {
+        add(firstChunkAdr, false);
+    }
+
+    /**
+     * Free native memory {@code address} (from {@code Unsafe.allocateMemory}) when no reader can still use it
+     *
+     * @param address native memory not reachable anymore by new readers
+     */
+    public void retireMemory(long address) {
+        add(address, true);
+    }
+
+    private void add(long address, boolean nativeMemory) {
+        boolean reclaim;
+        synchronized (this) {
+            if (nbRetired == retiredAdrs.length) {
+                // Only when readers pin a lot of addresses
+                retiredAdrs = Arrays.copyOf(retiredAdrs, nbRetired * 2);
+                retiredEpochs = Arrays.copyOf(retiredEpochs, nbRetired * 2);
+                retiredNative = Arrays.copyOf(retiredNative, nbRetired * 2);
+            }
+            retiredAdrs[nbRetired] = address;
+            retiredEpochs[nbRetired] = epoch.getAndIncrement();
+            retiredNative[nbRetired] = nativeMemory;
+            nbRetired++;
+            reclaim = nbRetired >= reclaimAt;
+        }
+        if (reclaim) {
+            reclaim();
+        }
+    }
+
+    /**
+     * Free retired addresses not visible by any reader
+     *
+     * @return number of freed addresses
+     */
+    public int reclaim() {
+        synchronized (reclaimLock) {
+            // Addresses retired after this epoch can be read by a reader entering after the scan of slots
+            long minEpoch = epoch.get();
+            boolean dead = false;
+            for (Slot s : slots) {
+                long e = s.epoch;
+                if (e < minEpoch) {
+                    minEpoch = e;
+                }
+                if (e == IDLE && s.owner.get() == null) {
+                    dead = true;
+                }
+            }
+            if (dead) {
+                removeDeadSlots();
+            }
+            int nbToFree = 0;
+            synchronized (this) {
+                if (toFree.length < nbRetired) {
+                    toFree = new long[retiredAdrs.length];
+                    toFreeNative = new boolean[retiredAdrs.length];
+                }
+                int kept = 0;
+                for (int i = 0; i < nbRetired; i++) {
+                    if (retiredEpochs[i] < minEpoch) {
+                        toFreeNative[nbToFree] = retiredNative[i];
+                        toFree[nbToFree++] = retiredAdrs[i];
+                    } else {
+                        retiredAdrs[kept] = retiredAdrs[i];
+                        retiredEpochs[kept] = retiredEpochs[i];
+                        retiredNative[kept] = retiredNative[i];
+                        kept++;
+                    }
+                }
+                nbRetired = kept;
+                reclaimAt = kept + RECLAIM_THRESHOLD;
+            }
+            // Free outside of lock of writers
+            for (int i = 0; i < nbToFree; i++) {
+                if (toFreeNative[i]) {
+                    unsafe.freeMemory(toFree[i]);
+                } else {
+                    allocator.free(toFree[i]);
+                }
+            }
+            return nbToFree;
+        }
+    }
+
+    private void removeDeadSlots() {
+        synchronized (slot) {
+            Slot[] current = slots;
+            List<Slot> alive = new ArrayList<>(current.length);
+            for (Slot s : current) {
+                if (s.epoch != IDLE || s.owner.get() != null) {
+                    alive.add(s);
+                }
+            }
+            slots = alive.toArray(new Slot[alive.size()]);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return nbRetired;
+    }
+
+    private static final class Slot {
+        final WeakReference<Thread> owner;
+        volatile long epoch = IDLE;
+        // Only used by owner thread
+        int depth = 0;
+
+        Slot(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package jbu.offheap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link UnsafeBins} keeping free chunks in a lock free stack (Treiber stack).
+ * Free chunks are linked through their next chunk slot, the one used for chaining allocated chunks.
+ * Head of the stack is stamped with a version against ABA: high 32 bits are version, low 32 bits chunk id.
+ * Never used chunks are not linked at construction (memory is not touched), they are taken after the stack
+ * is empty by bumping {@code fresh}.
+ * Alloc and free are O(1) whatever the occupation of the bin. A chain of chunks is freed with one CAS.
+ */
+class FreeListBins extends UnsafeBins {
+
+    private static final int EMPTY = -1;
+
+    // version << 32 | chunkId
+    private final AtomicLong head = new AtomicLong(stamp(0, EMPTY));
+
+    // Next never used chunk
+    private final AtomicInteger fresh = new AtomicInteger(0);
+
+    FreeListBins(int initialChunkNumber, int chunkSize, int baseAddr) {
+        super(initialChunkNumber, chunkSize, baseAddr, false);
+    }
+
+    @Override
+    long claimOneChunk() {
+        int chunkId = pop();
+        if (chunkId == EMPTY) {
+            chunkId = takeFresh();
+            if (chunkId == EMPTY) {
+                return -1;
+            }
+        }
+        occupation.incrementAndGet();
+        return AddrAlign.constructAddr(baseAddr, chunkId);
+    }
+
+    @Override
+    long[] allocateNChunk(int n) {
+        if (n <= 0) {
+            return null;
+        }
+        long[] res = new long[n];
+        for (int i = 0; i < n; i++) {
+            int chunkId = pop();
+            if (chunkId == EMPTY) {
+                chunkId = takeFresh();
+            }
+            if (chunkId == EMPTY) {
+                // Not enough chunk. Unallocate
+                if (i > 0) {
+                    linkAndPush(res, 0, i);
+                }
+                return null;
+            }
+            res[i] = AddrAlign.constructAddr(baseAddr, chunkId);
+        }
+        occupation.getAndAdd(n);
+        return res;
+    }
+
+    @Override
+    void releaseChunks(long[] chunks, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        linkAndPush(chunks, offset, length);
+        occupation.getAndAdd(-length);
+    }
+
+    @Override
+    void releaseChain(long firstChunkAdr, long lastChunkAdr, int nbChunk) {
+        // Chain is already linked by next chunk slot, splice it on top of the stack
+        push(AddrAlign.getChunkId(firstChunkAdr), AddrAlign.getChunkId(lastChunkAdr));
+        occupation.getAndAdd(-nbChunk);
+    }
+
+    private void linkAndPush(long[] chunks, int offset, int length) {
+        for (int i = offset; i < offset + length - 1; i++) {
+            setNextChunkId(AddrAlign.getChunkId(chunks[i]), chunks[i + 1]);
+        }
+        push(AddrAlign.getChunkId(chunks[offset]), AddrAlign.getChunkId(chunks[offset + length - 1]));
+    }
+
+    private void push(int firstChunkId, int lastChunkId) {
+        for (; ; ) {
+            long h = head.get();
+            int headId = (int) h;
+            setNextChunkId(lastChunkId, headId == EMPTY ? -1 : AddrAlign.constructAddr(baseAddr, headId));
+            if (head.compareAndSet(h, stamp(version(h) + 1, firstChunkId))) {
+                return;
+            }
+        }
+    }
+
+    private int pop() {
+        for (; ; ) {
+            long h = head.get();
+            int headId = (int) h;
+            if (headId == EMPTY) {
+                return EMPTY;
+            }
+            // Next may be garbage if head was concurrently taken, version make CAS fail in this case
+            long next = getNextChunkId(headId);
+            int nextId = next < 0 ? EMPTY : AddrAlign.getChunkId(next);
+            if (head.compareAndSet(h, stamp(version(h) + 1, nextId))) {
+                return headId;
+            }
+        }
+    }
+
+    private int takeFresh() {
+        for (; ; ) {
+            int f = fresh.get();
+            if (f >= size) {
+                return EMPTY;
+            }
+            if (fresh.compareAndSet(f, f + 1)) {
+                return f;
+            }
+        }
+    }
+
+    private static long stamp(int version, int chunkId) {
+        return ((long) version << 32) | ((long) chunkId & 0xffffffffL);
+    }
+
+    private static int version(long stamped) {
+        return (int) (stamped >>> 32);
+    }
+}
@@ -0,0 +1,126 @@
+package jbu.offheap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in fixed memory, log-linear buckets like HdrHistogram.
+ * Values under 16ns have one bucket each, then each power of two is split in 16 linear buckets so relative error
+ * is at most 1/16. Values over 2^41ns (about 36 minutes) go in the last bucket.
+ * Recording is one atomic increment of a bucket and of two striped counters.
+ */
+class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    static final int NB_BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+    private final String operation;
+    private final AtomicLongArray buckets = new AtomicLongArray(NB_BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter total = new StripedCounter();
+    private final AtomicLong max = new AtomicLong(0);
+
+    LatencyHistogram(String operation) {
+        this.operation = operation;
+    }
+
+    static int bucketIndex(long nanos) {
+        long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (v >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return greatest value of bucket {@code index}
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    void record(long nanos) {
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.increment();
+        total.add(nanos);
+        long currentMax = max.get();
+        while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of bucket containing the percentile, 0 if nothing is recorded
+     */
+    long percentile(double percentile) {
+        long[] snapshot = new long[NB_BUCKETS];
+        long nb = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            nb += snapshot[i];
+        }
+        if (nb == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100d * nb));
+        long seen = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMean() {
+        long nb = count.sum();
+        return nb == 0 ? 0d : (double) total.sum() / (double) nb;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long getP50() {
+        return percentile(50d);
+    }
+
+    @Override
+    public long getP90() {
+        return percentile(90d);
+    }
+
+    @Override
+    public long getP99() {
+        return percentile(99d);
+    }
+
+    @Override
+    public long getP999() {
+        return percentile(99.9d);
+    }
+}
@@ -0,0 +1,23 @@
+package jbu.offheap;
+
+/**
+ * Latency of an allocator operation, all values in nanoseconds.
+ * Percentiles are upper bound of their bucket (at most 1/16 above real value)
+ */
+public interface LatencyHistogramMBean {
+    String getOperation();
+
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getP999();
+}
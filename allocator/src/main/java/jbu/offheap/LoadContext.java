@@ -1,5 +1,6 @@
 package jbu.offheap;
 
+import jbu.exception.BufferOverflowException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,17 +17,53 @@ public class LoadContext {
     private long currentBaseAdr;
     private int currentOffset;
     private int remaining;
+    // Native address of next chunk slot of current chunk
+    private long nextChunkSlot;
+    // Value stored with aligned layout, primitives are never split
+    private boolean aligned;
     private final Allocator allocator;
+    // User data length of a context over one native region, -1 for a context over a chain of chunks
+    private final int regionLength;
 
     LoadContext(Allocator allocator, long firstChunkAdr) {
         this.firstChunkAdr = firstChunkAdr;
         this.allocator = allocator;
-        beginNewChunk(firstChunkAdr);
+        this.regionLength = -1;
+        beginValue();
     }
 
+    /**
+     * Context over a native region laid out like a chunk (length header then data) but without next chunk
+     *
+     * @param regionAdr    native address of region
+     * @param regionLength length of user data
+     */
+    LoadContext(long regionAdr, int regionLength) {
+        this.firstChunkAdr = regionAdr;
+        this.allocator = null;
+        this.regionLength = regionLength;
+        beginRegion();
+    }
 
     public void reset() {
-        beginNewChunk(this.firstChunkAdr);
+        if (regionLength >= 0) {
+            beginRegion();
+        } else {
+            beginValue();
+        }
+    }
+
+    /**
+     * Reuse this context for reading another value, avoid a new context by value
+     *
+     * @param firstChunkAdr
+     */
+    public void reset(long firstChunkAdr) {
+        if (regionLength >= 0) {
+            throw new IllegalStateException("Context over a region cannot be moved");
+        }
+        this.firstChunkAdr = firstChunkAdr;
+        beginValue();
     }
 
     /* Current implementation of all loadPrimitive have bad performance. Use sparingly */
@@ -50,18 +87,12 @@ public class LoadContext {
             this.remaining -= CHAR_LENGTH;
             return res;
         } else {
-            // Load all remaining bytes of the chunk (or remaining byte for primitive) in a buffer and begin load of a new chunk
-            int primitiveSize = CHAR_LENGTH;
-            int byteRemaining = CHAR_LENGTH;
-            long bufAddr = unsafe.allocateMemory(CHAR_LENGTH);
-            try {
-                partialChunkLoad(primitiveSize, byteRemaining, bufAddr);
-                char res = unsafe.getChar(bufAddr);
+            // Primitive cross two chunks, rebuild it from its bytes
+            char res = (char) crossChunkLoad(CHAR_LENGTH);
+            if (LOGGER_IS_TRACE_ENABLED) {
                 LOGGER.trace("load_char_partial, final_value: {}, bin: {}", res, Integer.toBinaryString(res));
-                return res;
-            } finally {
-                unsafe.freeMemory(bufAddr);
             }
+            return res;
         }
     }
 
@@ -84,18 +115,12 @@ public class LoadContext {
             this.remaining -= SHORT_LENGTH;
             return res;
         } else {
-            // Load all remaining bytes of the chunk (or remaining byte for primitive) in a buffer and begin load of a new chunk
-            int primitiveSize = SHORT_LENGTH;
-            int byteRemaining = SHORT_LENGTH;
-            long bufAddr = unsafe.allocateMemory(SHORT_LENGTH);
-            try {
-                partialChunkLoad(primitiveSize, byteRemaining, bufAddr);
-                short res = unsafe.getShort(bufAddr);
+            // Primitive cross two chunks, rebuild it from its bytes
+            short res = (short) crossChunkLoad(SHORT_LENGTH);
+            if (LOGGER_IS_TRACE_ENABLED) {
                 LOGGER.trace("load_short_partial, final_value: {}, bin: {}", res, Integer.toBinaryString(res));
-                return res;
-            } finally {
-                unsafe.freeMemory(bufAddr);
             }
+            return res;
         }
     }
 
@@ -111,18 +136,12 @@ public class LoadContext {
             this.remaining -= INT_LENGTH;
             return res;
         } else {
-            // Load all remaining bytes of the chunk (or remaining byte for primitive) in a buffer and begin load of a new chunk
-            int primitiveSize = INT_LENGTH;
-            int byteRemaining = INT_LENGTH;
-            long bufAddr = unsafe.allocateMemory(INT_LENGTH);
-            try {
-                partialChunkLoad(primitiveSize, byteRemaining, bufAddr);
-                int res = unsafe.getInt(bufAddr);
+            // Primitive cross two chunks, rebuild it from its bytes
+            int res = (int) crossChunkLoad(INT_LENGTH);
+            if (LOGGER_IS_TRACE_ENABLED) {
                 LOGGER.trace("load_int_partial, final_value: {}, bin: {}", res, Integer.toBinaryString(res));
-                return res;
-            } finally {
-                unsafe.freeMemory(bufAddr);
             }
+            return res;
         }
     }
 
@@ -139,19 +158,13 @@ public class LoadContext {
             this.remaining -= FLOAT_LENGTH;
             return res;
         } else {
-            // Load all remaining bytes of the chunk (or remaining byte for primitive) in a buffer and begin load of a new chunk
-            int primitiveSize = FLOAT_LENGTH;
-            int byteRemaining = FLOAT_LENGTH;
-            long bufAddr = unsafe.allocateMemory(FLOAT_LENGTH);
-            try {
-                partialChunkLoad(primitiveSize, byteRemaining, bufAddr);
-                int res = unsafe.getInt(bufAddr);
+            // Primitive cross two chunks, rebuild it from its bytes
+            int res = (int) crossChunkLoad(FLOAT_LENGTH);
+            if (LOGGER_IS_TRACE_ENABLED) {
                 LOGGER.trace("load_float_partial, final_value: {}, bin: {}", res, Integer.toBinaryString(res));
-                // When store chunked transform float to raw int bits
-                return Float.intBitsToFloat(res);
-            } finally {
-                unsafe.freeMemory(bufAddr);
             }
+            // When store chunked transform float to raw int bits
+            return Float.intBitsToFloat(res);
         }
     }
 
@@ -167,19 +180,13 @@ public class LoadContext {
             this.remaining -= DOUBLE_LENGTH;
             return res;
         } else {
-            // Load all remaining bytes of the chunk (or remaining byte for primitive) in a buffer and begin load of a new chunk
-            int primitiveSize = DOUBLE_LENGTH;
-            int byteRemaining = DOUBLE_LENGTH;
-            long bufAddr = unsafe.allocateMemory(DOUBLE_LENGTH);
-            try {
-                partialChunkLoad(primitiveSize, byteRemaining, bufAddr);
-                long res = unsafe.getLong(bufAddr);
+            // Primitive cross two chunks, rebuild it from its bytes
+            long res = (long) crossChunkLoad(DOUBLE_LENGTH);
+            if (LOGGER_IS_TRACE_ENABLED) {
                 LOGGER.trace("load_double_partial, final_value: {}, bin: {}", res, Long.toBinaryString(res));
-                // When store chunked transform float to raw int bits
-                return Double.longBitsToDouble(res);
-            } finally {
-                unsafe.freeMemory(bufAddr);
             }
+            // When store chunked transform float to raw int bits
+            return Double.longBitsToDouble(res);
         }
     }
 
@@ -195,28 +202,62 @@ public class LoadContext {
             this.remaining -= LONG_LENGTH;
             return res;
         } else {
-            // Load all remaining bytes of the chunk (or remaining byte for primitive) in a buffer and begin load of a new chunk
-            int primitiveSize = LONG_LENGTH;
-            int byteRemaining = LONG_LENGTH;
-            long bufAddr = unsafe.allocateMemory(LONG_LENGTH);
-            try {
-                partialChunkLoad(primitiveSize, byteRemaining, bufAddr);
-                long res = unsafe.getLong(bufAddr);
+            // Primitive cross two chunks, rebuild it from its bytes
+            long res = (long) crossChunkLoad(LONG_LENGTH);
+            if (LOGGER_IS_TRACE_ENABLED) {
                 LOGGER.trace("load_long_partial, final_value: {}, bin: {}", res, Long.toBinaryString(res));
-                return res;
-            } finally {
-                unsafe.freeMemory(bufAddr);
             }
+            return res;
+        }
+    }
+
+    /**
+     * Read a primitive not in remaining bytes of current chunk
+     *
+     * @param primitiveSize
+     * @return primitive in low bytes
+     */
+    private long crossChunkLoad(int primitiveSize) {
+        if (!aligned) {
+            return partialChunkLoad(primitiveSize);
+        }
+        // Aligned layout: rest of chunk is padding, primitive is whole at beginning of next chunk
+        nextChunk();
+        long adr = this.currentBaseAdr + this.currentOffset;
+        long res;
+        switch (primitiveSize) {
+            case LONG_LENGTH:
+                res = unsafe.getLong(adr);
+                break;
+            case INT_LENGTH:
+                res = unsafe.getInt(adr);
+                break;
+            case SHORT_LENGTH:
+                res = unsafe.getShort(adr);
+                break;
+            default:
+                res = unsafe.getByte(adr);
         }
+        this.currentOffset += primitiveSize;
+        this.remaining -= primitiveSize;
+        return res;
     }
 
-    private void partialChunkLoad(int primitiveSize, int byteRemaining, long bufAddr) {
+    /**
+     * Read a primitive whose bytes are at end of current chunk and beginning of next one.
+     * Bytes are stored from least significant (see StoreContext), value is rebuilt in a long, nothing is allocated
+     *
+     * @param primitiveSize
+     * @return primitive in low bytes
+     */
+    private long partialChunkLoad(int primitiveSize) {
+        long res = 0;
+        int byteRemaining = primitiveSize;
         do {
             if (this.remaining >= BYTE_LENGTH) {
                 // Load one byte
-                byte b = unsafe.getByte(this.currentBaseAdr + this.currentOffset);
-                // put them into int
-                unsafe.putByte(null, bufAddr + primitiveSize - byteRemaining, b);
+                long b = unsafe.getByte(this.currentBaseAdr + this.currentOffset) & 0xFFL;
+                res |= b << ((primitiveSize - byteRemaining) * 8);
                 byteRemaining -= BYTE_LENGTH;
                 this.remaining -= BYTE_LENGTH;
                 this.currentOffset += BYTE_LENGTH;
@@ -225,10 +266,10 @@ public class LoadContext {
                 if (LOGGER_IS_DEBUG_ENABLED) {
                     LOGGER.debug("chunk_empty, remaining: {}", byteRemaining);
                 }
-                // Get next chunk address in last 4 byte
-                beginNewChunk(unsafe.getLong(this.currentBaseAdr + this.currentOffset));
+                nextChunk();
             }
         } while (byteRemaining > 0);
+        return res;
     }
 
 
@@ -258,8 +299,7 @@ public class LoadContext {
                 if (LOGGER_IS_DEBUG_ENABLED) {
                     LOGGER.debug("chunk_empty, remaining: {}", byteRemaining);
                 }
-                // Get next chunk address in last 4 byte
-                beginNewChunk(unsafe.getLong(this.currentBaseAdr + this.currentOffset));
+                nextChunk();
             }
         } while (byteRemaining > 0);
     }
@@ -303,25 +343,57 @@ public class LoadContext {
             this.currentOffset += byteToCopy;
             // If all chunk loaded take a new one
             if (this.remaining == 0) {
-                // Get next chunk address in last 4 byte
-                beginNewChunk(unsafe.getLong(this.currentBaseAdr + this.currentOffset));
+                nextChunk();
             }
         } while (totalByteRemaining > 0);
     }
 
 
+    private void nextChunk() {
+        if (regionLength >= 0) {
+            throw new BufferOverflowException("Read after end of region of " + regionLength + " bytes");
+        }
+        // Get next chunk address in last 8 byte
+        beginNewChunk(unsafe.getLong(this.nextChunkSlot));
+    }
+
+    private void beginValue() {
+        this.aligned = false;
+        beginNewChunk(this.firstChunkAdr);
+        this.aligned = (unsafe.getInt(this.currentBaseAdr + Bins.FLAGS_OFFSET) & Bins.FLAG_ALIGNED) != 0;
+        if (this.aligned) {
+            // Header of first chunk was read before knowing layout
+            alignedRemaining();
+        }
+    }
+
+    /**
+     * With aligned layout a chunk can end with padding, header is the used length
+     */
+    private void alignedRemaining() {
+        this.remaining = Math.max(0, Math.min(this.remaining, unsafe.getInt(this.currentBaseAdr)));
+    }
+
+    private void beginRegion() {
+        this.currentBaseAdr = this.firstChunkAdr;
+        this.currentOffset = Bins.LENGTH_OFFSET;
+        this.remaining = this.regionLength;
+    }
+
     private void beginNewChunk(long chunkAdr) {
         // get bins
-        // FIXME Suport only unsafebin
         // Get baseAdr of allocated memory
         // Get baseOffset of chunk
         // And store this in currentBaseAdr
-        UnsafeBins b = (UnsafeBins) allocator.getBinFromAddr(chunkAdr);
-        this.currentBaseAdr = b.binAddr + b.findOffsetForChunkId(AddrAlign.getChunkId(chunkAdr));
+        Bins b = allocator.getBinFromAddr(chunkAdr);
+        this.currentBaseAdr = b.chunkAddr(AddrAlign.getChunkId(chunkAdr));
         // Put the offset to 4... Don't read chunk size. Always same value as chunk size
         this.currentOffset = Bins.LENGTH_OFFSET;
-        this.remaining = b.userDataChunkSize;
-
+        this.remaining = b.userDataSize(chunkAdr);
+        this.nextChunkSlot = this.currentBaseAdr + Bins.LENGTH_OFFSET + this.remaining;
+        if (this.aligned) {
+            alignedRemaining();
+        }
     }
 
 }
\ No newline at end of file
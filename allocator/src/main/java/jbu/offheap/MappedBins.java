@@ -0,0 +1,132 @@
+package jbu.offheap;
+
+import jbu.exception.CannotMapFileException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bins stored in a memory mapped file. Paging is done by the OS page cache, so a bin can be bigger than RAM.
+ * A mapping is limited to 2GB, the file is mapped by regions of a power of two number of chunks.
+ * Chunk id is region << regionShift | index in region, like segments of {@link UnsafeBins}.
+ * Runs never cross a region.
+ * Mapping live until {@link #close()} (mapped buffers are kept for avoiding unmap by GC). Content of file is not
+ * reloaded on restart, it is only a backing store.
+ */
+class MappedBins extends NativeBins implements MappedBinsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedBins.class);
+
+    private final File file;
+    private final int regionShift;
+    private final long[] regionAddrs;
+    // Keep mapping alive
+    private final MappedByteBuffer[] regions;
+
+    MappedBins(File file, int initialChunkNumber, int chunkSize, int baseAddr) {
+        this(file, initialChunkNumber, chunkSize, baseAddr, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param file
+     * @param initialChunkNumber
+     * @param chunkSize
+     * @param baseAddr
+     * @param maxRegionSize      max size of one mapping, at most 2GB
+     */
+    MappedBins(File file, int initialChunkNumber, int chunkSize, int baseAddr, int maxRegionSize) {
+        super(initialChunkNumber, chunkSize, baseAddr, true);
+        this.file = file;
+        // Greatest power of two number of chunks in a region, no more than needed
+        int maxRegionShift = 31 - Integer.numberOfLeadingZeros(Math.max(1, maxRegionSize / chunkSize));
+        this.regionShift = Math.min(maxRegionShift, 32 - Integer.numberOfLeadingZeros(initialChunkNumber - 1));
+        int nbRegions = (int) (((long) initialChunkNumber + (1L << regionShift) - 1) >>> regionShift);
+        this.regionAddrs = new long[nbRegions];
+        this.regions = new MappedByteBuffer[nbRegions];
+        long fileSize = (long) initialChunkNumber * (long) realChunkSize;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(fileSize);
+            FileChannel channel = raf.getChannel();
+            // Mapping stay valid after channel is closed
+            for (int r = 0; r < nbRegions; r++) {
+                long position = ((long) r << regionShift) * realChunkSize;
+                long regionSize = Math.min(fileSize - position, (long) realChunkSize << regionShift);
+                regions[r] = channel.map(FileChannel.MapMode.READ_WRITE, position, regionSize);
+                regionAddrs[r] = bufferAddress(regions[r]);
+            }
+        } catch (IOException e) {
+            throw new CannotMapFileException("Cannot map " + file + " of " + fileSize + " bytes", e);
+        }
+        LOGGER.info("map_file, file: {}, size: {} MB, chunk_size: {}, regions: {}, base_logical_addr: {}"
+                , file, fileSize / 1024 / 1024, chunkSize, nbRegions, baseAddr);
+    }
+
+    @Override
+    long chunkAddr(int chunkId) {
+        return regionAddrs[AddrAlign.getSegmentId(chunkId, regionShift)]
+                + (long) AddrAlign.getIndexInSegment(chunkId, regionShift) * (long) realChunkSize;
+    }
+
+    @Override
+    long[] nativeRegions() {
+        long[] res = new long[2 * regions.length];
+        for (int r = 0; r < regions.length; r++) {
+            res[2 * r] = regionAddrs[r];
+            res[2 * r + 1] = regions[r].capacity();
+        }
+        return res;
+    }
+
+    @Override
+    boolean isFileBacked() {
+        return true;
+    }
+
+    @Override
+    int runAlignShift() {
+        return regionShift;
+    }
+
+    /**
+     * Write dirty pages of all regions to the file
+     */
+    @Override
+    void force() {
+        for (MappedByteBuffer region : regions) {
+            if (region != null) {
+                region.force();
+            }
+        }
+    }
+
+    /**
+     * Write dirty pages and unmap all regions
+     */
+    @Override
+    synchronized void close() {
+        force();
+        for (int r = 0; r < regions.length; r++) {
+            if (regions[r] != null) {
+                unmap(regions[r]);
+                regions[r] = null;
+                regionAddrs[r] = 0;
+            }
+        }
+        LOGGER.info("unmap_file, file: {}", file);
+    }
+
+    @Override
+    public String getFile() {
+        return file.getAbsolutePath();
+    }
+
+    @Override
+    public int getMappedRegions() {
+        return regions.length;
+    }
+}
@@ -0,0 +1,21 @@
+package jbu.offheap;
+
+public interface MappedBinsMBean extends BinsStatsMBean {
+    int getAllocatedChunks();
+
+    long getUsedSize();
+
+    long getReservedMemory();
+
+    String getFile();
+
+    int getMappedRegions();
+
+    long getMagazineHits();
+
+    long getMagazineMisses();
+
+    double getMagazineHitRate();
+
+    int getMagazineCachedChunks();
+}
@@ -0,0 +1,156 @@
+package jbu.offheap;
+
+import static jbu.UnsafeUtil.unsafe;
+
+import jbu.exception.BufferOverflowException;
+import jbu.exception.InvalidJvmException;
+import jbu.UnsafeReflection;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Bins storing chunks in native memory. Subclasses only give the native address of a chunk
+ * and manage free chunks.
+ */
+abstract class NativeBins extends Bins {
+
+    static final long UNSAFE_COPY_THRESHOLD = 1024L * 1024L;
+
+    private long arrayBaseOffset = (long) unsafe.arrayBaseOffset(byte[].class);
+
+    // Method for get address of a direct byte buffer
+    private static final Field BUFFER_ADDR;
+
+    static {
+        try {
+            BUFFER_ADDR = Buffer.class.getDeclaredField("address");
+            BUFFER_ADDR.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            // Never append ??
+            throw new InvalidJvmException("Cannot use NativeBins in this JVM", e);
+        }
+    }
+
+    /**
+     * Release mapping of a direct buffer now instead of at its GC. Buffer must never be used after.
+     * Use Unsafe.invokeCleaner (java 9+) or the cleaner of buffer (java 7, 8)
+     *
+     * @param directBuffer
+     */
+    static void unmap(ByteBuffer directBuffer) {
+        try {
+            Method invokeCleaner = unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(unsafe, directBuffer);
+            return;
+        } catch (NoSuchMethodException e) {
+            // Java 7, 8
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new InvalidJvmException("Cannot unmap buffer", e);
+        }
+        try {
+            Method cleanerMethod = directBuffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(directBuffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new InvalidJvmException("Cannot unmap buffer", e);
+        }
+    }
+
+    /**
+     * @param directBuffer
+     * @return native address of first byte of a direct buffer
+     */
+    static long bufferAddress(ByteBuffer directBuffer) {
+        return UnsafeReflection.getLong(BUFFER_ADDR, directBuffer);
+    }
+
+    protected NativeBins(int initialChunkNumber, int realChunkSize, int baseAddr, boolean useBitmap) {
+        super(initialChunkNumber, realChunkSize, baseAddr, useBitmap);
+    }
+
+    @Override
+    boolean storeInRun(long chunkAdr, byte[] data, final int currentOffset, final int length) {
+        int capacity = userDataSize(chunkAdr);
+        // check size for avoid overflow on other chunk
+        if (length > capacity) {
+            throw new BufferOverflowException("Try to store too many data. Store "
+                    + data.length + " in " + capacity);
+        }
+        long baseAddr = chunkAddr(AddrAlign.getChunkId(chunkAdr));
+
+        // put the length
+        unsafe.putInt(baseAddr, length);
+        unsafe.putInt(baseAddr + FLAGS_OFFSET, 0);
+        long dstAddr = baseAddr + LENGTH_OFFSET;
+        long offset = arrayBaseOffset;
+        int byteToStore = length;
+        while (byteToStore > 0) {
+            long size = (byteToStore > UNSAFE_COPY_THRESHOLD) ? UNSAFE_COPY_THRESHOLD : byteToStore;
+            unsafe.copyMemory(data, offset + currentOffset, null, dstAddr, size);
+            byteToStore -= size;
+            offset += size;
+            dstAddr += size;
+        }
+        return true;
+    }
+
+    @Override
+    boolean storeInRun(long chunkAdr, ByteBuffer data) {
+        // Read only data between position and chunksize or buffer limit
+        int length = Math.min(data.remaining(), userDataSize(chunkAdr));
+        if (data.isDirect()) {
+            long baseAddr = chunkAddr(AddrAlign.getChunkId(chunkAdr));
+            // put the length
+            unsafe.putInt(baseAddr, length);
+            unsafe.putInt(baseAddr + FLAGS_OFFSET, 0);
+            // Data begin after the length and flags ints
+            long dstAddr = baseAddr + LENGTH_OFFSET;
+            // put data from source position
+            unsafe.copyMemory(bufferAddress(data) + data.position(), dstAddr, length);
+        } else if (data.hasArray()) {
+            // Copy from backing array, no temporary array
+            storeInRun(chunkAdr, data.array(), data.arrayOffset() + data.position(), length);
+        } else {
+            // Read only heap buffer, its array is not reachable
+            byte[] tmp = new byte[length];
+            data.duplicate().get(tmp);
+            storeInRun(chunkAdr, tmp, 0, length);
+        }
+        // update source position
+        data.position(data.position() + length);
+        return true;
+    }
+
+    @Override
+    byte[] loadFromChunk(int chunkId) {
+        long baseAddr = chunkAddr(chunkId);
+        int size = unsafe.getInt(baseAddr);
+        byte[] data = new byte[size];
+        unsafe.copyMemory(null, baseAddr + LENGTH_OFFSET, data, arrayBaseOffset, size);
+        return data;
+    }
+
+    @Override
+    void setNextChunkId(int currentChunkId, long nextChunkId) {
+        // Set nextChunkId to last 8 bytes of currentChunkId
+        long nextChunkOffset = chunkAddr(currentChunkId) + userDataChunkSize + LENGTH_OFFSET;
+        unsafe.putLong(nextChunkOffset, nextChunkId);
+    }
+
+    @Override
+    long getNextChunkId(int currentChunkId) {
+        // Set nextChunkId to last 8 bytes of currentChunkId
+        long nextChunkOffset = chunkAddr(currentChunkId) + userDataChunkSize + LENGTH_OFFSET;
+        return unsafe.getLong(nextChunkOffset);
+    }
+
+}
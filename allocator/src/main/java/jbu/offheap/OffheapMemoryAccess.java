@@ -1,9 +1,18 @@
 package jbu.offheap;
 
 import jbu.exception.BufferOverflowException;
+import jbu.exception.InvalidParameterException;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static jbu.UnsafeUtil.unsafe;
 
 public class OffheapMemoryAccess {
 
@@ -19,17 +28,16 @@ public class OffheapMemoryAccess {
         long currentChunkAdr = firstChunkAdr;
         int currentOffset = 0;
         while (currentOffset < data.length) {
-            int currentChunkId = AddrAlign.getChunkId(currentChunkAdr);
             // Check if currentChunkId = -1 Error
             if (currentChunkAdr == -1) {
                 throw new BufferOverflowException("Data is too large");
             }
             Bins bin = allocator.getBinFromAddr(currentChunkAdr);
-            int chunkSize = bin.userDataChunkSize;
-            bin.storeInChunk(currentChunkId, data, currentOffset,
+            int chunkSize = bin.userDataSize(currentChunkAdr);
+            bin.storeInRun(currentChunkAdr, data, currentOffset,
                     (data.length - currentOffset > chunkSize) ? chunkSize : data.length - currentOffset);
             currentOffset += chunkSize;
-            currentChunkAdr = bin.getNextChunkId(currentChunkId);
+            currentChunkAdr = bin.getNextChunkAdr(currentChunkAdr);
         }
     }
 
@@ -39,31 +47,115 @@ public class OffheapMemoryAccess {
         // Store only from position to limit
         long currentChunkAdr = firstChunkAdr;
         while (data.remaining() > 0) {
-            int currentChunkId = AddrAlign.getChunkId(currentChunkAdr);
             // Check if currentChunkId = -1 Error
             if (currentChunkAdr == -1) {
                 throw new BufferOverflowException("Data is too large");
             }
             Bins bin = allocator.getBinFromAddr(currentChunkAdr);
-            bin.storeInChunk(currentChunkId, data);
-            currentChunkAdr = bin.getNextChunkId(currentChunkId);
+            bin.storeInRun(currentChunkAdr, data);
+            currentChunkAdr = bin.getNextChunkAdr(currentChunkAdr);
         }
     }
 
+    /**
+     * Copy value in a new array. Use {@link Allocator#getView(long)} for reading without copy
+     *
+     * @param firstChunkAdr
+     * @return
+     */
     public byte[] load(long firstChunkAdr) {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        byte[] tmpB;
+        OffheapView view = allocator.getView(firstChunkAdr);
+        byte[] res = new byte[(int) view.length()];
+        int offset = 0;
+        for (ByteBuffer buffer : view.buffers()) {
+            int length = buffer.remaining();
+            buffer.get(res, offset, length);
+            offset += length;
+        }
+        view.release();
+        return res;
+    }
+
+    /**
+     * Write a value to a channel with one vectored write by chain, bytes don't go through the heap.
+     * With a non blocking channel stop when channel accept no more bytes
+     *
+     * @param firstChunkAdr
+     * @param channel
+     * @return number of written bytes
+     * @throws IOException
+     */
+    public long writeTo(long firstChunkAdr, GatheringByteChannel channel) throws IOException {
+        OffheapView view = allocator.getView(firstChunkAdr);
+        try {
+            ByteBuffer[] buffers = view.buffers();
+            long total = 0;
+            while (total < view.length()) {
+                long written = channel.write(buffers);
+                if (written <= 0) {
+                    break;
+                }
+                total += written;
+            }
+            return total;
+        } finally {
+            view.release();
+        }
+    }
+
+    /**
+     * Read {@code length} bytes of a channel in a new value with vectored reads directly in chunks.
+     * Channel must be blocking: a value is complete or not created, a non blocking channel is rejected. A read of
+     * 0 byte stop the read (no busy loop) and fail like an end of channel
+     *
+     * @param channel blocking channel
+     * @param length
+     * @return address of value or -1 if memory cannot be allocated
+     * @throws InvalidParameterException if channel is a non blocking {@link SelectableChannel}
+     * @throws EOFException if channel end or read nothing before {@code length} bytes, value is freed
+     * @throws IOException
+     */
+    public long readFrom(ScatteringByteChannel channel, int length) throws IOException {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new InvalidParameterException("Channel must be blocking");
+        }
+        long firstChunkAdr = allocator.alloc(length);
+        if (firstChunkAdr < 0) {
+            return -1;
+        }
+        List<ByteBuffer> buffers = new ArrayList<>(1);
+        int remaining = length;
         long currentChunkAdr = firstChunkAdr;
-        // Get data of current chunk
         while (currentChunkAdr != -1) {
-            int currentChunkId = AddrAlign.getChunkId(currentChunkAdr);
             Bins bin = allocator.getBinFromAddr(currentChunkAdr);
-            tmpB = bin.loadFromChunk(currentChunkId);
-            bout.write(tmpB, 0, tmpB.length);
-            // get next chunk
-            currentChunkAdr = bin.getNextChunkId(currentChunkId);
+            long baseAddr = bin.chunkAddr(AddrAlign.getChunkId(currentChunkAdr));
+            int chunkLength = Math.min(remaining, bin.userDataSize(currentChunkAdr));
+            unsafe.putInt(baseAddr, chunkLength);
+            unsafe.putInt(baseAddr + Bins.FLAGS_OFFSET, 0);
+            buffers.add(OffheapView.directBuffer(baseAddr + Bins.LENGTH_OFFSET, chunkLength));
+            remaining -= chunkLength;
+            currentChunkAdr = bin.getNextChunkAdr(currentChunkAdr);
         }
-        return bout.toByteArray();
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+        long total = 0;
+        boolean done = false;
+        try {
+            while (total < length) {
+                long read = channel.read(array);
+                if (read < 0) {
+                    throw new EOFException("Channel ended after " + total + " bytes of " + length);
+                }
+                if (read == 0) {
+                    throw new EOFException("Channel read nothing after " + total + " bytes of " + length);
+                }
+                total += read;
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                allocator.free(firstChunkAdr);
+            }
+        }
+        return firstChunkAdr;
     }
-
 }
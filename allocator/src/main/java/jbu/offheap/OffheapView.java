@@ -0,0 +1,138 @@
+package jbu.offheap;
+
+import jbu.exception.InvalidJvmException;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static jbu.UnsafeUtil.unsafe;
+
+/**
+ * Read only view over a stored value, without copy.
+ * Each element of the chain (chunk or run) is one direct {@link ByteBuffer} over its data in native memory, in
+ * native byte order like {@link StoreContext} writes. A flat value is one buffer.
+ * Length of each buffer is the length in header of its chunk (whole chunk for a value written by a
+ * {@link StoreContext}).
+ * View is valid until {@link #release()}. When created with an {@link EpochReclaimer} the value cannot be freed
+ * before release, and release must be done by the thread which created the view.
+ */
+public final class OffheapView {
+
+    private static final long ADDRESS_OFFSET;
+    private static final long CAPACITY_OFFSET;
+    private static final long LIMIT_OFFSET;
+    // Duplicated for each buffer, its native memory is never used
+    private static final ByteBuffer TEMPLATE = ByteBuffer.allocateDirect(0);
+
+    static {
+        try {
+            ADDRESS_OFFSET = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+            CAPACITY_OFFSET = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("capacity"));
+            LIMIT_OFFSET = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("limit"));
+        } catch (NoSuchFieldException e) {
+            throw new InvalidJvmException("Cannot create direct buffer over native memory in this JVM", e);
+        }
+    }
+
+    private final ByteBuffer[] buffers;
+    private final long length;
+    private final EpochReclaimer reclaimer;
+    private boolean released = false;
+
+    OffheapView(Allocator allocator, long firstChunkAdr, EpochReclaimer reclaimer) {
+        this.reclaimer = reclaimer;
+        if (reclaimer != null) {
+            reclaimer.enter();
+        }
+        List<ByteBuffer> res = new ArrayList<>(1);
+        long total = 0;
+        long currentAdr = firstChunkAdr;
+        while (currentAdr != -1) {
+            Bins bin = allocator.getBinFromAddr(currentAdr);
+            long baseAddr = bin.chunkAddr(AddrAlign.getChunkId(currentAdr));
+            int chunkLength = Math.max(0, Math.min(unsafe.getInt(baseAddr), bin.userDataSize(currentAdr)));
+            res.add(wrap(baseAddr + Bins.LENGTH_OFFSET, chunkLength));
+            total += chunkLength;
+            currentAdr = bin.getNextChunkAdr(currentAdr);
+        }
+        this.buffers = res.toArray(new ByteBuffer[res.size()]);
+        this.length = total;
+    }
+
+    /**
+     * @return a read only direct buffer over {@code length} bytes at {@code address}
+     */
+    static ByteBuffer wrap(long address, int length) {
+        return directBuffer(address, length).asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return a writable direct buffer over {@code length} bytes at {@code address}, it does not own the memory
+     */
+    static ByteBuffer directBuffer(long address, int length) {
+        ByteBuffer buffer = TEMPLATE.duplicate();
+        unsafe.putLong(buffer, ADDRESS_OFFSET, address);
+        unsafe.putInt(buffer, CAPACITY_OFFSET, length);
+        unsafe.putInt(buffer, LIMIT_OFFSET, length);
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return true if value is one chunk or run, {@link #buffer()} can be used
+     */
+    public boolean isContiguous() {
+        return buffers.length == 1;
+    }
+
+    /**
+     * @return the only buffer of a contiguous value
+     * @throws IllegalStateException if value is chained or view is released
+     */
+    public ByteBuffer buffer() {
+        checkNotReleased();
+        if (buffers.length != 1) {
+            throw new IllegalStateException("Value is chained in " + buffers.length + " buffers");
+        }
+        return buffers[0];
+    }
+
+    /**
+     * @return one buffer by element of chain, in order
+     */
+    public ByteBuffer[] buffers() {
+        checkNotReleased();
+        return buffers.clone();
+    }
+
+    /**
+     * @return sum of remaining bytes of buffers at creation
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * End of view. Buffers are emptied, they must not be used after
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (ByteBuffer buffer : buffers) {
+            buffer.limit(0);
+        }
+        if (reclaimer != null) {
+            reclaimer.exit();
+        }
+    }
+
+    private void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("View is released");
+        }
+    }
+}
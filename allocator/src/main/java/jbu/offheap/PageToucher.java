@@ -0,0 +1,150 @@
+package jbu.offheap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static jbu.UnsafeUtil.unsafe;
+
+/**
+ * Fault in all pages of native regions with a fork join pool, one access by page.
+ * A page of anonymous memory is touched by writing back its first byte so content is not changed. A page of a mapped
+ * file is only read: it is loaded from the page cache but never dirtied, else the whole file would be written back.
+ * Progress is logged every second while touching.
+ */
+final class PageToucher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageToucher.class);
+
+    // Regions are split in tasks of this size
+    private static final long TASK_SIZE = 64L * 1024L * 1024L;
+
+    private final long[] regions;
+    private final long[] fileRegions;
+    private final long totalBytes;
+    private final long pageSize = unsafe.pageSize();
+    private final AtomicLong touchedBytes = new AtomicLong(0);
+    private volatile long elapsedMillis = 0;
+    private volatile int blackhole;
+
+    /**
+     * @param regions     native regions as address, length pairs
+     * @param fileRegions regions of mapped files as address, length pairs, read only
+     */
+    PageToucher(long[] regions, long[] fileRegions) {
+        this.regions = regions;
+        this.fileRegions = fileRegions;
+        long total = 0;
+        for (int i = 1; i < regions.length; i += 2) {
+            total += regions[i];
+        }
+        for (int i = 1; i < fileRegions.length; i += 2) {
+            total += fileRegions[i];
+        }
+        this.totalBytes = total;
+    }
+
+    /**
+     * Touch all pages and wait the end
+     *
+     * @param parallelism number of threads
+     */
+    void touch(int parallelism) {
+        long begin = System.currentTimeMillis();
+        LOGGER.info("pre_touch_begin, size: {} MB, regions: {}, parallelism: {}",
+                totalBytes / 1024 / 1024, (regions.length + fileRegions.length) / 2, parallelism);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Future<Void> done = pool.submit(new RegionsTask());
+            for (; ; ) {
+                try {
+                    done.get(1, TimeUnit.SECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    long touched = touchedBytes.get();
+                    LOGGER.info("pre_touch_progress, touched: {} MB, percent: {}",
+                            touched / 1024 / 1024, totalBytes == 0 ? 100 : touched * 100 / totalBytes);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Pre touch interrupted, remaining pages are lazily committed");
+        } catch (ExecutionException e) {
+            LOGGER.warn("Pre touch failed, remaining pages are lazily committed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        elapsedMillis = System.currentTimeMillis() - begin;
+        LOGGER.info("pre_touch_end, touched: {} MB, time: {} ms", touchedBytes.get() / 1024 / 1024, elapsedMillis);
+    }
+
+    long getTouchedBytes() {
+        return touchedBytes.get();
+    }
+
+    long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    private final class RegionsTask extends RecursiveAction {
+        @Override
+        protected void compute() {
+            int nbRegions = regions.length / 2;
+            RangeTask[] tasks = new RangeTask[nbRegions + fileRegions.length / 2];
+            for (int i = 0; i < nbRegions; i++) {
+                tasks[i] = new RangeTask(regions[2 * i], regions[2 * i + 1], true);
+            }
+            for (int i = nbRegions; i < tasks.length; i++) {
+                int r = i - nbRegions;
+                tasks[i] = new RangeTask(fileRegions[2 * r], fileRegions[2 * r + 1], false);
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private final class RangeTask extends RecursiveAction {
+        private final long addr;
+        private final long length;
+        private final boolean write;
+
+        RangeTask(long addr, long length, boolean write) {
+            this.addr = addr;
+            this.length = length;
+            this.write = write;
+        }
+
+        @Override
+        protected void compute() {
+            if (length > TASK_SIZE) {
+                // Split on a page boundary
+                long half = (length / 2) & ~(pageSize - 1);
+                invokeAll(new RangeTask(addr, half, write), new RangeTask(addr + half, length - half, write));
+                return;
+            }
+            long end = addr + length;
+            // First byte, then first byte of each following page. Never touch outside of the range
+            int sum = touchByte(addr);
+            for (long page = (addr & ~(pageSize - 1)) + pageSize; page < end; page += pageSize) {
+                sum += touchByte(page);
+            }
+            touchedBytes.getAndAdd(length);
+            // Keep reads of mapped pages alive
+            blackhole = sum;
+        }
+
+        private int touchByte(long a) {
+            byte b = unsafe.getByte(a);
+            if (write) {
+                unsafe.putByte(a, b);
+            }
+            return b;
+        }
+    }
+}
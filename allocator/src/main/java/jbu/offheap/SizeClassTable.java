@@ -0,0 +1,54 @@
+package jbu.offheap;
+
+/**
+ * Constant time lookup of size class by user data size.
+ * Sizes are grouped by power of two (octave). For each octave the table keep the first class able to contain
+ * a size of this octave. Lookup is a {@link Integer#numberOfLeadingZeros(int)} then a walk limited to classes
+ * of same octave (none for power of two classes).
+ */
+final class SizeClassTable {
+
+    // User data size of each class, sorted
+    private final int[] userSizes;
+    // For octave b (sizes in ]2^(b-1), 2^b]) index of first class with user size > 2^(b-1)
+    private final int[] octaveStart = new int[33];
+
+    SizeClassTable(int[] userSizes) {
+        this.userSizes = userSizes;
+        for (int b = 0; b < octaveStart.length; b++) {
+            long lowBound = b == 0 ? 0 : 1L << (b - 1);
+            int i = 0;
+            while (i < userSizes.length && userSizes[i] <= lowBound) {
+                i++;
+            }
+            octaveStart[b] = i;
+        }
+    }
+
+    /**
+     * @param size
+     * @return index of smallest class with user size >= {@code size}, or number of classes if size is too big
+     */
+    int ceilIndex(int size) {
+        if (size <= 1) {
+            return 0;
+        }
+        int i = octaveStart[32 - Integer.numberOfLeadingZeros(size - 1)];
+        while (i < userSizes.length && userSizes[i] < size) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param size
+     * @return index of greatest class with user size <= {@code size}, or -1 if size is smaller than all classes
+     */
+    int floorIndex(int size) {
+        int i = ceilIndex(size);
+        if (i < userSizes.length && userSizes[i] == size) {
+            return i;
+        }
+        return i - 1;
+    }
+}
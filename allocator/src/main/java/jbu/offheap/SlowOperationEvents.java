@@ -0,0 +1,88 @@
+package jbu.offheap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Custom JFR event {@code jbu.offheap.SlowOperation} for allocator operations slower than a threshold.
+ * Event is defined at runtime with jdk.jfr.EventFactory (JDK 12+) by reflection, the allocator still build and
+ * run on older JVM where events are silently not available.
+ * Only called on slow operations, reflection cost don't matter.
+ */
+final class SlowOperationEvents {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlowOperationEvents.class);
+
+    private static final Object FACTORY;
+    private static final Method NEW_EVENT;
+    private static final Method SET;
+    private static final Method COMMIT;
+
+    static {
+        Object factory = null;
+        Method newEvent = null;
+        Method set = null;
+        Method commit = null;
+        try {
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+            List<Object> annotations = Arrays.asList(
+                    annotationElement.newInstance(annotationClass("jdk.jfr.Name"), "jbu.offheap.SlowOperation"),
+                    annotationElement.newInstance(annotationClass("jdk.jfr.Label"), "Slow Off-heap Operation"),
+                    annotationElement.newInstance(annotationClass("jdk.jfr.Category"), new String[]{"Off-heap"}));
+            // Field order is index used by set
+            List<Object> fields = Arrays.asList(
+                    valueDescriptor.newInstance(String.class, "operation"),
+                    valueDescriptor.newInstance(long.class, "durationNanos"),
+                    valueDescriptor.newInstance(long.class, "size"));
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+            factory = eventFactoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            newEvent = eventFactoryClass.getMethod("newEvent");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            commit = eventClass.getMethod("commit");
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            LOGGER.info("jfr_events_not_available, cause: {}", e.toString());
+            factory = null;
+        }
+        FACTORY = factory;
+        NEW_EVENT = newEvent;
+        SET = set;
+        COMMIT = commit;
+    }
+
+    private SlowOperationEvents() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Annotation> annotationClass(String name) throws ClassNotFoundException {
+        return (Class<? extends Annotation>) Class.forName(name);
+    }
+
+    static boolean isAvailable() {
+        return FACTORY != null;
+    }
+
+    static void commit(String operation, long durationNanos, long size) {
+        if (FACTORY == null) {
+            return;
+        }
+        try {
+            Object event = NEW_EVENT.invoke(FACTORY);
+            SET.invoke(event, 0, operation);
+            SET.invoke(event, 1, durationNanos);
+            SET.invoke(event, 2, size);
+            COMMIT.invoke(event);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("cannot_commit_jfr_event", e);
+        }
+    }
+}
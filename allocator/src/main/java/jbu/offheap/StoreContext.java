@@ -1,5 +1,6 @@
 package jbu.offheap;
 
+import jbu.exception.BufferOverflowException;
 import jbu.exception.OutOfOffheapMemoryException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,17 +19,59 @@ public class StoreContext {
     private long currentBaseAdr;
     private int currentOffset;
     private int remaining;
+    // Bytes written in chunks before current chunk
+    private int writtenBeforeChunk;
     private final Allocator allocator;
+    // User data length of a context over one native region, -1 for a context over a chain of chunks
+    private final int regionLength;
+    // Never split a primitive across chunks, pad end of chunk instead
+    private final boolean aligned;
 
-    StoreContext(Allocator allocator, long firstChunkAdr) {
+    StoreContext(Allocator allocator, long firstChunkAdr, boolean aligned) {
         this.firstChunkAdr = firstChunkAdr;
         this.currentChunkAdr = firstChunkAdr;
         this.allocator = allocator;
-        beginNewChunk(firstChunkAdr);
+        this.regionLength = -1;
+        this.aligned = aligned;
+        beginValue();
+    }
+
+    /**
+     * Context over a native region laid out like a chunk (length header then data) but without next chunk
+     *
+     * @param regionAdr    native address of region
+     * @param regionLength length of user data
+     */
+    StoreContext(long regionAdr, int regionLength) {
+        this.firstChunkAdr = regionAdr;
+        this.currentChunkAdr = -1;
+        this.allocator = null;
+        this.regionLength = regionLength;
+        this.aligned = false;
+        beginRegion();
     }
 
     public void reuse() {
-        beginNewChunk(this.firstChunkAdr);
+        this.writtenBeforeChunk = 0;
+        if (regionLength >= 0) {
+            beginRegion();
+        } else {
+            beginValue();
+        }
+    }
+
+    /**
+     * Reuse this context for writing another value, avoid a new context by value
+     *
+     * @param firstChunkAdr
+     */
+    public void reset(long firstChunkAdr) {
+        if (regionLength >= 0) {
+            throw new IllegalStateException("Context over a region cannot be moved");
+        }
+        this.firstChunkAdr = firstChunkAdr;
+        this.writtenBeforeChunk = 0;
+        beginValue();
     }
 
     public void storeInt(int value) {
@@ -74,7 +117,7 @@ public class StoreContext {
         int byteRemaining = SHORT_LENGTH;
         if (this.remaining >= SHORT_LENGTH) {
             // copy all
-            unsafe.putInt(this.currentBaseAdr + this.currentOffset, value);
+            unsafe.putShort(this.currentBaseAdr + this.currentOffset, value);
             this.currentOffset += SHORT_LENGTH;
             this.remaining -= SHORT_LENGTH;
             byteRemaining -= SHORT_LENGTH;
@@ -91,7 +134,7 @@ public class StoreContext {
         int byteRemaining = CHAR_LENGTH;
         if (this.remaining >= CHAR_LENGTH) {
             // copy all
-            unsafe.putInt(this.currentBaseAdr + this.currentOffset, value);
+            unsafe.putChar(this.currentBaseAdr + this.currentOffset, value);
             this.currentOffset += CHAR_LENGTH;
             this.remaining -= CHAR_LENGTH;
             byteRemaining -= CHAR_LENGTH;
@@ -108,7 +151,7 @@ public class StoreContext {
         int byteRemaining = FLOAT_LENGTH;
         if (this.remaining >= FLOAT_LENGTH) {
             // copy all
-            //unsafe.putInt(this.currentBaseAdr + this.currentOffset, value);
+            unsafe.putFloat(this.currentBaseAdr + this.currentOffset, value);
             this.currentOffset += FLOAT_LENGTH;
             this.remaining -= FLOAT_LENGTH;
             byteRemaining -= FLOAT_LENGTH;
@@ -120,22 +163,26 @@ public class StoreContext {
 
     public void storeDouble(double value) {
         if (LOGGER_IS_TRACE_ENABLED) {
-            LOGGER.trace("store_long, value {}, binary_value: {}, remaining {}",
+            LOGGER.trace("store_double, value {}, binary_value: {}, remaining {}",
                     value, Double.toHexString(value), remaining);
         }
-        int byteRemaining = LONG_LENGTH;
-        if (this.remaining >= LONG_LENGTH) {
+        int byteRemaining = DOUBLE_LENGTH;
+        if (this.remaining >= DOUBLE_LENGTH) {
             // copy all
-            //unsafe.putInt(this.currentBaseAdr + this.currentOffset, value);
-            this.currentOffset += LONG_LENGTH;
-            this.remaining -= LONG_LENGTH;
-            byteRemaining -= LONG_LENGTH;
+            unsafe.putDouble(this.currentBaseAdr + this.currentOffset, value);
+            this.currentOffset += DOUBLE_LENGTH;
+            this.remaining -= DOUBLE_LENGTH;
+            byteRemaining -= DOUBLE_LENGTH;
         } else {
-            storePartialPrimitive(Double.doubleToRawLongBits(value), byteRemaining, LONG_LENGTH);
+            storePartialPrimitive(Double.doubleToRawLongBits(value), byteRemaining, DOUBLE_LENGTH);
         }
     }
 
     private void storePartialPrimitive(long value, int byteRemaining, int primitiveLength) {
+        if (aligned) {
+            storeInNextChunk(value, primitiveLength);
+            return;
+        }
         do {
             if (this.remaining >= BYTE_LENGTH) {
                 // copy first byte
@@ -154,15 +201,7 @@ public class StoreContext {
                 if (LOGGER_IS_DEBUG_ENABLED) {
                     LOGGER.debug("chunk_full, remaining: {}", byteRemaining);
                 }
-                // If not enough memory reserved. We can take more chunk at runtime
-                // Get next chunk address in last 8 byte
-                long nextChunkAdr = unsafe.getLong(this.currentBaseAdr + this.currentOffset);
-                if (nextChunkAdr >= 0) {
-                    beginNewChunk(nextChunkAdr);
-                } else {
-                    // Try to take more memory. Ask for a new chunk of same size as current
-                    allocateAndBeginNewChunk();
-                }
+                nextChunk();
             }
         } while (byteRemaining > 0);
     }
@@ -179,15 +218,7 @@ public class StoreContext {
                 if (LOGGER_IS_DEBUG_ENABLED) {
                     LOGGER.debug("chunk_full, remaining: {}", byteRemaining);
                 }
-                // If not enough memory reserved. We can take more chunk at runtime
-                // Get next chunk address in last 8 byte
-                long nextChunkAdr = unsafe.getLong(this.currentBaseAdr + this.currentOffset);
-                if (nextChunkAdr >= 0) {
-                    beginNewChunk(nextChunkAdr);
-                } else {
-                    // Try to take more memory. Ask for a new chunk of same size as current
-                    allocateAndBeginNewChunk();
-                }
+                nextChunk();
             }
             int byteToCopy = (this.remaining > byteRemaining) ? byteRemaining : this.remaining;
             unsafe.copyMemory(object, offset + (length - byteRemaining), null, this.currentBaseAdr + this.currentOffset, byteToCopy);
@@ -198,11 +229,65 @@ public class StoreContext {
         } while (byteRemaining > 0);
     }
 
+    /**
+     * @return number of bytes written since creation or last {@link #reuse()}, exact size of value for
+     * {@link Allocator#realloc(long, int)}
+     */
+    public int getWrittenBytes() {
+        return this.writtenBeforeChunk + this.currentOffset - Bins.LENGTH_OFFSET;
+    }
+
+    /**
+     * Aligned layout: end of chunk is padding, its length header is the used length so loader know where padding
+     * begin. Primitive is written in one time at beginning of next chunk
+     */
+    private void storeInNextChunk(long value, int primitiveLength) {
+        unsafe.putInt(this.currentBaseAdr, this.currentOffset - Bins.LENGTH_OFFSET);
+        this.currentOffset += this.remaining;
+        this.remaining = 0;
+        nextChunk();
+        long adr = this.currentBaseAdr + this.currentOffset;
+        switch (primitiveLength) {
+            case LONG_LENGTH:
+                unsafe.putLong(adr, value);
+                break;
+            case INT_LENGTH:
+                unsafe.putInt(adr, (int) value);
+                break;
+            case SHORT_LENGTH:
+                unsafe.putShort(adr, (short) value);
+                break;
+            default:
+                unsafe.putByte(adr, (byte) value);
+        }
+        this.currentOffset += primitiveLength;
+        this.remaining -= primitiveLength;
+    }
+
+    private void nextChunk() {
+        if (regionLength >= 0) {
+            // A region has no next chunk and cannot grow
+            throw new BufferOverflowException("Region of " + regionLength + " bytes is full");
+        }
+        // If not enough memory reserved. We can take more chunk at runtime
+        // Get next chunk address in last 8 byte
+        long nextChunkAdr = unsafe.getLong(this.currentBaseAdr + this.currentOffset);
+        this.writtenBeforeChunk += this.currentOffset - Bins.LENGTH_OFFSET;
+        if (nextChunkAdr >= 0) {
+            beginNewChunk(nextChunkAdr);
+        } else {
+            // Try to take more memory. Ask for a new chunk of same size as current
+            allocateAndBeginNewChunk();
+        }
+    }
+
     private void allocateAndBeginNewChunk() {
         // FIXME Why when no more memory can be allocated
+        long start = allocator.beginChunkRefill();
         if (allocator.extend(currentChunkAdr)) {
             long nextChunkAdr = unsafe.getLong(this.currentBaseAdr + this.currentOffset);
             beginNewChunk(nextChunkAdr);
+            allocator.recordChunkRefill(start);
         } else {
             // no more memory
             throw new OutOfOffheapMemoryException("No more memory can be allocated");
@@ -210,17 +295,29 @@ public class StoreContext {
 
     }
 
+    private void beginValue() {
+        beginNewChunk(this.firstChunkAdr);
+        unsafe.putInt(this.currentBaseAdr + Bins.FLAGS_OFFSET, aligned ? Bins.FLAG_ALIGNED : 0);
+    }
+
+    private void beginRegion() {
+        this.currentBaseAdr = this.firstChunkAdr;
+        this.currentOffset = 0;
+        this.remaining = this.regionLength;
+        unsafe.putInt(this.currentBaseAdr, this.remaining);
+        this.currentOffset += Bins.LENGTH_OFFSET;
+    }
+
     private void beginNewChunk(long chunkAdr) {
         // get bins
-        // FIXME Suport only unsafebin
         // Get baseAdr of allocated memory
         // Get baseOffset of chunk
         // And store this in currentBaseAdr
-        UnsafeBins b = (UnsafeBins) allocator.getBinFromAddr(chunkAdr);
+        Bins b = allocator.getBinFromAddr(chunkAdr);
         this.currentChunkAdr = chunkAdr;
-        this.currentBaseAdr = b.binAddr + b.findOffsetForChunkId(AddrAlign.getChunkId(chunkAdr));
+        this.currentBaseAdr = b.chunkAddr(AddrAlign.getChunkId(chunkAdr));
         this.currentOffset = 0;
-        this.remaining = b.userDataChunkSize;
+        this.remaining = b.userDataSize(chunkAdr);
         // put the size of data in 4 first byte
         // FIXME with store context always use full size
         unsafe.putInt(this.currentBaseAdr + this.currentOffset, this.remaining);
@@ -0,0 +1,45 @@
+package jbu.offheap;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 64 bits counter split in cells, like LongAdder of Java 8.
+ * Each thread add in the cell of its id, so concurrent threads mostly update different cache lines.
+ * {@link #sum()} is not atomic with concurrent adds, ok for statistics.
+ */
+final class StripedCounter {
+
+    // One cell by cache line of 64 bytes
+    private static final int PADDING = 8;
+    private static final int NB_CELLS = cellCount(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(NB_CELLS * PADDING);
+
+    private static int cellCount(int nbCpu) {
+        // Power of two at least 2 * number of cpu
+        return Integer.highestOneBit(Math.max(1, nbCpu * 2 - 1)) << 1;
+    }
+
+    private static int cellIndex() {
+        long id = Thread.currentThread().getId();
+        // Spread consecutive thread ids
+        int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return (h & (NB_CELLS - 1)) * PADDING;
+    }
+
+    void add(long x) {
+        cells.getAndAdd(cellIndex(), x);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < NB_CELLS; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
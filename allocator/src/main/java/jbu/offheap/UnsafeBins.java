@@ -1,124 +1,304 @@
 package jbu.offheap;
 
-import static jbu.Primitive.*;
 import static jbu.UnsafeUtil.unsafe;
 
-import jbu.exception.BufferOverflowException;
-import jbu.exception.InvalidJvmException;
-import jbu.UnsafeReflection;
+import jbu.exception.InvalidParameterException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Field;
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-class UnsafeBins extends Bins implements UnsafeBinsMBean {
+class UnsafeBins extends NativeBins implements UnsafeBinsMBean {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(UnsafeBins.class);
 
-    static final long UNSAFE_COPY_THRESHOLD = 1024L * 1024L;
+    // Release of idle segments of all elastic bins. Started on first elastic bin
+    private static final class SegmentReleaser {
+        static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("offheap-segment-releaser").build());
+    }
+
+    // Chunk id is segment id << segmentShift | index in segment
+    private final int segmentShift;
+    private final int segmentChunks;
+    private final int minSegments;
+    private final boolean elastic;
+    private final long segmentIdleMillis;
+    // Base address of each segment, 0 when not allocated
+    private final AtomicLongArray segments;
+    // Time since a segment is seen empty, 0 when not seen empty. Guarded by segmentLock
+    private final long[] emptySince;
+    private final Object segmentLock = new Object();
+    // Incremented on each new segment, avoid growing twice for the same shortage
+    private volatile int segmentGeneration = 0;
+    private volatile int nbSegments;
+
+    UnsafeBins(int initialChunkNumber, int chunkSize, int baseAddr) {
+        this(initialChunkNumber, chunkSize, baseAddr, true);
+    }
 
-    private long arrayBaseOffset = (long) unsafe.arrayBaseOffset(byte[].class);
+    protected UnsafeBins(int initialChunkNumber, int chunkSize, int baseAddr, boolean useBitmap) {
+        this(initialChunkNumber, 32 - Integer.numberOfLeadingZeros(initialChunkNumber - 1), 1, 1,
+                chunkSize, baseAddr, useBitmap, 0);
+    }
+
+    /**
+     * Elastic bin made of segments of {@code segmentChunks} chunks. Begin with {@code initialSegments} segments
+     * and grow when no chunk is free up to {@code maxSegments}. A segment is given back to the OS when it is empty
+     * during {@code segmentIdleMillis} (never if 0) but bin never shrink under {@code initialSegments}.
+     * Chunk ids never change, so addresses stay valid while a segment is present.
+     *
+     * @param segmentChunks     number of chunks by segment, must be a power of two
+     * @param initialSegments
+     * @param maxSegments
+     * @param chunkSize
+     * @param baseAddr
+     * @param segmentIdleMillis
+     */
+    UnsafeBins(int segmentChunks, int initialSegments, int maxSegments, int chunkSize, int baseAddr,
+               long segmentIdleMillis) {
+        this(segmentChunks, checkSegmentShift(segmentChunks), initialSegments, maxSegments, chunkSize, baseAddr,
+                true, segmentIdleMillis);
+    }
+
+    private UnsafeBins(int segmentChunks, int segmentShift, int initialSegments, int maxSegments, int chunkSize,
+                       int baseAddr, boolean useBitmap, long segmentIdleMillis) {
+        super(checkCapacity(segmentShift, segmentChunks, initialSegments, maxSegments), chunkSize, baseAddr, useBitmap);
+        this.segmentShift = segmentShift;
+        this.segmentChunks = segmentChunks;
+        this.minSegments = initialSegments;
+        this.elastic = maxSegments > 1;
+        this.segmentIdleMillis = segmentIdleMillis;
+        this.segments = new AtomicLongArray(maxSegments);
+        this.emptySince = new long[maxSegments];
+        for (int i = 0; i < initialSegments; i++) {
+            segments.set(i, allocateSegment(i));
+        }
+        this.nbSegments = initialSegments;
+        // Chunks of not allocated segments are never free
+        for (int i = initialSegments; i < maxSegments; i++) {
+            chunks.claimRange(AddrAlign.constructChunkId(i, 0, segmentShift), segmentChunks);
+        }
+        if (elastic && segmentIdleMillis > 0) {
+            IdleSegmentTask.schedule(this, segmentIdleMillis);
+        }
+    }
 
-    // Method for get address of a direct byte buffer
-    private static final Field BUFFER_ADDR;
+    private static int checkSegmentShift(int segmentChunks) {
+        if (segmentChunks <= 0 || Integer.bitCount(segmentChunks) != 1) {
+            throw new InvalidParameterException("Number of chunks by segment must be a power of two");
+        }
+        return Integer.numberOfTrailingZeros(segmentChunks);
+    }
 
-    static {
-        try {
-            BUFFER_ADDR = Buffer.class.getDeclaredField("address");
-            BUFFER_ADDR.setAccessible(true);
-        } catch (NoSuchFieldException e) {
-            // Never append ??
-            throw new InvalidJvmException("Cannot use UnsafeBins in this JVM", e);
+    private static int checkCapacity(int segmentShift, int segmentChunks, int initialSegments, int maxSegments) {
+        if (initialSegments <= 0 || maxSegments < initialSegments) {
+            throw new InvalidParameterException("Segments must be 0 < initialSegments <= maxSegments");
+        }
+        if (maxSegments > 1 && ((long) maxSegments << segmentShift) > Integer.MAX_VALUE) {
+            throw new InvalidParameterException("Too many chunks in bin, max is " + Integer.MAX_VALUE);
         }
+        return maxSegments == 1 ? segmentChunks : maxSegments << segmentShift;
     }
 
-    final long binAddr;
+    private long allocateSegment(int segmentId) {
+        long segmentSize = (long) segmentChunks * (long) realChunkSize;
+        long segmentAddr = unsafe.allocateMemory(segmentSize);
+        LOGGER.info("allocate_buffer, size: {} MB, chunk_size: {}, base_logical_addr: {}, segment: {}, begin_addr: {}"
+                , segmentSize / 1024 / 1024, realChunkSize, baseAddr, segmentId, segmentAddr);
+        return segmentAddr;
+    }
 
-    UnsafeBins(int initialChunkNumber, int chunkSize, int baseAddr) {
-        super(initialChunkNumber, chunkSize, baseAddr);
-        long bufferSize = (long) initialChunkNumber * (long) realChunkSize;
-        // FIXME Cannot allocate more than Integer.MAX_VALUE. Check this
-        binAddr = unsafe.allocateMemory((long) initialChunkNumber * (long) realChunkSize);
-        LOGGER.info("allocate_buffer, size: {} MB, chunk_size: {}, base_logical_addr: {}, begin_addr: {}"
-                , bufferSize / 1024 / 1024, chunkSize, baseAddr, binAddr);
+    @Override
+    long chunkAddr(int chunkId) {
+        return segments.get(AddrAlign.getSegmentId(chunkId, segmentShift))
+                + (long) AddrAlign.getIndexInSegment(chunkId, segmentShift) * (long) realChunkSize;
+    }
+
+    @Override
+    long[] nativeRegions() {
+        synchronized (segmentLock) {
+            long[] res = new long[2 * nbSegments];
+            int r = 0;
+            for (int i = 0; i < segments.length(); i++) {
+                long segmentAddr = segments.get(i);
+                if (segmentAddr != 0) {
+                    res[r++] = segmentAddr;
+                    res[r++] = (long) segmentChunks * (long) realChunkSize;
+                }
+            }
+            return res;
+        }
     }
 
     @Override
-    boolean storeInChunk(int chunkId, byte[] data, final int currentOffset, final int length) {
-        // check size for avoid overflow on other chunk
-        if (length > this.userDataChunkSize) {
-            throw new BufferOverflowException("Try to store too many data. Store "
-                    + data.length + " in " + this.userDataChunkSize);
+    long claimOneChunk() {
+        for (; ; ) {
+            int generation = segmentGeneration;
+            long chunkAdr = super.claimOneChunk();
+            if (chunkAdr >= 0 || !grow(generation)) {
+                return chunkAdr;
+            }
         }
-        long baseAddr = findOffsetForChunkId(chunkId) + binAddr;
+    }
 
-        // put the length
-        unsafe.putInt(baseAddr, length);
-        long dstAddr = baseAddr + LENGTH_OFFSET;
-        long offset = arrayBaseOffset;
-        int byteToStore = length;
-        while (byteToStore > 0) {
-            long size = (byteToStore > UNSAFE_COPY_THRESHOLD) ? UNSAFE_COPY_THRESHOLD : byteToStore;
-            unsafe.copyMemory(data, offset + currentOffset, null, dstAddr, size);
-            byteToStore -= size;
-            offset += size;
-            dstAddr += size;
+    @Override
+    long[] allocateNChunk(int n) {
+        for (; ; ) {
+            int generation = segmentGeneration;
+            long[] res = super.allocateNChunk(n);
+            if (res != null || !grow(generation)) {
+                return res;
+            }
         }
-        return true;
     }
 
+    /**
+     * Never grow for a run, fragmentation is not a memory shortage. Caller fall back to a chain of chunks
+     */
     @Override
-    boolean storeInChunk(int chunkId, ByteBuffer data) {
-        // Read only data between position and chunksize or buffer limit
-        if (data.isDirect()) {
-            // get base adress of the buffer
-            int length = (data.remaining() > this.userDataChunkSize) ? this.userDataChunkSize : data.remaining();
-            long dataAddr = UnsafeReflection.getLong(UnsafeBins.BUFFER_ADDR, data);
-            long baseAddr = findOffsetForChunkId(chunkId) + binAddr;
-
-            // put the length
-            unsafe.putInt(baseAddr, length);
-            // FIXME Who is this 4 ?
-            long dstAddr = baseAddr + LENGTH_OFFSET;
-            // put data from source position
-            unsafe.copyMemory(dataAddr + (data.position() << 0), dstAddr, length);
-            // update source position
-            data.position(data.position() + length);
-            return true;
-        } else {
-            // Easy way put part to save in a byte array and call standard storeInChunk
-            byte[] tmp = new byte[this.userDataChunkSize];
-            data.get(tmp);
-            return storeInChunk(chunkId, tmp, 0, this.userDataChunkSize);
+    long allocateRun(int n) {
+        if (n > segmentChunks) {
+            // Run never cross segments
+            return -1;
         }
+        return super.allocateRun(n);
     }
 
     @Override
-    byte[] loadFromChunk(int chunkId) {
-        long baseAddr = binAddr + findOffsetForChunkId(chunkId);
-        int size = unsafe.getInt(baseAddr);
-        byte[] data = new byte[size];
-        for (int i = 0; i < size; i++) {
-            data[i] = unsafe.getByte(baseAddr + LENGTH_OFFSET + i);
+    int runAlignShift() {
+        return segmentShift;
+    }
+
+    /**
+     * Add one segment if no segment was added since {@code generation}
+     *
+     * @param generation
+     * @return true if a claim can be retried
+     */
+    private boolean grow(int generation) {
+        if (!elastic) {
+            return false;
+        }
+        synchronized (segmentLock) {
+            if (generation != segmentGeneration) {
+                // Another thread already grow
+                return true;
+            }
+            for (int i = 0; i < segments.length(); i++) {
+                if (segments.get(i) == 0) {
+                    // Publish address before chunks can be claimed
+                    segments.set(i, allocateSegment(i));
+                    emptySince[i] = 0;
+                    nbSegments++;
+                    segmentGeneration++;
+                    int first = AddrAlign.constructChunkId(i, 0, segmentShift);
+                    this.chunkOffset = first;
+                    chunks.releaseRange(first, segmentChunks);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @Override
+    void close() {
+        synchronized (segmentLock) {
+            for (int i = 0; i < segments.length(); i++) {
+                long segmentAddr = segments.get(i);
+                if (segmentAddr != 0) {
+                    segments.set(i, 0);
+                    unsafe.freeMemory(segmentAddr);
+                }
+            }
+            nbSegments = 0;
+        }
+    }
+
+    /**
+     * Give back to the OS segments seen empty since at least segment idle time. A segment is removed by claiming
+     * all its chunks at once, so a concurrent allocation in it make the release fail.
+     *
+     * @param nowMillis
+     * @return number of released segments
+     */
+    int releaseIdleSegments(long nowMillis) {
+        int released = 0;
+        synchronized (segmentLock) {
+            for (int i = segments.length() - 1; i >= 0 && nbSegments > minSegments; i--) {
+                long segmentAddr = segments.get(i);
+                if (segmentAddr == 0) {
+                    continue;
+                }
+                int first = AddrAlign.constructChunkId(i, 0, segmentShift);
+                if (!chunks.isRangeFree(first, segmentChunks)) {
+                    emptySince[i] = 0;
+                } else if (emptySince[i] == 0) {
+                    emptySince[i] = nowMillis;
+                } else if (nowMillis - emptySince[i] >= segmentIdleMillis && chunks.claimRange(first, segmentChunks)) {
+                    segments.set(i, 0);
+                    unsafe.freeMemory(segmentAddr);
+                    emptySince[i] = 0;
+                    nbSegments--;
+                    released++;
+                    LOGGER.info("release_buffer, chunk_size: {}, base_logical_addr: {}, segment: {}"
+                            , realChunkSize, baseAddr, i);
+                }
+            }
+        }
+        return released;
+    }
+
+    // Periodic release of idle segments. Keep only a weak reference, task stop with its bin
+    private static final class IdleSegmentTask implements Runnable {
+
+        private final WeakReference<UnsafeBins> bins;
+        private volatile ScheduledFuture<?> future;
+
+        private IdleSegmentTask(UnsafeBins bins) {
+            this.bins = new WeakReference<>(bins);
+        }
+
+        static void schedule(UnsafeBins bins, long idleMillis) {
+            IdleSegmentTask task = new IdleSegmentTask(bins);
+            // Check twice by idle period, a segment is released between 1 and 1.5 idle period
+            long period = Math.max(1, idleMillis / 2);
+            task.future = SegmentReleaser.EXECUTOR.scheduleAtFixedRate(task, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            UnsafeBins b = bins.get();
+            if (b == null) {
+                ScheduledFuture<?> f = future;
+                if (f != null) {
+                    f.cancel(false);
+                }
+                return;
+            }
+            try {
+                b.releaseIdleSegments(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Cannot release idle segments", e);
+            }
         }
-        return data;
     }
 
     @Override
-    void setNextChunkId(int currentChunkId, long nextChunkId) {
-        // Set nextChunkId to last 8 bytes of currentChunkId
-        long nextChunkOffset = binAddr + findOffsetForChunkId(currentChunkId) + userDataChunkSize + LENGTH_OFFSET;
-        //System.out.println(nextChunkOffset + "  " + nextChunkId + " " + findOffsetForChunkId(currentChunkId));
-        unsafe.putLong(nextChunkOffset, nextChunkId);
+    public int getSegmentCount() {
+        return nbSegments;
     }
 
     @Override
-    long getNextChunkId(int currentChunkId) {
-        // Set nextChunkId to last 8 bytes of currentChunkId
-        long nextChunkOffset = binAddr + findOffsetForChunkId(currentChunkId) + userDataChunkSize + LENGTH_OFFSET;
-        return unsafe.getLong(nextChunkOffset);
+    public long getReservedMemory() {
+        return (long) nbSegments * (long) segmentChunks * (long) realChunkSize;
     }
 
 }
@@ -1,7 +1,19 @@
 package jbu.offheap;
 
-public interface UnsafeBinsMBean {
+public interface UnsafeBinsMBean extends BinsStatsMBean {
     int getAllocatedChunks();
 
-    int getUsedSize();
+    long getUsedSize();
+
+    long getMagazineHits();
+
+    long getMagazineMisses();
+
+    double getMagazineHitRate();
+
+    int getMagazineCachedChunks();
+
+    int getSegmentCount();
+
+    long getReservedMemory();
 }
@@ -1,6 +1,8 @@
 package jbu.serializer.unsafe;
 
 import com.google.common.collect.Collections2;
+import com.google.common.primitives.Primitives;
+import jbu.Primitive;
 import jbu.UnsafeReflection;
 
 import java.lang.reflect.Field;
@@ -23,6 +25,8 @@ final class ClassDesc {
     final int nbFields;
     final int classReference;
     final Class<?> clazz;
+    // Serialized size of all instances, -1 if a field has a variable size
+    final int fixedSerializedSize;
 
     // FIXME must be correctly synchronized
     static ClassDesc resolveByClass(Class<?> clazz) {
@@ -49,6 +53,23 @@ final class ClassDesc {
         this.fields = fields;
         this.classReference = classCounter.incrementAndGet();
         this.clazz = clazz;
+        this.fixedSerializedSize = fixedSerializedSize(types, clazz);
+    }
+
+    private static int fixedSerializedSize(Type[] types, Class<?> clazz) {
+        // Class reference
+        int size = Primitive.INT_LENGTH;
+        if (Primitives.isWrapperType(clazz)) {
+            return size + Type.resolveType(clazz).typeSize;
+        }
+        for (Type t : types) {
+            int fixed = t.fixedSize();
+            if (fixed < 0) {
+                return -1;
+            }
+            size += fixed;
+        }
+        return size;
     }
 
     private static ClassDesc registerClass(Class c) {
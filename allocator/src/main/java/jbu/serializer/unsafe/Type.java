@@ -75,10 +75,9 @@ abstract class Type<T> {
 
         @Override
         int serializedSize(AbstractCollection obj) {
-            // FIXME test with a first bad implementation
             int size = 0;
-            // collection typeId
-            size += INT_LENGTH;
+            // collection class reference and length
+            size += 2 * INT_LENGTH;
             for (Object elt : obj) {
                 // element typeId
                 size += INT_LENGTH;
@@ -104,6 +103,11 @@ abstract class Type<T> {
             // No serialization
             return 0;
         }
+
+        @Override
+        int fixedSize() {
+            return 0;
+        }
     };
 
     static {
@@ -295,6 +299,15 @@ abstract class Type<T> {
 
 
     abstract int serializedSize(T obj);
+
+    /**
+     * Serialized size of all values of this type
+     *
+     * @return size or -1 if it depends on value
+     */
+    int fixedSize() {
+        return -1;
+    }
 }
 
 class PrimitiveType extends Type<Object> {
@@ -307,6 +320,11 @@ class PrimitiveType extends Type<Object> {
     int serializedSize(Object obj) {
         return typeSize;
     }
+
+    @Override
+    int fixedSize() {
+        return typeSize;
+    }
 }
 
 class PrimitiveWrapperType extends Type<Object> {
@@ -319,6 +337,11 @@ class PrimitiveWrapperType extends Type<Object> {
     int serializedSize(Object obj) {
         return typeSize;
     }
+
+    @Override
+    int fixedSize() {
+        return typeSize;
+    }
 }
 
 class ArrayType extends Type<Object> {
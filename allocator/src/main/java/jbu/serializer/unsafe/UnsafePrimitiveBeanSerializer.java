@@ -1,9 +1,9 @@
 package jbu.serializer.unsafe;
 
 import static jbu.Primitive.*;
+import static jbu.UnsafeUtil.unsafe;
 
 import com.google.common.primitives.Primitives;
-import jbu.UnsafeReflection;
 import jbu.exception.CannotDeserializeException;
 import jbu.offheap.LoadContext;
 import jbu.offheap.StoreContext;
@@ -57,18 +57,22 @@ public class UnsafePrimitiveBeanSerializer implements Serializer {
     }
 
 
+    /**
+     * Exact size written by {@link #serialize(Object, StoreContext)}. Size of classes with only primitive (or
+     * wrapper) fields is computed once, other fields are read without boxing
+     */
     @Override
     public int calculateSerializedSize(Object obj) {
-        Class clazz = obj.getClass();
-        ClassDesc cd = ClassDesc.resolveByClass(clazz);
-        int size = 0;
-
-        // Add class reference
-        size += LONG_LENGTH;
-
-        // Add size for each field
+        ClassDesc cd = ClassDesc.resolveByClass(obj.getClass());
+        if (cd.fixedSerializedSize >= 0) {
+            return cd.fixedSerializedSize;
+        }
+        // Class reference
+        int size = INT_LENGTH;
         for (int i = 0; i < cd.nbFields; i++) {
-            size += cd.types[i].serializedSize(UnsafeReflection.getObject(cd.fields[i], obj));
+            Type t = cd.types[i];
+            int fixed = t.fixedSize();
+            size += fixed >= 0 ? fixed : t.serializedSize(unsafe.getObject(obj, cd.offsets[i]));
         }
         return size;
     }
@@ -35,6 +35,15 @@ public class TestAddrAling {
         assertEquals(0, AddrAlign.getChunkId(concat));
     }
 
+    @Test
+    public void concat_separe_run(){
+        long concat = AddrAlign.constructAddr(3, 12, AddrAlign.MAX_RUN_LENGTH);
+        assertEquals(3, AddrAlign.getBinId(concat));
+        assertEquals(12, AddrAlign.getChunkId(concat));
+        assertEquals(AddrAlign.MAX_RUN_LENGTH, AddrAlign.getRunLength(concat));
+        assertEquals(1, AddrAlign.getRunLength(AddrAlign.constructAddr(3, 12)));
+    }
+
 
 
 }
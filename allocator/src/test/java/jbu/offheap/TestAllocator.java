@@ -1,12 +1,25 @@
 package jbu.offheap;
 
 import jbu.UnsafeUtil;
+import jbu.exception.InvalidParameterException;
 import org.junit.Test;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ScatteringByteChannel;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestAllocator {
 
@@ -69,6 +82,23 @@ public class TestAllocator {
         assertTrue(Arrays.equals(data, dataRes));
     }
 
+    @Test
+    public void chained_store_from_heap_byte_buffer_should_be_reloaded() {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        bb.position(100);
+        Allocator allocator = new Allocator(10 * 1024 * 1024);
+        OffheapMemoryAccess oma = new OffheapMemoryAccess(allocator);
+        long firstChunk = allocator.alloc(data.length - 100);
+        oma.store(firstChunk, bb);
+        assertEquals(data.length, bb.position());
+        byte[] dataRes = oma.load(firstChunk);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 100, data.length), dataRes));
+    }
+
     @Test
     public void test_unsafe_store_int() {
         int a = 42;
@@ -95,6 +125,334 @@ public class TestAllocator {
         System.out.println(oi2.a);
     }
 
+    @Test
+    public void size_class_table_should_find_ceil_and_floor_class() {
+        SizeClassTable table = new SizeClassTable(new int[]{32, 48, 64, 100, 1000});
+        assertEquals(0, table.ceilIndex(1));
+        assertEquals(0, table.ceilIndex(32));
+        assertEquals(1, table.ceilIndex(33));
+        assertEquals(2, table.ceilIndex(64));
+        assertEquals(3, table.ceilIndex(65));
+        assertEquals(4, table.ceilIndex(101));
+        assertEquals(5, table.ceilIndex(1001));
+        assertEquals(-1, table.floorIndex(31));
+        assertEquals(1, table.floorIndex(63));
+        assertEquals(2, table.floorIndex(64));
+        assertEquals(4, table.floorIndex(123456));
+    }
+
+    @Test
+    public void builder_with_geometric_classes_should_take_one_chunk_of_upper_class() {
+        Allocator allocator = new Allocator.Builder()
+                .geometricSizeClasses(16 * 1024 * 1024, 64, 8, 2d)
+                .build();
+        OffheapMemoryAccess oma = new OffheapMemoryAccess(allocator);
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        long firstChunk = allocator.alloc(1000);
+        // 1000 bytes fill more than 75% of the 1024 - 16 bytes of a 1024 chunk
+        assertEquals(1024, allocator.getBinFromAddr(firstChunk).realChunkSize);
+        assertEquals(-1, allocator.getBinFromAddr(firstChunk).getNextChunkId(AddrAlign.getChunkId(firstChunk)));
+        oma.store(firstChunk, data);
+        assertTrue(Arrays.equals(data, oma.load(firstChunk)));
+    }
+
+    @Test
+    public void builder_with_custom_fill_factor_should_chain_smaller_chunks() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 1024 * 1024)
+                .sizeClass(1024, 1024 * 1024, 1d)
+                .build();
+        long firstChunk = allocator.alloc(1000);
+        assertEquals(64, allocator.getBinFromAddr(firstChunk).realChunkSize);
+    }
+
+    @Test
+    public void alloc_without_enough_memory_should_return_minus_one_and_free_chunks() {
+        Allocator allocator = new Allocator(1024, 256);
+        assertEquals(-1, allocator.alloc(2000));
+        assertEquals(0, allocator.getUsedMemory());
+        assertTrue(allocator.alloc(900) >= 0);
+    }
+
+    @Test
+    public void contiguous_allocator_should_store_value_in_one_run() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 64)
+                .contiguous(true)
+                .build();
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        long addr = allocator.alloc(data.length);
+        assertEquals(-1, allocator.getBinFromAddr(addr).getNextChunkAdr(addr));
+        assertEquals(1, allocator.getNbContiguousValues());
+        OffheapMemoryAccess oma = new OffheapMemoryAccess(allocator);
+        oma.store(addr, data);
+        assertTrue(Arrays.equals(data, oma.load(addr)));
+        allocator.free(addr);
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void allocation_and_free_counters_should_balance_with_runs() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 64)
+                .contiguous(true)
+                .build();
+        long run = allocator.alloc(1000);
+        long chunk = allocator.alloc(10);
+        assertEquals(2, allocator.getNbAllocation());
+        allocator.free(run);
+        allocator.free(chunk);
+        assertEquals(allocator.getNbAllocation(), allocator.getNbFree());
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void contiguous_allocator_should_chain_when_fragmented() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 8)
+                .contiguous(true)
+                .build();
+        long[] chunks = new long[8];
+        for (int i = 0; i < 8; i++) {
+            chunks[i] = allocator.alloc(10);
+        }
+        for (int i = 0; i < 8; i += 2) {
+            allocator.free(chunks[i]);
+        }
+        long addr = allocator.alloc(100);
+        assertTrue(addr >= 0);
+        assertEquals(1, allocator.getNbChainedValues());
+        allocator.free(addr);
+        // Chunks 0 and 2 are not adjacent, but 1 is now free
+        allocator.free(chunks[1]);
+        assertTrue(allocator.alloc(100) >= 0);
+        assertEquals(9, allocator.getNbContiguousValues());
+    }
+
+    @Test
+    public void pre_touch_should_touch_all_memory_of_bins() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 1024 * 1024)
+                .buddySizeClass(256, 4 * 1024 * 1024)
+                .commitStrategy(CommitStrategy.PRE_TOUCH)
+                .preTouchParallelism(2)
+                .build();
+        assertEquals(5 * 1024 * 1024, allocator.getPreTouchedMemory());
+        assertEquals(5 * 1024 * 1024, allocator.getAllocatedMemory());
+        assertTrue(allocator.alloc(10000) >= 0);
+    }
+
+    @Test
+    public void pre_touch_should_read_mapped_files_without_changing_them() throws IOException {
+        File file = File.createTempFile("pretouch", ".bin");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(1024 * 1024);
+            raf.seek(4096);
+            raf.write(42);
+        }
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 1024 * 1024)
+                .mappedSizeClass(256, 1024 * 1024, file)
+                .commitStrategy(CommitStrategy.PRE_TOUCH)
+                .build();
+        assertTrue(allocator.getPreTouchedMemory() >= 2 * 1024 * 1024);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(4096);
+            assertEquals(42, raf.read());
+        }
+    }
+
+    @Test
+    public void elastic_size_class_should_grow_until_max_memory() {
+        Allocator allocator = new Allocator.Builder()
+                .elasticSizeClass(256, 1024, 4096)
+                .segmentSize(1024)
+                .segmentIdleTime(0, TimeUnit.MILLISECONDS)
+                .build();
+        assertEquals(1024, allocator.getAllocatedMemory());
+        long addr = allocator.alloc(3000);
+        assertTrue(addr >= 0);
+        assertEquals(4096, allocator.getAllocatedMemory());
+        assertEquals(-1, allocator.alloc(1000));
+        allocator.free(addr);
+        assertTrue(allocator.alloc(3000) >= 0);
+    }
+
+    @Test
+    public void relocate_should_copy_chain_in_one_run() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 1024 * 1024)
+                .contiguous(true)
+                .build();
+        long addr = allocator.alloc();
+        StoreContext sc = allocator.getStoreContext(addr);
+        for (int i = 0; i < 100; i++) {
+            sc.storeLong(i);
+        }
+        // Chain extended chunk by chunk
+        assertEquals(17, allocator.chainLength(addr));
+        long newAddr = allocator.relocate(addr);
+        assertTrue(newAddr >= 0);
+        assertEquals(1, allocator.chainLength(newAddr));
+        assertEquals(allocator.dataLength(addr), allocator.dataLength(newAddr));
+        LoadContext lc = allocator.getLoadContext(newAddr);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, lc.loadLong());
+        }
+        // Nothing to do on a flat value
+        assertEquals(-1, allocator.relocate(newAddr));
+    }
+
+    @Test
+    public void realloc_should_trim_and_grow_chain_in_place() {
+        Allocator allocator = new Allocator.Builder().sizeClass(64, 1024 * 1024).build();
+        long addr = allocator.alloc(400);
+        // 48 bytes of user data by chunk
+        assertEquals(9, allocator.chainLength(addr));
+        StoreContext sc = allocator.getStoreContext(addr);
+        for (int i = 0; i < 10; i++) {
+            sc.storeLong(i);
+        }
+        assertEquals(80, sc.getWrittenBytes());
+        assertTrue(allocator.realloc(addr, sc.getWrittenBytes()));
+        assertEquals(2, allocator.chainLength(addr));
+        assertEquals(2 * 64, allocator.getUsedMemory());
+        assertEquals(7, allocator.getNbFree());
+        LoadContext lc = allocator.getLoadContext(addr);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, lc.loadLong());
+        }
+        assertTrue(allocator.realloc(addr, 200));
+        assertEquals(5, allocator.chainLength(addr));
+        assertEquals(5 * 64, allocator.getUsedMemory());
+        assertFalse(allocator.realloc(addr, 2 * 1024 * 1024));
+        assertEquals(5, allocator.chainLength(addr));
+    }
+
+    @Test
+    public void bins_should_count_allocs_fallbacks_and_chain_lengths() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 2 * 64)
+                .sizeClass(128, 4 * 128)
+                .build();
+        Bins small = allocator.getBinFromAddr(AddrAlign.constructAddr(0, 0));
+        Bins big = allocator.getBinFromAddr(AddrAlign.constructAddr(1, 0));
+        long a1 = allocator.alloc(40);
+        long a2 = allocator.alloc(40);
+        // Small bin is full, served by next size class
+        long a3 = allocator.alloc(40);
+        assertEquals(1, AddrAlign.getBinId(a3));
+        assertEquals(1, small.getNbFailedAlloc());
+        assertEquals(1, small.getNbFallbackToHigher());
+        // 3 chunks of 112 bytes
+        long a4 = allocator.alloc(300);
+        assertEquals(3, allocator.chainLength(a4));
+        assertEquals(2, small.getNbAlloc());
+        assertEquals(4, big.getNbAlloc());
+        assertArrayEquals(new long[]{2, 0, 0, 0, 0, 0, 0, 0}, small.getChainLengthHistogram());
+        assertArrayEquals(new long[]{1, 0, 1, 0, 0, 0, 0, 0}, big.getChainLengthHistogram());
+        allocator.free(a1);
+        allocator.free(a2);
+        allocator.free(a3);
+        allocator.free(a4);
+        assertEquals(2, small.getNbFree());
+        assertEquals(4, big.getNbFree());
+        assertEquals(0, allocator.getUsedMemory());
+        assertEquals(6, allocator.getNbFree());
+    }
+
+    @Test
+    public void chain_should_be_written_to_and_read_from_channel() throws IOException {
+        Allocator allocator = new Allocator.Builder().sizeClass(64, 1024 * 1024).build();
+        OffheapMemoryAccess oma = new OffheapMemoryAccess(allocator);
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        long addr = allocator.alloc(data.length);
+        oma.store(addr, data);
+        File file = File.createTempFile("channel", ".bin");
+        file.deleteOnExit();
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            assertEquals(1000, oma.writeTo(addr, channel));
+            channel.position(0);
+            long copy = oma.readFrom(channel, 1000);
+            assertArrayEquals(data, oma.load(copy));
+            try {
+                oma.readFrom(channel, 10);
+                fail("Channel is at end");
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void read_from_channel_should_not_spin_when_nothing_is_read() throws IOException {
+        Allocator allocator = new Allocator.Builder().sizeClass(64, 1024 * 1024).build();
+        OffheapMemoryAccess oma = new OffheapMemoryAccess(allocator);
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            try {
+                oma.readFrom(pipe.source(), 100);
+                fail("Non blocking channel");
+            } catch (InvalidParameterException e) {
+                // expected
+            }
+        } finally {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+        // Read 10 bytes then nothing
+        ScatteringByteChannel channel = new ScatteringByteChannel() {
+            private boolean first = true;
+
+            @Override
+            public long read(ByteBuffer[] dsts, int offset, int length) {
+                if (!first) {
+                    return 0;
+                }
+                first = false;
+                dsts[offset].put(new byte[10]);
+                return 10;
+            }
+
+            @Override
+            public long read(ByteBuffer[] dsts) {
+                return read(dsts, 0, dsts.length);
+            }
+
+            @Override
+            public int read(ByteBuffer dst) {
+                return (int) read(new ByteBuffer[]{dst});
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            oma.readFrom(channel, 100);
+            fail("Channel read nothing");
+        } catch (EOFException e) {
+            // expected
+        }
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
     public static int byteArrayToInt(byte[] b) {
         int value = 0;
         for (int i = 0; i < 4; i++) {
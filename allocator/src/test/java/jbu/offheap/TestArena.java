@@ -0,0 +1,54 @@
+package jbu.offheap;
+
+import jbu.exception.BufferOverflowException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestArena {
+
+    @Test
+    public void values_should_be_stored_and_reloaded_with_contexts() {
+        Allocator allocator = new Allocator.Builder().sizeClass(1024, 1024 * 1024).build();
+        Arena arena = allocator.newArena(4096);
+        long[] values = new long[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arena.alloc(16);
+            StoreContext sc = arena.getStoreContext(values[i]);
+            sc.storeLong(i);
+            sc.storeInt(i * 2);
+        }
+        for (int i = 0; i < values.length; i++) {
+            LoadContext lc = arena.getLoadContext(values[i]);
+            assertEquals(i, lc.loadLong());
+            assertEquals(i * 2, lc.loadInt());
+        }
+        // 100 values of 24 bytes in runs of 4096 bytes
+        assertEquals(1, arena.getNbBlocks());
+        assertEquals(2400, arena.getUsedBytes());
+    }
+
+    @Test
+    public void release_should_give_back_all_blocks() {
+        Allocator allocator = new Allocator.Builder().sizeClass(256, 1024 * 1024).build();
+        Arena arena = allocator.newArena(1000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(arena.alloc(100) >= 0);
+        }
+        // Value bigger than a block get its own block
+        assertTrue(arena.alloc(5000) >= 0);
+        assertTrue(allocator.getUsedMemory() > 0);
+        arena.release();
+        assertEquals(0, arena.getNbBlocks());
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void store_after_end_of_value_should_throw_exception() {
+        Allocator allocator = new Allocator.Builder().sizeClass(256, 1024 * 1024).build();
+        Arena arena = allocator.newArena();
+        StoreContext sc = arena.getStoreContext(arena.alloc(4));
+        sc.storeInt(1);
+        sc.storeInt(2);
+    }
+}
@@ -0,0 +1,66 @@
+package jbu.offheap;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TestBuddyBins {
+
+    @Test
+    public void chunk_number_should_be_rounded_to_biggest_block() {
+        BuddyBins bb = new BuddyBins(12, 64, 0);
+        assertEquals(3, bb.getMaxOrder());
+        assertArrayEquals(new int[]{0, 0, 0, 2}, bb.getFreeBlocksByOrder());
+        assertEquals(16 * 64, bb.getReservedMemory());
+    }
+
+    @Test
+    public void allocate_run_should_split_and_free_should_coalesce() {
+        BuddyBins bb = new BuddyBins(8, 64, 0);
+        long block = bb.allocateRun(3);
+        assertEquals(4, AddrAlign.getRunLength(block));
+        assertEquals(4 * 64 - 16, bb.userDataSize(block));
+        long chunk = bb.allocateOneChunk();
+        assertArrayEquals(new int[]{1, 1, 0, 0}, bb.getFreeBlocksByOrder());
+        assertEquals(5, bb.getAllocatedChunks());
+        bb.freeChunk(chunk);
+        bb.releaseRun(block);
+        assertArrayEquals(new int[]{0, 0, 0, 1}, bb.getFreeBlocksByOrder());
+        assertEquals(0, bb.getAllocatedChunks());
+    }
+
+    @Test
+    public void allocate_run_bigger_than_max_block_should_fail() {
+        BuddyBins bb = new BuddyBins(8, 64, 0);
+        assertEquals(-1, bb.allocateRun(9));
+        assertTrue(bb.allocateRun(8) >= 0);
+        assertEquals(-1, bb.allocateOneChunk());
+        assertNull(bb.allocateNChunk(1));
+    }
+
+    @Test
+    public void allocator_with_buddy_class_should_store_value_in_one_block() {
+        Allocator allocator = new Allocator.Builder()
+                .buddySizeClass(64, 64 * 1024)
+                .build();
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        long addr = allocator.alloc(data.length);
+        assertEquals(16, AddrAlign.getRunLength(addr));
+        assertEquals(1, allocator.getNbContiguousValues());
+        OffheapMemoryAccess oma = new OffheapMemoryAccess(allocator);
+        oma.store(addr, data);
+        assertTrue(Arrays.equals(data, oma.load(addr)));
+
+        StoreContext sc = allocator.getStoreContext(addr);
+        sc.storeLong(42L);
+        assertEquals(42L, allocator.getLoadContext(addr).loadLong());
+
+        allocator.free(addr);
+        assertEquals(0, allocator.getUsedMemory());
+    }
+}
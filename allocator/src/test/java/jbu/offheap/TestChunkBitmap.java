@@ -0,0 +1,75 @@
+package jbu.offheap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestChunkBitmap {
+
+    @Test
+    public void claim_all_chunks_should_never_return_twice_same_chunk() {
+        ChunkBitmap bitmap = new ChunkBitmap(200);
+        boolean[] seen = new boolean[200];
+        for (int i = 0; i < 200; i++) {
+            int index = bitmap.claimOne(i * 7);
+            assertTrue(index >= 0 && index < 200);
+            assertFalse(seen[index]);
+            seen[index] = true;
+        }
+        assertEquals(-1, bitmap.claimOne(0));
+    }
+
+    @Test
+    public void released_chunk_should_be_found_in_full_bitmap() {
+        ChunkBitmap bitmap = new ChunkBitmap(64 * 64 * 3);
+        for (int i = 0; i < 64 * 64 * 3; i++) {
+            bitmap.claimOne(0);
+        }
+        bitmap.release(5000);
+        assertFalse(bitmap.isUsed(5000));
+        assertEquals(5000, bitmap.claimOne(0));
+        assertTrue(bitmap.isUsed(5000));
+    }
+
+    @Test
+    public void claim_n_should_return_only_available_chunks() {
+        ChunkBitmap bitmap = new ChunkBitmap(70);
+        long[] res = new long[100];
+        assertEquals(70, bitmap.claim(100, res, 0));
+        bitmap.release(new long[]{AddrAlign.constructAddr(0, 3), AddrAlign.constructAddr(0, 4),
+                AddrAlign.constructAddr(0, 69)}, 0, 3);
+        assertEquals(3, bitmap.claim(10, res, 0));
+        assertEquals(3, res[0]);
+        assertEquals(4, res[1]);
+        assertEquals(69, res[2]);
+    }
+
+    @Test
+    public void claim_range_should_fail_if_one_chunk_is_used() {
+        ChunkBitmap bitmap = new ChunkBitmap(256);
+        assertTrue(bitmap.claimRange(0, 128));
+        assertEquals(128, bitmap.claimOne(0));
+        assertFalse(bitmap.claimRange(100, 100));
+        // Rollback keep other chunks free
+        assertTrue(bitmap.isRangeFree(129, 127));
+        bitmap.releaseRange(0, 128);
+        assertTrue(bitmap.isRangeFree(0, 128));
+        assertFalse(bitmap.isRangeFree(0, 129));
+    }
+
+    @Test
+    public void claim_run_should_find_adjacent_free_chunks_in_same_segment() {
+        ChunkBitmap bitmap = new ChunkBitmap(256);
+        // Free: [10, 20[ and [60, 200[
+        bitmap.claimRange(0, 10);
+        bitmap.claimRange(20, 40);
+        bitmap.claimRange(200, 56);
+        assertEquals(10, bitmap.claimRun(10, 0, 31));
+        // Run of 70 must not cross 128
+        assertEquals(128, bitmap.claimRun(70, 0, 7));
+        assertEquals(60, bitmap.claimRun(68, 0, 7));
+        assertEquals(198, bitmap.claimRun(2, 0, 31));
+        assertEquals(-1, bitmap.claimRun(1, 0, 31));
+    }
+
+}
@@ -0,0 +1,100 @@
+package jbu.offheap;
+
+import jbu.UnsafeUtil;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class TestEpochReclaimer {
+
+    @Test
+    public void retired_value_should_be_freed_only_when_reader_exit() throws InterruptedException {
+        Allocator allocator = new Allocator.Builder().sizeClass(256, 1024 * 1024).build();
+        final EpochReclaimer reclaimer = new EpochReclaimer(allocator);
+        long addr = allocator.alloc(100);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch retired = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reclaimer.enter();
+                entered.countDown();
+                try {
+                    retired.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                reclaimer.exit();
+            }
+        });
+        reader.start();
+        entered.await();
+        reclaimer.retire(addr);
+        assertEquals(1, reclaimer.getPendingCount());
+        assertEquals(0, allocator.getNbFree());
+        retired.countDown();
+        reader.join();
+        assertEquals(1, reclaimer.reclaim());
+        assertEquals(0, reclaimer.getPendingCount());
+        assertEquals(1, allocator.getNbFree());
+    }
+
+    @Test
+    public void retired_native_memory_should_wait_for_reader() {
+        Allocator allocator = new Allocator.Builder().sizeClass(256, 1024 * 1024).build();
+        EpochReclaimer reclaimer = new EpochReclaimer(allocator);
+        reclaimer.enter();
+        reclaimer.retireMemory(UnsafeUtil.unsafe.allocateMemory(64));
+        assertEquals(1, reclaimer.getPendingCount());
+        reclaimer.exit();
+        assertEquals(1, reclaimer.reclaim());
+        assertEquals(0, reclaimer.getPendingCount());
+        assertEquals(0, allocator.getNbFree());
+    }
+
+    @Test
+    public void retire_without_reader_should_free_on_reclaim() {
+        Allocator allocator = new Allocator.Builder().sizeClass(256, 1024 * 1024).build();
+        EpochReclaimer reclaimer = new EpochReclaimer(allocator);
+        reclaimer.enter();
+        reclaimer.enter();
+        reclaimer.exit();
+        reclaimer.exit();
+        reclaimer.retire(allocator.alloc(100));
+        // Wait for a batch
+        assertEquals(1, reclaimer.getPendingCount());
+        assertEquals(1, reclaimer.reclaim());
+        assertEquals(0, reclaimer.getPendingCount());
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void retire_should_reclaim_by_batch() {
+        Allocator allocator = new Allocator.Builder().sizeClass(256, 1024 * 1024).build();
+        EpochReclaimer reclaimer = new EpochReclaimer(allocator);
+        for (int i = 0; i < EpochReclaimer.RECLAIM_THRESHOLD - 1; i++) {
+            reclaimer.retire(allocator.alloc(100));
+        }
+        assertEquals(EpochReclaimer.RECLAIM_THRESHOLD - 1, reclaimer.getPendingCount());
+        reclaimer.retire(allocator.alloc(100));
+        assertEquals(0, reclaimer.getPendingCount());
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void pinned_addresses_should_not_reclaim_on_each_retire() {
+        Allocator allocator = new Allocator.Builder().sizeClass(256, 1024 * 1024).build();
+        EpochReclaimer reclaimer = new EpochReclaimer(allocator);
+        reclaimer.enter();
+        for (int i = 0; i < 3 * EpochReclaimer.RECLAIM_THRESHOLD; i++) {
+            reclaimer.retire(allocator.alloc(100));
+        }
+        // Buffer grow while a reader pin all addresses
+        assertEquals(3 * EpochReclaimer.RECLAIM_THRESHOLD, reclaimer.getPendingCount());
+        reclaimer.exit();
+        assertEquals(3 * EpochReclaimer.RECLAIM_THRESHOLD, reclaimer.reclaim());
+        assertEquals(0, allocator.getUsedMemory());
+    }
+}
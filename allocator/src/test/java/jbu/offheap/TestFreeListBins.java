@@ -0,0 +1,75 @@
+package jbu.offheap;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TestFreeListBins {
+
+    @Test
+    public void allocate_all_chunks_should_return_distinct_chunks() {
+        FreeListBins flb = new FreeListBins(10, 64, 0);
+        Set<Long> chunks = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(chunks.add(flb.allocateOneChunk()));
+        }
+        assertEquals(-1, flb.allocateOneChunk());
+        assertEquals(10, flb.getAllocatedChunks());
+    }
+
+    @Test
+    public void freed_chunk_should_be_reused_first() {
+        FreeListBins flb = new FreeListBins(10, 64, 0);
+        long c1 = flb.allocateOneChunk();
+        long c2 = flb.allocateOneChunk();
+        flb.freeChunk(c1);
+        assertEquals(c1, flb.allocateOneChunk());
+        flb.freeChunk(c2, c1);
+        assertEquals(c2, flb.allocateOneChunk());
+        assertEquals(c1, flb.allocateOneChunk());
+    }
+
+    @Test
+    public void allocate_more_chunk_than_size_should_return_null_and_keep_chunks_free() {
+        FreeListBins flb = new FreeListBins(3, 64, 0);
+        flb.freeChunk(flb.allocateOneChunk());
+        assertNull(flb.allocateNChunk(4));
+        assertEquals(0, flb.getAllocatedChunks());
+        assertNotNull(flb.allocateNChunk(3));
+    }
+
+    @Test
+    public void free_chain_should_splice_all_chunks() {
+        FreeListBins flb = new FreeListBins(5, 64, 0);
+        long[] chain = flb.allocateNChunk(5);
+        for (int i = 0; i < chain.length - 1; i++) {
+            flb.setNextChunkId(AddrAlign.getChunkId(chain[i]), chain[i + 1]);
+        }
+        flb.freeChain(chain[0], chain[4], 5);
+        assertEquals(0, flb.getAllocatedChunks());
+        long[] res = flb.allocateNChunk(5);
+        Arrays.sort(res);
+        Arrays.sort(chain);
+        assertArrayEquals(chain, res);
+    }
+
+    @Test
+    public void allocator_with_free_list_should_store_and_reload_data() {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        Allocator allocator = new Allocator(1024 * 1024, 256, false, true);
+        OffheapMemoryAccess oma = new OffheapMemoryAccess(allocator);
+        long firstChunk = allocator.alloc(1000);
+        oma.store(firstChunk, data);
+        assertTrue(Arrays.equals(data, oma.load(firstChunk)));
+        allocator.free(firstChunk);
+        assertEquals(0, allocator.getUsedMemory());
+        assertEquals(firstChunk, allocator.alloc(1000));
+    }
+}
@@ -0,0 +1,64 @@
+package jbu.offheap;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void buckets_should_be_contiguous_with_bounded_error() {
+        assertEquals(0, LatencyHistogram.bucketIndex(0));
+        assertEquals(15, LatencyHistogram.bucketIndex(15));
+        assertEquals(16, LatencyHistogram.bucketIndex(16));
+        assertEquals(LatencyHistogram.NB_BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+        for (int i = 1; i < LatencyHistogram.NB_BUCKETS; i++) {
+            long lower = LatencyHistogram.bucketUpperBound(i - 1) + 1;
+            long upper = LatencyHistogram.bucketUpperBound(i);
+            assertEquals(i, LatencyHistogram.bucketIndex(lower));
+            assertEquals(i, LatencyHistogram.bucketIndex(upper));
+            assertTrue(upper - lower <= lower / 16);
+        }
+    }
+
+    @Test
+    public void percentiles_should_be_upper_bound_of_bucket() {
+        LatencyHistogram h = new LatencyHistogram("test");
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(500500d, h.getMean(), 0.1d);
+        assertEquals(1000000, h.getMax());
+        long p50 = h.getP50();
+        assertTrue(p50 >= 500000 && p50 <= 500000 + 500000 / 16);
+        long p99 = h.getP99();
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, h.getP999());
+    }
+
+    @Test
+    public void allocator_should_record_operations() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 1024 * 1024)
+                .slowOperationThreshold(1, TimeUnit.NANOSECONDS)
+                .build();
+        long addr = allocator.alloc(40);
+        StoreContext sc = allocator.getStoreContext(addr);
+        for (int i = 0; i < 10; i++) {
+            sc.storeLong(i);
+        }
+        allocator.free(addr);
+        assertEquals(1, allocator.getLatencyHistogram("alloc").getCount());
+        assertEquals(1, allocator.getLatencyHistogram("free").getCount());
+        assertEquals(1, allocator.getLatencyHistogram("extend").getCount());
+        assertEquals(1, allocator.getLatencyHistogram("chunkRefill").getCount());
+        assertNull(new Allocator.Builder()
+                .sizeClass(64, 1024)
+                .latencyHistograms(false)
+                .build()
+                .getLatencyHistogram("alloc"));
+    }
+}
@@ -0,0 +1,79 @@
+package jbu.offheap;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class TestMappedBins {
+
+    @Test
+    public void chunks_of_all_regions_should_store_and_reload_data() throws IOException {
+        File file = File.createTempFile("mappedbins", ".bin");
+        file.deleteOnExit();
+        MappedBins mb = new MappedBins(file, 64, 64, 0, 1024);
+        assertEquals(4, mb.getMappedRegions());
+        assertEquals(64 * 64, file.length());
+        long[] chunks = mb.allocateNChunk(64);
+        assertNotNull(chunks);
+        for (int i = 0; i < chunks.length; i++) {
+            mb.storeInChunk(AddrAlign.getChunkId(chunks[i]), new byte[]{(byte) i, (byte) (i + 1)}, 0, 2);
+        }
+        for (int i = 0; i < chunks.length; i++) {
+            assertArrayEquals(new byte[]{(byte) i, (byte) (i + 1)}, mb.loadFromChunk(AddrAlign.getChunkId(chunks[i])));
+        }
+    }
+
+    @Test
+    public void force_should_write_chunks_to_file_and_close_should_unmap() throws IOException {
+        File file = File.createTempFile("mappedbins", ".bin");
+        file.deleteOnExit();
+        Allocator allocator = new Allocator.Builder()
+                .mappedSizeClass(64, 64 * 64, file)
+                .build();
+        long addr = allocator.alloc(3);
+        new OffheapMemoryAccess(allocator).store(addr, new byte[]{1, 2, 3});
+        allocator.force();
+        byte[] data = new byte[3];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(Bins.LENGTH_OFFSET);
+            raf.readFully(data);
+        }
+        assertArrayEquals(new byte[]{1, 2, 3}, data);
+        allocator.close();
+        // Unmapped, file can be deleted
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void run_should_not_cross_regions() throws IOException {
+        File file = File.createTempFile("mappedbins", ".bin");
+        file.deleteOnExit();
+        MappedBins mb = new MappedBins(file, 64, 64, 0, 1024);
+        long run = mb.allocateRun(10);
+        assertEquals(0, AddrAlign.getChunkId(run));
+        assertEquals(16, AddrAlign.getChunkId(mb.allocateRun(10)));
+        assertEquals(-1, mb.allocateRun(17));
+    }
+
+    @Test
+    public void allocator_with_mapped_class_should_work_with_contexts() throws IOException {
+        File file = File.createTempFile("mappedbins", ".bin");
+        file.deleteOnExit();
+        Allocator allocator = new Allocator.Builder()
+                .mappedSizeClass(128, 1024 * 1024, file)
+                .build();
+        long addr = allocator.alloc(1000);
+        StoreContext sc = allocator.getStoreContext(addr);
+        for (int i = 0; i < 100; i++) {
+            sc.storeLong(i);
+        }
+        LoadContext lc = allocator.getLoadContext(addr);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, lc.loadLong());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package jbu.offheap;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TestOffheapView {
+
+    @Test
+    public void flat_value_should_be_one_buffer() {
+        Allocator allocator = new Allocator.Builder().sizeClass(256, 1024 * 1024).build();
+        long addr = allocator.alloc(100);
+        StoreContext sc = allocator.getStoreContext(addr);
+        sc.storeLong(42);
+        sc.storeInt(7);
+        OffheapView view = allocator.getView(addr);
+        assertTrue(view.isContiguous());
+        ByteBuffer buffer = view.buffer();
+        assertTrue(buffer.isReadOnly());
+        assertTrue(buffer.isDirect());
+        assertEquals(240, buffer.remaining());
+        assertEquals(42, buffer.getLong());
+        assertEquals(7, buffer.getInt());
+        view.release();
+        assertEquals(0, buffer.limit());
+    }
+
+    @Test
+    public void chained_value_should_be_one_buffer_by_chunk() {
+        Allocator allocator = new Allocator.Builder().sizeClass(64, 1024 * 1024).build();
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        long addr = allocator.alloc(data.length);
+        new OffheapMemoryAccess(allocator).store(addr, data);
+        OffheapView view = allocator.getView(addr);
+        assertFalse(view.isContiguous());
+        ByteBuffer[] buffers = view.buffers();
+        assertEquals(3, buffers.length);
+        assertEquals(100, view.length());
+        assertEquals(4, buffers[2].remaining());
+        int i = 0;
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                assertEquals((byte) i++, buffer.get());
+            }
+        }
+        view.release();
+        assertArrayEquals(data, new OffheapMemoryAccess(allocator).load(addr));
+    }
+
+    @Test
+    public void value_retired_during_view_should_be_freed_after_release() {
+        Allocator allocator = new Allocator.Builder().sizeClass(256, 1024 * 1024).build();
+        EpochReclaimer reclaimer = new EpochReclaimer(allocator);
+        long addr = allocator.alloc(100);
+        OffheapView view = allocator.getView(addr, reclaimer);
+        reclaimer.retire(addr);
+        assertEquals(1, reclaimer.getPendingCount());
+        view.release();
+        reclaimer.reclaim();
+        assertEquals(0, reclaimer.getPendingCount());
+        assertEquals(0, allocator.getUsedMemory());
+    }
+}
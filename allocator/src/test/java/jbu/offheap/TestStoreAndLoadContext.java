@@ -132,6 +132,22 @@ public class TestStoreAndLoadContext {
         assertEquals('a', lc.loadChar());
     }
 
+    @Test
+    public void store_float_and_double() {
+        Allocator a = new Allocator(1024, 256);
+        long addr = a.alloc(256);
+        StoreContext sc = a.getStoreContext(addr);
+        sc.storeFloat(42.5f);
+        sc.storeDouble(-1.25e300d);
+        sc.storeFloat(Float.NaN);
+        sc.storeDouble(Double.MIN_VALUE);
+        LoadContext lc = a.getLoadContext(addr);
+        assertEquals(42.5f, lc.loadFloat(), 0);
+        assertEquals(-1.25e300d, lc.loadDouble(), 0);
+        assertEquals(Float.NaN, lc.loadFloat(), 0);
+        assertEquals(Double.MIN_VALUE, lc.loadDouble(), 0);
+    }
+
     @Test
     public void store_float_between_two_buffer() throws NoSuchFieldException {
         Allocator alloc = new Allocator(1024, 256);
@@ -161,6 +177,77 @@ public class TestStoreAndLoadContext {
     }
 
 
+
+    @Test
+    public void written_bytes_should_count_all_chunks() {
+        Allocator alloc = new Allocator(1024, 256);
+        long addr = alloc.alloc(256);
+        StoreContext sc = alloc.getStoreContext(addr);
+        A a = new A();
+        sc.storeSomething(a.a, UnsafeReflection.arrayBaseOffset(a.a), 238);
+        sc.storeInt(42);
+        assertEquals(242, sc.getWrittenBytes());
+        sc.reuse();
+        assertEquals(0, sc.getWrittenBytes());
+    }
+
+    @Test
+    public void reset_should_move_contexts_to_another_value() {
+        Allocator alloc = new Allocator(1024, 64);
+        long addr1 = alloc.alloc(100);
+        long addr2 = alloc.alloc(100);
+        StoreContext sc = alloc.getStoreContext(addr1);
+        // 44 bytes then a long across two chunks
+        for (int i = 0; i < 11; i++) {
+            sc.storeInt(i);
+        }
+        sc.storeLong(Long.MIN_VALUE + 42);
+        sc.reset(addr2);
+        assertEquals(0, sc.getWrittenBytes());
+        sc.storeLong(-1);
+        LoadContext lc = alloc.getLoadContext(addr2);
+        assertEquals(-1, lc.loadLong());
+        lc.reset(addr1);
+        for (int i = 0; i < 11; i++) {
+            assertEquals(i, lc.loadInt());
+        }
+        assertEquals(Long.MIN_VALUE + 42, lc.loadLong());
+    }
+
+    @Test
+    public void aligned_layout_should_never_split_primitives() {
+        Allocator alloc = new Allocator(4096, 64);
+        long aligned = alloc.alloc(100);
+        long plain = alloc.alloc(100);
+        StoreContext asc = alloc.getStoreContext(aligned, true);
+        StoreContext psc = alloc.getStoreContext(plain);
+        // 48 bytes by chunk: 44 bytes then a long
+        for (int i = 0; i < 11; i++) {
+            asc.storeInt(i);
+            psc.storeInt(i);
+        }
+        asc.storeLong(Long.MAX_VALUE - 1);
+        psc.storeLong(Long.MAX_VALUE - 1);
+        asc.storeShort((short) 12);
+        // Long begin next chunk after 4 bytes of padding, counted in written bytes
+        assertEquals(58, asc.getWrittenBytes());
+        assertEquals(44, alloc.getView(aligned).buffers()[0].remaining());
+        LoadContext alc = alloc.getLoadContext(aligned);
+        LoadContext plc = alloc.getLoadContext(plain);
+        for (int i = 0; i < 11; i++) {
+            assertEquals(i, alc.loadInt());
+            assertEquals(i, plc.loadInt());
+        }
+        assertEquals(Long.MAX_VALUE - 1, alc.loadLong());
+        assertEquals(Long.MAX_VALUE - 1, plc.loadLong());
+        assertEquals(12, alc.loadShort());
+        // Same context reused on a plain value
+        alc.reset(plain);
+        for (int i = 0; i < 11; i++) {
+            assertEquals(i, alc.loadInt());
+        }
+        assertEquals(Long.MAX_VALUE - 1, alc.loadLong());
+    }
 }
 
 class A {
@@ -96,4 +96,179 @@ public class TestUnsafeBins {
         assertTrue(Arrays.equals(data, dataRes));
     }
 
+    @Test
+    public void store_chunk_from_heap_byte_buffer_should_start_at_position() {
+        byte[] data = new byte[10];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        bb.position(3);
+
+        UnsafeBins ub = new UnsafeBins(2, 32, 0);
+        long[] chunks = ub.allocateNChunk(1);
+        // Less remaining bytes than chunk capacity
+        ub.storeInChunk(AddrAlign.getChunkId(chunks[0]), bb);
+        assertEquals(10, bb.position());
+        byte[] dataRes = ub.loadFromChunk(AddrAlign.getChunkId(chunks[0]));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 3, 10), dataRes));
+
+        // Same for a read only buffer
+        bb = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        bb.position(5);
+        ub.storeInChunk(AddrAlign.getChunkId(chunks[0]), bb);
+        assertEquals(10, bb.position());
+        dataRes = ub.loadFromChunk(AddrAlign.getChunkId(chunks[0]));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 5, 10), dataRes));
+    }
+
+    @Test
+    public void magazine_should_reuse_freed_chunk_without_touching_bin() {
+        UnsafeBins ub = new UnsafeBins(64, 64, 0);
+        ub.enableMagazines(8);
+        long chunk = ub.allocateOneChunk();
+        // First alloc refill the magazine with a batch
+        assertEquals(4, ub.getAllocatedChunks());
+        ub.freeChunk(chunk);
+        assertEquals(chunk, ub.allocateOneChunk());
+        assertEquals(4, ub.getAllocatedChunks());
+        assertEquals(1, ub.getMagazineHits());
+        assertEquals(1, ub.getMagazineMisses());
+    }
+
+    @Test
+    public void magazine_should_drain_when_full() {
+        UnsafeBins ub = new UnsafeBins(64, 64, 0);
+        ub.enableMagazines(4);
+        long[] chunks = new long[10];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ub.allocateOneChunk();
+        }
+        for (long chunk : chunks) {
+            ub.freeChunk(chunk);
+        }
+        assertTrue(ub.getMagazineCachedChunks() <= 4);
+        assertEquals(ub.getMagazineCachedChunks(), ub.getAllocatedChunks());
+    }
+
+    @Test
+    public void run_size_of_big_chunks_should_not_overflow() {
+        UnsafeBins ub = new UnsafeBins(4, 1 << 17, 0);
+        // 2^15 chunks of 128K do not fit in an int
+        assertEquals(Integer.MAX_VALUE / (1 << 17), ub.maxRunLength);
+        assertEquals(ub.maxRunLength * (1 << 17) - 16, ub.userDataSize(AddrAlign.constructAddr(0, 0, ub.maxRunLength)));
+        assertTrue(ub.allocateRun(ub.maxRunLength + 1) < 0);
+        assertTrue(ub.allocateRun(-1) < 0);
+        assertTrue(ub.allocateRun(4) >= 0);
+    }
+
+    @Test
+    public void magazine_of_dead_thread_should_be_returned_to_bin() throws InterruptedException {
+        final UnsafeBins ub = new UnsafeBins(4, 64, 0);
+        ub.enableMagazines(4);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                ub.freeChunk(ub.allocateOneChunk());
+            }
+        };
+        t.start();
+        t.join();
+        // Reading stats do not harvest, chunks cached by the dead thread are still allocated
+        assertEquals(2, ub.getAllocatedChunks());
+        assertEquals(2, ub.getMagazineCachedChunks());
+        assertEquals(2, ub.getAllocatedChunks());
+        // Harvested when this thread get its magazine
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ub.allocateOneChunk() >= 0);
+        }
+        assertTrue(ub.allocateOneChunk() < 0);
+    }
+
+    @Test
+    public void harvest_should_return_magazine_of_dead_thread() throws InterruptedException {
+        final UnsafeBins ub = new UnsafeBins(4, 64, 0);
+        ub.enableMagazines(4);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                ub.freeChunk(ub.allocateOneChunk());
+            }
+        };
+        t.start();
+        t.join();
+        assertEquals(2, ub.harvestMagazines());
+        assertEquals(0, ub.getMagazineCachedChunks());
+        assertEquals(0, ub.getAllocatedChunks());
+        assertEquals(0, ub.harvestMagazines());
+    }
+
+    @Test
+    public void new_thread_should_harvest_magazines_of_dead_threads() throws InterruptedException {
+        final UnsafeBins ub = new UnsafeBins(64, 64, 0);
+        ub.enableMagazines(4);
+        for (int i = 0; i < 3; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    ub.freeChunk(ub.allocateOneChunk());
+                }
+            };
+            t.start();
+            t.join();
+            // Only magazine of last thread is still cached
+            assertEquals(2, ub.getAllocatedChunks());
+        }
+    }
+
+    @Test
+    public void elastic_bin_should_grow_by_segment_up_to_max() {
+        UnsafeBins ub = new UnsafeBins(4, 1, 3, 64, 0, 0);
+        assertEquals(1, ub.getSegmentCount());
+        long[] chunks = new long[12];
+        for (int i = 0; i < 12; i++) {
+            chunks[i] = ub.allocateOneChunk();
+            assertTrue(chunks[i] >= 0);
+            ub.storeInChunk(AddrAlign.getChunkId(chunks[i]), new byte[]{(byte) i}, 0, 1);
+        }
+        assertEquals(3, ub.getSegmentCount());
+        assertEquals(3 * 4 * 64, ub.getReservedMemory());
+        assertTrue(ub.allocateOneChunk() < 0);
+        for (int i = 0; i < 12; i++) {
+            assertArrayEquals(new byte[]{(byte) i}, ub.loadFromChunk(AddrAlign.getChunkId(chunks[i])));
+        }
+    }
+
+    @Test
+    public void empty_segment_should_be_released_after_idle_time() {
+        UnsafeBins ub = new UnsafeBins(4, 1, 2, 64, 0, 0);
+        long[] first = ub.allocateNChunk(4);
+        long[] second = ub.allocateNChunk(4);
+        assertEquals(2, ub.getSegmentCount());
+        ub.freeChunk(second);
+        // Seen empty, then released on next check
+        assertEquals(0, ub.releaseIdleSegments(1000));
+        assertEquals(1, ub.releaseIdleSegments(1000));
+        assertEquals(1, ub.getSegmentCount());
+        // Initial segment is never released
+        ub.freeChunk(first);
+        ub.releaseIdleSegments(2000);
+        assertEquals(0, ub.releaseIdleSegments(2000));
+        // Grow again when needed
+        assertNotNull(ub.allocateNChunk(8));
+        assertEquals(2, ub.getSegmentCount());
+    }
+
+    @Test
+    public void used_segment_should_not_be_released() {
+        UnsafeBins ub = new UnsafeBins(4, 1, 2, 64, 0, 0);
+        ub.allocateNChunk(4);
+        long chunk = ub.allocateOneChunk();
+        ub.releaseIdleSegments(1000);
+        assertEquals(0, ub.releaseIdleSegments(1000));
+        ub.freeChunk(chunk);
+        ub.releaseIdleSegments(2000);
+        assertEquals(1, ub.releaseIdleSegments(2000));
+    }
+
 }
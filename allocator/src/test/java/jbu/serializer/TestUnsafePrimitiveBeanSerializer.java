@@ -10,6 +10,7 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -25,6 +26,7 @@ public class TestUnsafePrimitiveBeanSerializer {
         StoreContext sc = a.getStoreContext(addr);
         LotOfInt c = new LotOfInt(10);
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -43,6 +45,7 @@ public class TestUnsafePrimitiveBeanSerializer {
         StoreContext sc = a.getStoreContext(addr);
 
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -61,6 +64,7 @@ public class TestUnsafePrimitiveBeanSerializer {
         StoreContext sc = a.getStoreContext(addr);
 
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -79,6 +83,7 @@ public class TestUnsafePrimitiveBeanSerializer {
         StoreContext sc = a.getStoreContext(addr);
 
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -97,6 +102,7 @@ public class TestUnsafePrimitiveBeanSerializer {
         StoreContext sc = a.getStoreContext(addr);
 
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -115,6 +121,7 @@ public class TestUnsafePrimitiveBeanSerializer {
         StoreContext sc = a.getStoreContext(addr);
 
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -131,6 +138,7 @@ public class TestUnsafePrimitiveBeanSerializer {
         StoreContext sc = a.getStoreContext(addr);
         ArrayIntPrimitive c = new ArrayIntPrimitive(new int[]{2, 2, 2, 2, 2, 2});
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -140,8 +148,6 @@ public class TestUnsafePrimitiveBeanSerializer {
         }
 
         assertTrue(Arrays.equals(c.a, res.a));
-        // estimated size
-        int serSize = pbs.calculateSerializedSize(c);
     }
 
     @Test
@@ -153,6 +159,7 @@ public class TestUnsafePrimitiveBeanSerializer {
         StoreContext sc = a.getStoreContext(addr);
         ArrayBooleanPrimitive c = new ArrayBooleanPrimitive(new boolean[]{true, true, true, true, true});
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -161,8 +168,6 @@ public class TestUnsafePrimitiveBeanSerializer {
         //    System.out.println(i);
         //}
         assertTrue(Arrays.equals(c.a, res.a));
-        // estimated size
-        int serSize = pbs.calculateSerializedSize(c);
     }
 
 
@@ -178,6 +183,7 @@ public class TestUnsafePrimitiveBeanSerializer {
 
         //UnsafeReflection.debugArray(c.a);
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -203,6 +209,7 @@ public class TestUnsafePrimitiveBeanSerializer {
 
         //UnsafeReflection.debugArray(c.a);
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -212,8 +219,6 @@ public class TestUnsafePrimitiveBeanSerializer {
         //for(long i : res.a){
         //    System.out.println(i);
         //}
-        // estimated size
-        int serSize = pbs.calculateSerializedSize(c);
     }
 
     @Test
@@ -228,6 +233,7 @@ public class TestUnsafePrimitiveBeanSerializer {
 
         //UnsafeReflection.debugArray(c.a);
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -237,8 +243,6 @@ public class TestUnsafePrimitiveBeanSerializer {
         //for(long i : res.a){
         //    System.out.println(i);
         //}
-        // estimated size
-        int serSize = pbs.calculateSerializedSize(c);
     }
 
     @Test
@@ -254,6 +258,7 @@ public class TestUnsafePrimitiveBeanSerializer {
 
         //UnsafeReflection.debugArray(c.a);
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -263,8 +268,6 @@ public class TestUnsafePrimitiveBeanSerializer {
         //for(long i : res.a){
         //    System.out.println(i);
         //}
-        // estimated size
-        int serSize = pbs.calculateSerializedSize(c);
     }
 
     @Test
@@ -284,6 +287,7 @@ public class TestUnsafePrimitiveBeanSerializer {
 
         //UnsafeReflection.debugArray(c.a);
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -293,8 +297,6 @@ public class TestUnsafePrimitiveBeanSerializer {
         //for(long i : res.a){
         //    System.out.println(i);
         //}
-        // estimated size
-        int serSize = pbs.calculateSerializedSize(c);
     }
 
     @Test
@@ -316,6 +318,7 @@ public class TestUnsafePrimitiveBeanSerializer {
 
         //UnsafeReflection.debugArray(c.a);
         pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
 
         // Deser
         LoadContext lc = a.getLoadContext(addr);
@@ -336,6 +339,7 @@ public class TestUnsafePrimitiveBeanSerializer {
         StoreContext sc = a.getStoreContext(addr);
         Long object = 1l;
         pbs.serialize(object, sc);
+        assertSerializedSize(pbs, object, sc);
         // Deser
         LoadContext lc = a.getLoadContext(addr);
         Long res = (Long) pbs.deserialize(lc);
@@ -344,4 +348,25 @@ public class TestUnsafePrimitiveBeanSerializer {
 
     }
 
+    @Test
+    public void serialized_size_of_collection_should_count_type_of_each_element() {
+        Allocator a = new Allocator(1 * 1024 * 1024);
+        Serializer pbs = new UnsafePrimitiveBeanSerializer();
+        ObjectWithArrayList c = new ObjectWithArrayList();
+        List raw = c.collection;
+        raw.add("abc");
+        raw.add(12);
+        raw.add(new long[]{1, 2, 3});
+        // class reference, collection class reference and length, then type id and value of each element
+        assertEquals(4 + 2 * 4 + (4 + 4 + 3 * 2) + (4 + 4) + (4 + 4 + 3 * 8), pbs.calculateSerializedSize(c));
+        long addr = a.alloc(pbs.calculateSerializedSize(c));
+        StoreContext sc = a.getStoreContext(addr);
+        pbs.serialize(c, sc);
+        assertSerializedSize(pbs, c, sc);
+    }
+
+    private static void assertSerializedSize(Serializer pbs, Object o, StoreContext sc) {
+        assertEquals(pbs.calculateSerializedSize(o), sc.getWrittenBytes());
+    }
+
 }
@@ -1,23 +1,52 @@
 package jbu.cache;
 
 import jbu.exception.CannotDeserializeException;
+import jbu.exception.OutOfOffheapMemoryException;
 import jbu.offheap.Allocator;
+import jbu.offheap.EpochReclaimer;
+import jbu.offheap.LoadContext;
+import jbu.offheap.OffheapView;
+import jbu.offheap.StoreContext;
 import jbu.serializer.Serializer;
 import jbu.serializer.unsafe.UnsafePrimitiveBeanSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Map of keys to values serialized off-heap.
+ * Addresses of values can change under readers ({@link CacheCompactor}), so a read is done inside the epoch of
+ * {@link EpochReclaimer} and an unlinked value is retired, not freed.
+ * With eviction enabled a put which cannot allocate its value evicts cold entries (CLOCK, see {@link KeyIndex#evict()})
+ * and retry, so cache is bounded by its allocator.
+ * A cache built with {@link Builder#tinyLfu(boolean)} choose victims with {@link WTinyLfuPolicy} instead of CLOCK,
+ * a scan of keys read once cannot flush frequently read entries.
+ */
 public final class Cache<K, V> implements CacheMBean {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Cache.class);
 
+    // Bound of a sweep which cannot free memory
+    private static final int MAX_SWEEP_EVICTIONS = 16;
+    private static final int MAX_SWEEP_BYTES_FACTOR = 4;
+
     private final String name;
     private final Allocator allocator;
     private final Serializer pbs;
-    private final Map<K, Long> keys;
+    private final KeyIndex<K> keys;
+    private final EpochReclaimer reclaimer;
+    // Null for CLOCK eviction
+    private final WTinyLfuPolicy policy;
+    // Contexts of each thread, moved on each value instead of created
+    private final ThreadLocal<StoreContext> storeContexts = new ThreadLocal<>();
+    private final ThreadLocal<LoadContext> loadContexts = new ThreadLocal<>();
+
+    private volatile boolean evictionEnabled = false;
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong evictionSweeps = new AtomicLong(0);
+    private final AtomicLong evictionNanos = new AtomicLong(0);
+    private final AtomicLong failedSweeps = new AtomicLong(0);
 
     public Cache(String name, int approxSize) {
         this(name, new Allocator(approxSize));
@@ -28,60 +57,150 @@ public final class Cache<K, V> implements CacheMBean {
     }
 
     public Cache(String name, Allocator allocator, Serializer serializer) {
+        this(name, allocator, serializer, null, null);
+    }
+
+    /**
+     * Cache with keys serialized off-heap by {@code keySerializer}, an entry use no memory on heap.
+     * Keys are compared by their serialized bytes, equal keys must have the same serialized form
+     *
+     * @param name
+     * @param allocator
+     * @param serializer
+     * @param keySerializer
+     */
+    public Cache(String name, Allocator allocator, Serializer serializer, Serializer keySerializer) {
+        this(name, allocator, serializer, keySerializer, null);
+    }
+
+    /**
+     * @param keySerializer serializer of off-heap keys, null for keys on heap
+     * @param policy        null for CLOCK eviction
+     */
+    private Cache(String name, Allocator allocator, Serializer serializer, Serializer keySerializer,
+                  WTinyLfuPolicy policy) {
         this.name = name;
         this.allocator = allocator;
         this.pbs = serializer;
-        this.keys = new HashMap<K, Long>();
+        this.reclaimer = new EpochReclaimer(allocator);
+        if (keySerializer == null) {
+            this.keys = new SegmentedIndex<>();
+        } else {
+            // Memory of new keys is taken like memory of values, evicting when cache is full
+            this.keys = new OffheapIndex<>(allocator, keySerializer, 4 * Runtime.getRuntime().availableProcessors(),
+                    new OffheapIndex.KeyMemory() {
+                        @Override
+                        public long alloc(int size) {
+                            return allocate(size);
+                        }
+                    }, reclaimer);
+        }
+        this.policy = policy;
+        this.evictionEnabled = policy != null;
     }
 
     /**
      * Store the Object value with the key K.
      * This method return addr where K is serialized.
-     * If key already exist the object is replaced by the new value
+     * If key already exist the object is replaced by the new value, old value is freed when no reader use it
+     * Memory of the whole value is allocated before serialization, from its exact serialized size.
      *
      * @param key
      * @param value
      * @return adresse where value is stored
-     * @throws IllegalArgumentException If value is null
+     * @throws IllegalArgumentException     If value is null
+     * @throws OutOfOffheapMemoryException If value cannot be allocated (even after eviction), nothing is written
      */
     public long put(K key, V value) {
         if (value == null) {
             throw new IllegalArgumentException("Value should not be null");
         }
-        long addr = allocator.alloc();
-        pbs.serialize(value, allocator.getStoreContext(addr));
-        keys.put(key, addr);
+        int size = pbs.calculateSerializedSize(value);
+        long addr = allocate(size);
+        if (addr < 0) {
+            throw new OutOfOffheapMemoryException("Cannot allocate " + size + " bytes for value");
+        }
+        pbs.serialize(value, storeContext(addr));
+        long oldAddr;
+        try {
+            oldAddr = keys.put(key, addr);
+        } catch (OutOfOffheapMemoryException e) {
+            // No memory for an off-heap key
+            allocator.free(addr);
+            throw e;
+        }
+        if (policy != null) {
+            int h = SegmentedIndex.hash(key);
+            if (oldAddr == KeyIndex.ABSENT) {
+                policy.onInsert(h, addr);
+            } else {
+                policy.onReplace(h, oldAddr, addr);
+            }
+        }
+        if (oldAddr != KeyIndex.ABSENT) {
+            reclaimer.retire(oldAddr);
+        }
         return addr;
     }
 
     public V get(K key) {
+        reclaimer.enter();
         try {
-            return (V) pbs.deserialize(allocator.getLoadContext(keys.get(key)));
+            long addr = keys.get(key);
+            if (policy != null) {
+                policy.recordAccess(SegmentedIndex.hash(key), addr);
+            }
+            if (addr == KeyIndex.ABSENT) {
+                return null;
+            }
+            return (V) pbs.deserialize(loadContext(addr));
         } catch (CannotDeserializeException e) {
             LOGGER.error("Cannot deserialize value", e);
             return null;
+        } finally {
+            reclaimer.exit();
+        }
+    }
+
+    /**
+     * Serialized value of {@code key} read without copy. Value stay valid until view is released, release must be
+     * done by calling thread
+     *
+     * @param key
+     * @return view or null if key is not in cache
+     */
+    public OffheapView getView(K key) {
+        reclaimer.enter();
+        try {
+            long addr = keys.get(key);
+            if (policy != null) {
+                policy.recordAccess(SegmentedIndex.hash(key), addr);
+            }
+            return addr == KeyIndex.ABSENT ? null : allocator.getView(addr, reclaimer);
+        } finally {
+            reclaimer.exit();
         }
     }
 
     public boolean remove(K key) {
-        Long addr = keys.remove(key);
-        if (addr != null) {
-            allocator.free(addr);
+        long addr = keys.remove(key);
+        if (addr != KeyIndex.ABSENT) {
+            removed(addr);
             return true;
         }
         return false;
     }
 
     public V getAndRemove(K key) {
-        Long addr = keys.remove(key);
-        if (addr != null) {
+        long addr = keys.remove(key);
+        if (addr != KeyIndex.ABSENT) {
             V res = null;
             try {
-                res = (V) pbs.deserialize(allocator.getLoadContext(addr));
+                res = (V) pbs.deserialize(loadContext(addr));
             } catch (CannotDeserializeException e) {
                 LOGGER.error("Cannot deserialize value", e);
             }
-            allocator.free(addr);
+            removed(addr);
             return res;
         }
         return null;
@@ -91,9 +210,140 @@ public final class Cache<K, V> implements CacheMBean {
      * Remove all cached object
      */
     public void clean() {
-        for (Long add : keys.values()) {
-            allocator.free(add);
+        KeyIndex.Cursor<K> cursor = keys.cursor();
+        while (cursor.next()) {
+            long addr = cursor.addr();
+            if (keys.remove(cursor.key(), addr)) {
+                removed(addr);
+            }
+        }
+    }
+
+    /**
+     * Retire value of an entry removed from index
+     */
+    private void removed(long addr) {
+        if (policy != null) {
+            policy.onRemove(addr);
+        }
+        reclaimer.retire(addr);
+    }
+
+    /**
+     * Value of an entry swapped by {@link CacheCompactor}
+     */
+    void relocated(K key, long oldAddr, long addr) {
+        if (policy != null) {
+            policy.onRelocate(SegmentedIndex.hash(key), oldAddr, addr);
+        }
+    }
+
+    /**
+     * Allocate {@code size} bytes, evicting entries if eviction is enabled
+     *
+     * @return address or -1
+     */
+    private long allocate(int size) {
+        long addr = allocator.alloc(size);
+        if (addr < 0 && evictionEnabled) {
+            addr = evictAndAlloc(size);
+        }
+        return addr;
+    }
+
+    /**
+     * Evict cold entries until {@code size} bytes can be allocated. Evicted values are retired, they are freed at once
+     * if no reader is inside the epoch. A reader which stay in epoch (an unreleased view) pin all values retired
+     * after it entered: sweep stop when it evicted {@value #MAX_SWEEP_EVICTIONS} entries and
+     * {@value #MAX_SWEEP_BYTES_FACTOR} times the needed size without success, instead of flushing whole cache
+     *
+     * @param size
+     * @return address of value or -1 if cache is empty or evicted memory cannot be freed yet
+     */
+    private long evictAndAlloc(int size) {
+        long start = System.nanoTime();
+        long addr = -1;
+        int evicted = 0;
+        long evictedBytes = 0;
+        try {
+            while (addr < 0) {
+                // Readers can have left since values were retired
+                if (reclaimer.getPendingCount() > 0 && reclaimer.reclaim() > 0) {
+                    addr = allocator.alloc(size);
+                    if (addr >= 0) {
+                        break;
+                    }
+                }
+                if (evicted >= MAX_SWEEP_EVICTIONS && evictedBytes >= MAX_SWEEP_BYTES_FACTOR * (long) size) {
+                    failedSweeps.incrementAndGet();
+                    break;
+                }
+                long victim = policy != null ? policy.evict(keys) : keys.evict();
+                if (victim == KeyIndex.ABSENT) {
+                    break;
+                }
+                evictions.incrementAndGet();
+                evicted++;
+                // Read before retire, value can be freed by it
+                evictedBytes += allocator.dataLength(victim);
+                reclaimer.retire(victim);
+                addr = allocator.alloc(size);
+            }
+        } finally {
+            evictionSweeps.incrementAndGet();
+            evictionNanos.addAndGet(System.nanoTime() - start);
+        }
+        return addr;
+    }
+
+    /**
+     * Remove all cached object and free memory of index. Cache cannot be used after
+     */
+    public void close() {
+        clean();
+        keys.close();
+        if (policy != null) {
+            policy.close();
+        }
+        reclaimer.reclaim();
+    }
+
+    private StoreContext storeContext(long addr) {
+        StoreContext sc = storeContexts.get();
+        if (sc == null) {
+            sc = allocator.getStoreContext(addr);
+            storeContexts.set(sc);
+        } else {
+            sc.reset(addr);
+        }
+        return sc;
+    }
+
+    private LoadContext loadContext(long addr) {
+        LoadContext lc = loadContexts.get();
+        if (lc == null) {
+            lc = allocator.getLoadContext(addr);
+            loadContexts.set(lc);
+        } else {
+            lc.reset(addr);
         }
+        return lc;
+    }
+
+    Allocator getAllocator() {
+        return allocator;
+    }
+
+    EpochReclaimer getReclaimer() {
+        return reclaimer;
+    }
+
+    KeyIndex<K> getKeys() {
+        return keys;
+    }
+
+    WTinyLfuPolicy getPolicy() {
+        return policy;
     }
 
 
@@ -102,4 +352,110 @@ public final class Cache<K, V> implements CacheMBean {
     public String getName() {
         return name;
     }
+
+    @Override
+    public int getSize() {
+        return keys.size();
+    }
+
+    @Override
+    public boolean isEvictionEnabled() {
+        return evictionEnabled;
+    }
+
+    /**
+     * @param evictionEnabled evict cold entries when a put cannot allocate its value
+     */
+    @Override
+    public void setEvictionEnabled(boolean evictionEnabled) {
+        this.evictionEnabled = evictionEnabled;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getEvictionSweeps() {
+        return evictionSweeps.get();
+    }
+
+    @Override
+    public long getEvictionScannedEntries() {
+        return keys.getClockScanned();
+    }
+
+    @Override
+    public long getEvictionSweepNanos() {
+        return evictionNanos.get();
+    }
+
+    @Override
+    public long getFailedEvictionSweeps() {
+        return failedSweeps.get();
+    }
+
+    @Override
+    public String getEvictionPolicy() {
+        return policy != null ? "W-TinyLFU" : "CLOCK";
+    }
+
+    @Override
+    public long getAdmissionRejections() {
+        return policy != null ? policy.getRejected() : 0;
+    }
+
+    /**
+     * Builder of a cache: {@code new Cache.Builder<K, V>("name", allocator).tinyLfu(true).build()}
+     */
+    public static final class Builder<K, V> {
+        private final String name;
+        private final Allocator allocator;
+        private Serializer serializer;
+        private Serializer keySerializer;
+        private boolean tinyLfu = false;
+
+        public Builder(String name, Allocator allocator) {
+            this.name = name;
+            this.allocator = allocator;
+        }
+
+        /**
+         * @param serializer serializer of values, {@link UnsafePrimitiveBeanSerializer} by default
+         * @return this builder
+         */
+        public Builder<K, V> serializer(Serializer serializer) {
+            this.serializer = serializer;
+            return this;
+        }
+
+        /**
+         * Store keys off-heap, see {@link Cache#Cache(String, Allocator, Serializer, Serializer)}
+         *
+         * @param keySerializer serializer of keys
+         * @return this builder
+         */
+        public Builder<K, V> offheapKeys(Serializer keySerializer) {
+            this.keySerializer = keySerializer;
+            return this;
+        }
+
+        /**
+         * Evict with W-TinyLFU policy instead of CLOCK. Eviction is enabled, bookkeeping of policy cost 21 bytes by
+         * entry in arrays and 21 to 43 bytes off-heap
+         *
+         * @param tinyLfu
+         * @return this builder
+         */
+        public Builder<K, V> tinyLfu(boolean tinyLfu) {
+            this.tinyLfu = tinyLfu;
+            return this;
+        }
+
+        public Cache<K, V> build() {
+            Serializer s = serializer != null ? serializer : new UnsafePrimitiveBeanSerializer();
+            return new Cache<>(name, allocator, s, keySerializer, tinyLfu ? new WTinyLfuPolicy() : null);
+        }
+    }
 }
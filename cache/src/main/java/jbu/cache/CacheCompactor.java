@@ -0,0 +1,215 @@
+package jbu.cache;
+
+import jbu.exception.InvalidParameterException;
+import jbu.offheap.Allocator;
+import jbu.offheap.EpochReclaimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background defragmentation of a {@link Cache}.
+ * A pass walk all values, a value stored in a chain of at least {@code minChainLength} elements is copied in
+ * a flat chunk or run (or a shorter chain) and its address is swapped in the cache. Old chain is freed by the
+ * epoch reclaimer of cache when no reader use it anymore.
+ * Copy is rate limited to {@code maxBytesPerSecond} for not stealing memory bandwidth to cache users.
+ */
+public final class CacheCompactor implements CacheCompactorMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheCompactor.class);
+
+    private final Cache<?, ?> cache;
+    private final int minChainLength;
+    private final long maxBytesPerSecond;
+
+    private final AtomicLong bytesMoved = new AtomicLong(0);
+    private final AtomicLong valuesMoved = new AtomicLong(0);
+    private final AtomicLong chainLengthReduction = new AtomicLong(0);
+    private final AtomicLong passes = new AtomicLong(0);
+
+    // Earliest time of next copy for respecting rate. Only used by compacting thread
+    private long nextCopyNanos = 0;
+    private volatile Thread thread;
+
+    /**
+     * @param cache
+     * @param minChainLength    values with a shorter chain are not moved, at least 2
+     * @param maxBytesPerSecond max copied bytes by second, 0 for no limit
+     */
+    public CacheCompactor(Cache<?, ?> cache, int minChainLength, long maxBytesPerSecond) {
+        if (minChainLength < 2) {
+            throw new InvalidParameterException("Min chain length must be >= 2");
+        }
+        if (maxBytesPerSecond < 0) {
+            throw new InvalidParameterException("Max bytes per second must be >= 0");
+        }
+        this.cache = cache;
+        this.minChainLength = minChainLength;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Start a daemon thread doing a pass every {@code interval}
+     */
+    public synchronized void start(long interval, TimeUnit unit) {
+        if (thread != null) {
+            throw new IllegalStateException("Compactor already started");
+        }
+        final long intervalMillis = unit.toMillis(interval);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    compactOnce();
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "cache-compactor-" + cache.getName());
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    public synchronized void stop() {
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * Walk all values of cache once
+     *
+     * @return number of moved values
+     */
+    public int compactOnce() {
+        int moved = pass(cache);
+        cache.getReclaimer().reclaim();
+        passes.incrementAndGet();
+        if (moved > 0) {
+            LOGGER.debug("compaction_pass, cache: {}, moved_values: {}, bytes_moved: {}",
+                    cache.getName(), moved, bytesMoved.get());
+        }
+        return moved;
+    }
+
+    private <K> int pass(Cache<K, ?> c) {
+        Allocator allocator = c.getAllocator();
+        EpochReclaimer reclaimer = c.getReclaimer();
+        KeyIndex<K> keys = c.getKeys();
+        KeyIndex.Cursor<K> cursor = keys.cursor();
+        int moved = 0;
+        while (cursor.next()) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            K key = cursor.key();
+            long addr = cursor.addr();
+            long newAddr;
+            int oldLength;
+            int newLength;
+            long bytes;
+            boolean swapped;
+            // Stay in epoch until swap, addr cannot be freed and reused by another value meanwhile
+            reclaimer.enter();
+            try {
+                // Value can be removed and freed since iteration read it. Not a read, access bit is kept
+                if (addr != keys.peek(key)) {
+                    continue;
+                }
+                oldLength = allocator.chainLength(addr);
+                if (oldLength < minChainLength) {
+                    continue;
+                }
+                newAddr = allocator.relocate(addr);
+                if (newAddr < 0) {
+                    continue;
+                }
+                // Copy is not visible yet
+                newLength = allocator.chainLength(newAddr);
+                bytes = allocator.dataLength(newAddr);
+                swapped = keys.replace(key, addr, newAddr);
+            } finally {
+                reclaimer.exit();
+            }
+            if (swapped) {
+                c.relocated(key, addr, newAddr);
+                reclaimer.retire(addr);
+                bytesMoved.addAndGet(bytes);
+                valuesMoved.incrementAndGet();
+                chainLengthReduction.addAndGet(oldLength - newLength);
+                moved++;
+            } else {
+                // Value changed during copy
+                allocator.free(newAddr);
+            }
+            throttle(bytes);
+        }
+        return moved;
+    }
+
+    /**
+     * Sleep for keeping copy rate under max bytes per second
+     */
+    private void throttle(long bytes) {
+        if (maxBytesPerSecond == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        // No credit for idle time
+        if (nextCopyNanos < now) {
+            nextCopyNanos = now;
+        }
+        nextCopyNanos += bytes * TimeUnit.SECONDS.toNanos(1) / maxBytesPerSecond;
+        long waitNanos = nextCopyNanos - now;
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public long getBytesMoved() {
+        return bytesMoved.get();
+    }
+
+    @Override
+    public long getValuesMoved() {
+        return valuesMoved.get();
+    }
+
+    @Override
+    public long getChainLengthReduction() {
+        return chainLengthReduction.get();
+    }
+
+    @Override
+    public long getPasses() {
+        return passes.get();
+    }
+
+    @Override
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    @Override
+    public int getPendingFrees() {
+        return cache.getReclaimer().getPendingCount();
+    }
+}
@@ -0,0 +1,19 @@
+package jbu.cache;
+
+public interface CacheCompactorMBean {
+
+    long getBytesMoved();
+
+    long getValuesMoved();
+
+    /**
+     * @return sum over moved values of chain length before minus chain length after
+     */
+    long getChainLengthReduction();
+
+    long getPasses();
+
+    long getMaxBytesPerSecond();
+
+    int getPendingFrees();
+}
@@ -2,4 +2,45 @@ package jbu.cache;
 
 public interface CacheMBean {
     String getName();
+
+    int getSize();
+
+    boolean isEvictionEnabled();
+
+    void setEvictionEnabled(boolean evictionEnabled);
+
+    /**
+     * @return number of entries evicted for making room to a put
+     */
+    long getEvictions();
+
+    /**
+     * @return number of puts which evicted entries
+     */
+    long getEvictionSweeps();
+
+    /**
+     * @return entries visited by CLOCK hand, cost of sweeps
+     */
+    long getEvictionScannedEntries();
+
+    /**
+     * @return time spent in sweeps
+     */
+    long getEvictionSweepNanos();
+
+    /**
+     * @return sweeps stopped because evicted values could not be freed (pinned by a reader)
+     */
+    long getFailedEvictionSweeps();
+
+    /**
+     * @return CLOCK or W-TinyLFU
+     */
+    String getEvictionPolicy();
+
+    /**
+     * @return new entries evicted by W-TinyLFU because not more frequent than victim of main space
+     */
+    long getAdmissionRejections();
 }
@@ -0,0 +1,112 @@
+package jbu.cache;
+
+/**
+ * Count-min sketch of access frequency of keys, with 4 bits counters (max 15) packed 16 by long.
+ * A key use 4 counters, one in each quarter of a long chosen by its hash, frequency is the minimum of them.
+ * After 10 increments by long of table all counters are halved, so old accesses are forgotten (aging).
+ * Not thread safe.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int additions = 0;
+    private long resets = 0;
+
+    FrequencySketch() {
+        ensureCapacity(MIN_TABLE_SIZE);
+    }
+
+    /**
+     * Grow table for counting about {@code maximumSize} keys.
+     * A counter is found by the low bits of a hash, so copying old table in each part of new one keep all counts
+     *
+     * @param maximumSize
+     */
+    void ensureCapacity(int maximumSize) {
+        int size = MIN_TABLE_SIZE;
+        while (size < maximumSize && size < (1 << 30)) {
+            size <<= 1;
+        }
+        if (table != null && table.length >= size) {
+            return;
+        }
+        long[] newTable = new long[size];
+        if (table != null) {
+            for (int i = 0; i < size; i++) {
+                newTable[i] = table[i & tableMask];
+            }
+        }
+        table = newTable;
+        tableMask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    int capacity() {
+        return table.length;
+    }
+
+    /**
+     * @param hash spread hash of key
+     * @return estimated number of accesses, at most 15
+     */
+    int frequency(int hash) {
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int shift = (start + i) << 2;
+            int count = (int) ((table[indexOf(hash, i)] >>> shift) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Count one access of key
+     *
+     * @param hash spread hash of key
+     */
+    void increment(int hash) {
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int shift = (start + i) << 2;
+            if (((table[index] >>> shift) & 0xfL) < MAX_COUNT) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halve all counters
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+        resets++;
+    }
+
+    long getResets() {
+        return resets;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+}
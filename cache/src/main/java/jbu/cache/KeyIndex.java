@@ -0,0 +1,112 @@
+package jbu.cache;
+
+/**
+ * Index of keys to addresses of values of a {@link Cache}. Implementations are thread safe.
+ * {@link #ABSENT} is returned for a key without value.
+ */
+interface KeyIndex<K> {
+
+    long ABSENT = -1;
+
+    /**
+     * Lookup of a read of cache, set access bit of entry
+     *
+     * @param key
+     * @return address of value or {@link #ABSENT}
+     */
+    long get(K key);
+
+    /**
+     * Lookup for internal checks (compaction), access bit of entry is not changed
+     *
+     * @param key
+     * @return address of value or {@link #ABSENT}
+     */
+    long peek(K key);
+
+    /**
+     * Map {@code key} to {@code addr}
+     *
+     * @param key
+     * @param addr
+     * @return replaced address or {@link #ABSENT}
+     */
+    long put(K key, long addr);
+
+    /**
+     * @param key
+     * @return removed address or {@link #ABSENT}
+     */
+    long remove(K key);
+
+    /**
+     * Remove {@code key} only if it is mapped to {@code addr}
+     *
+     * @param key
+     * @param addr
+     * @return true if removed
+     */
+    boolean remove(K key, long addr);
+
+    /**
+     * Map {@code key} to {@code addr} only if it is mapped to {@code expected}
+     *
+     * @param key
+     * @param expected
+     * @param addr
+     * @return true if replaced
+     */
+    boolean replace(K key, long expected, long addr);
+
+    /**
+     * Remove entry mapped to {@code addr}, without its key. Used by eviction policy which keep only hash and
+     * address of entries
+     *
+     * @param hash {@link SegmentedIndex#hash(Object)} of key
+     * @param addr
+     * @return true if removed
+     */
+    boolean removeAddr(int hash, long addr);
+
+    int size();
+
+    /**
+     * Walk entries. Cursor is weakly consistent: it never fail on concurrent writes, entries added or removed
+     * during walk can be seen or not
+     */
+    Cursor<K> cursor();
+
+    /**
+     * Move CLOCK hand: an entry read since last visit of hand get a second chance, first entry not read is removed.
+     * A get set the access bit of entry, a new entry has it set.
+     *
+     * @return address of value of removed entry or {@link #ABSENT} if index is empty
+     */
+    long evict();
+
+    /**
+     * @return number of entries (and empty buckets or slots) visited by CLOCK hand since creation
+     */
+    long getClockScanned();
+
+    /**
+     * Free memory used by index. Index cannot be used after
+     */
+    void close();
+
+    interface Cursor<K> {
+        /**
+         * Move to next entry
+         *
+         * @return false when all entries was walked
+         */
+        boolean next();
+
+        K key();
+
+        /**
+         * @return address of value of entry, can have changed since {@link #next()}
+         */
+        long addr();
+    }
+}
@@ -0,0 +1,239 @@
+package jbu.cache;
+
+import jbu.exception.CannotDeserializeException;
+import jbu.exception.OutOfOffheapMemoryException;
+import jbu.offheap.Allocator;
+import jbu.offheap.EpochReclaimer;
+import jbu.offheap.LoadContext;
+import jbu.offheap.StoreContext;
+import jbu.serializer.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of values serialized off-heap keyed by a primitive long.
+ * Index is made of segments, each one a {@link LongLongMap} of key to address of value. Writers of a segment take
+ * its lock and make its version odd during the write. Readers take no lock (seqlock): they read the version, look up
+ * the map and retry if version changed. Keys and addresses are never boxed, a get make no garbage apart from
+ * deserialized value.
+ * Like {@link Cache} a read is done inside the epoch of {@link EpochReclaimer} and an unlinked value is retired.
+ */
+public final class LongKeyCache<V> implements LongKeyCacheMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LongKeyCache.class);
+
+    private static final long ABSENT = -1;
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    private final String name;
+    private final Allocator allocator;
+    private final Serializer pbs;
+    private final EpochReclaimer reclaimer;
+    private final Segment[] segments;
+    private final int segmentShift;
+    // Contexts of each thread, moved on each value instead of created
+    private final ThreadLocal<StoreContext> storeContexts = new ThreadLocal<>();
+    private final ThreadLocal<LoadContext> loadContexts = new ThreadLocal<>();
+
+    public LongKeyCache(String name, Allocator allocator, Serializer serializer) {
+        this(name, allocator, serializer, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param name
+     * @param allocator
+     * @param serializer
+     * @param concurrency number of writers expected at the same time, rounded to a power of two
+     */
+    public LongKeyCache(String name, Allocator allocator, Serializer serializer, int concurrency) {
+        this.name = name;
+        this.allocator = allocator;
+        this.pbs = serializer;
+        this.reclaimer = new EpochReclaimer(allocator);
+        int nbSegments = 1;
+        while (nbSegments < concurrency && nbSegments < MAX_SEGMENTS) {
+            nbSegments <<= 1;
+        }
+        this.segments = new Segment[nbSegments];
+        for (int i = 0; i < nbSegments; i++) {
+            segments[i] = new Segment();
+        }
+        // Segment is chosen by high bits of mixed key, slot in map by low bits
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(nbSegments);
+    }
+
+    private Segment segmentFor(long key) {
+        return segments.length == 1 ? segments[0] : segments[(int) (LongLongMap.mix(key) >>> segmentShift)];
+    }
+
+    /**
+     * Store value with key. If key already exist old value is freed when no reader use it
+     *
+     * @param key
+     * @param value
+     * @return adresse where value is stored
+     * @throws IllegalArgumentException     If value is null
+     * @throws OutOfOffheapMemoryException If value cannot be allocated, nothing is written
+     */
+    public long put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value should not be null");
+        }
+        int size = pbs.calculateSerializedSize(value);
+        long addr = allocator.alloc(size);
+        if (addr < 0) {
+            throw new OutOfOffheapMemoryException("Cannot allocate " + size + " bytes for value");
+        }
+        pbs.serialize(value, storeContext(addr));
+        Segment s = segmentFor(key);
+        long oldAddr;
+        s.beginWrite();
+        try {
+            oldAddr = s.map.put(key, addr);
+        } finally {
+            s.endWrite();
+        }
+        if (oldAddr != ABSENT) {
+            reclaimer.retire(oldAddr);
+        }
+        return addr;
+    }
+
+    public V get(long key) {
+        reclaimer.enter();
+        try {
+            long addr = segmentFor(key).get(key);
+            if (addr == ABSENT) {
+                return null;
+            }
+            return (V) pbs.deserialize(loadContext(addr));
+        } catch (CannotDeserializeException e) {
+            LOGGER.error("Cannot deserialize value", e);
+            return null;
+        } finally {
+            reclaimer.exit();
+        }
+    }
+
+    public boolean remove(long key) {
+        Segment s = segmentFor(key);
+        long addr;
+        s.beginWrite();
+        try {
+            addr = s.map.remove(key);
+        } finally {
+            s.endWrite();
+        }
+        if (addr != ABSENT) {
+            reclaimer.retire(addr);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int getSize() {
+        long size = 0;
+        for (Segment s : segments) {
+            // Racy read of an int, a count is enough for monitoring
+            size += s.map.size();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Remove all cached object
+     */
+    public void clean() {
+        for (Segment s : segments) {
+            s.beginWrite();
+            try {
+                LongLongMap map = s.map;
+                for (int slot = map.nextSlot(-1); slot >= 0; slot = map.nextSlot(slot)) {
+                    reclaimer.retire(map.valueAt(slot));
+                }
+                map.clear();
+            } finally {
+                s.endWrite();
+            }
+        }
+    }
+
+    /**
+     * Remove all cached object and free memory of index. Cache cannot be used after
+     */
+    public void close() {
+        clean();
+        for (Segment s : segments) {
+            s.beginWrite();
+            try {
+                s.map.free();
+            } finally {
+                s.endWrite();
+            }
+        }
+        reclaimer.reclaim();
+    }
+
+    private StoreContext storeContext(long addr) {
+        StoreContext sc = storeContexts.get();
+        if (sc == null) {
+            sc = allocator.getStoreContext(addr);
+            storeContexts.set(sc);
+        } else {
+            sc.reset(addr);
+        }
+        return sc;
+    }
+
+    private LoadContext loadContext(long addr) {
+        LoadContext lc = loadContexts.get();
+        if (lc == null) {
+            lc = allocator.getLoadContext(addr);
+            loadContexts.set(lc);
+        } else {
+            lc.reset(addr);
+        }
+        return lc;
+    }
+
+    EpochReclaimer getReclaimer() {
+        return reclaimer;
+    }
+
+    // JMX Accessor
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private static final class Segment extends ReentrantLock {
+        final LongLongMap map = new LongLongMap(0, ABSENT, true);
+        // Odd during a write
+        private volatile long version = 0;
+
+        void beginWrite() {
+            lock();
+            version++;
+        }
+
+        void endWrite() {
+            version++;
+            unlock();
+        }
+
+        long get(long key) {
+            while (true) {
+                long v = version;
+                if ((v & 1) == 0) {
+                    long addr = map.getConcurrent(key);
+                    if (version == v) {
+                        return addr;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package jbu.cache;
+
+public interface LongKeyCacheMBean {
+    String getName();
+
+    int getSize();
+}
@@ -0,0 +1,315 @@
+package jbu.cache;
+
+import jbu.exception.InvalidParameterException;
+
+import java.util.Arrays;
+
+import static jbu.UnsafeUtil.unsafe;
+
+/**
+ * Map of long to long in native memory, without boxing.
+ * Open addressing table of [key:8][value:8] slots probed linearly. A slot is free when its value is the
+ * no value of map, so any key can be stored but not this value. Removal shift back following entries of the
+ * probe sequence, there is no tombstone.
+ * Not thread safe. Memory must be given back with {@link #free()}.
+ * A map built for concurrent reads support {@link #getConcurrent(long)} by threads which validate the result
+ * themselves (seqlock of {@link LongKeyCache}): old tables are kept until free, so a racy read never touch freed
+ * memory.
+ */
+public final class LongLongMap {
+
+    private static final int SLOT_SIZE = 16;
+    // Table is preceded by its capacity, read with table by concurrent readers
+    private static final int HEADER_SIZE = 8;
+    private static final int VALUE_OFFSET = 8;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final long noValue;
+    private final boolean concurrentReads;
+    // Tables replaced by a resize, kept for concurrent readers
+    private long[] oldTables = new long[0];
+    private volatile long table;
+    private int capacity;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * @param expectedSize number of entries without resize
+     * @param noValue      value returned for a missing key, cannot be stored
+     */
+    public LongLongMap(int expectedSize, long noValue) {
+        this(expectedSize, noValue, false);
+    }
+
+    /**
+     * @param expectedSize    number of entries without resize
+     * @param noValue         value returned for a missing key, cannot be stored
+     * @param concurrentReads keep old tables for {@link #getConcurrent(long)}
+     */
+    LongLongMap(int expectedSize, long noValue, boolean concurrentReads) {
+        if (expectedSize < 0) {
+            throw new InvalidParameterException("Expected size must be >= 0");
+        }
+        this.noValue = noValue;
+        this.concurrentReads = concurrentReads;
+        int cap = MIN_CAPACITY;
+        // Load factor of 0.75
+        while (cap - (cap >>> 2) < expectedSize && cap < MAX_CAPACITY) {
+            cap <<= 1;
+        }
+        this.table = newTable(cap);
+        this.capacity = cap;
+        this.mask = cap - 1;
+    }
+
+    /**
+     * Mix bits of key (finalizer of murmur3)
+     */
+    static long mix(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return address of first slot of a new empty table
+     */
+    private long newTable(int cap) {
+        long bytes = (long) cap * SLOT_SIZE;
+        long newTable = unsafe.allocateMemory(HEADER_SIZE + bytes) + HEADER_SIZE;
+        unsafe.putInt(newTable - HEADER_SIZE, cap);
+        for (long slot = newTable; slot < newTable + bytes; slot += SLOT_SIZE) {
+            unsafe.putLong(slot + VALUE_OFFSET, noValue);
+        }
+        return newTable;
+    }
+
+    private long slotOf(int index) {
+        return table + (long) index * SLOT_SIZE;
+    }
+
+    /**
+     * @return slot of key or free slot ending its probe sequence
+     */
+    private long find(long key) {
+        int index = (int) mix(key) & mask;
+        while (true) {
+            long slot = slotOf(index);
+            if (unsafe.getLong(slot + VALUE_OFFSET) == noValue || unsafe.getLong(slot) == key) {
+                return slot;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * @param key
+     * @return value of key or no value
+     */
+    public long get(long key) {
+        return unsafe.getLong(find(key) + VALUE_OFFSET);
+    }
+
+    /**
+     * Get without lock while a writer can modify map. Result is garbage if a write ran during the call, caller must
+     * detect it (version of a seqlock) and retry. Only for a map built for concurrent reads
+     *
+     * @param key
+     * @return value of key, no value or garbage
+     */
+    long getConcurrent(long key) {
+        long t = table;
+        if (t == 0) {
+            // Freed
+            return noValue;
+        }
+        int m = unsafe.getInt(t - HEADER_SIZE) - 1;
+        int index = (int) mix(key) & m;
+        // Bounded, a table seen during a write can have no free slot on the probe sequence
+        for (int i = 0; i <= m; i++) {
+            long slot = t + (long) index * SLOT_SIZE;
+            long value = unsafe.getLongVolatile(null, slot + VALUE_OFFSET);
+            if (value == noValue) {
+                return noValue;
+            }
+            if (unsafe.getLongVolatile(null, slot) == key) {
+                return value;
+            }
+            index = (index + 1) & m;
+        }
+        return noValue;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return replaced value or no value
+     */
+    public long put(long key, long value) {
+        if (value == noValue) {
+            throw new InvalidParameterException("Cannot store no value " + noValue);
+        }
+        long slot = find(key);
+        long old = unsafe.getLong(slot + VALUE_OFFSET);
+        if (old == noValue) {
+            if (size + 1 > capacity - (capacity >>> 2) && capacity < MAX_CAPACITY) {
+                resize(capacity << 1);
+                slot = find(key);
+            }
+            unsafe.putOrderedLong(null, slot, key);
+            size++;
+        }
+        unsafe.putOrderedLong(null, slot + VALUE_OFFSET, value);
+        return old;
+    }
+
+    /**
+     * Set value of key only if it is {@code expected}
+     *
+     * @return true if replaced
+     */
+    public boolean replace(long key, long expected, long value) {
+        if (value == noValue) {
+            throw new InvalidParameterException("Cannot store no value " + noValue);
+        }
+        long slot = find(key);
+        if (expected == noValue || unsafe.getLong(slot + VALUE_OFFSET) != expected) {
+            return false;
+        }
+        unsafe.putOrderedLong(null, slot + VALUE_OFFSET, value);
+        return true;
+    }
+
+    /**
+     * @param key
+     * @return removed value or no value
+     */
+    public long remove(long key) {
+        long slot = find(key);
+        long old = unsafe.getLong(slot + VALUE_OFFSET);
+        if (old == noValue) {
+            return noValue;
+        }
+        int free = (int) ((slot - table) / SLOT_SIZE);
+        int index = free;
+        // Shift back entries which cannot be found anymore from their home slot
+        while (true) {
+            index = (index + 1) & mask;
+            long current = slotOf(index);
+            if (unsafe.getLong(current + VALUE_OFFSET) == noValue) {
+                break;
+            }
+            int home = (int) mix(unsafe.getLong(current)) & mask;
+            // Entry stay if its home is cyclically in ]free, index]
+            boolean stay = free <= index ? free < home && home <= index : free < home || home <= index;
+            if (!stay) {
+                long freeSlot = slotOf(free);
+                unsafe.putOrderedLong(null, freeSlot, unsafe.getLong(current));
+                unsafe.putOrderedLong(null, freeSlot + VALUE_OFFSET, unsafe.getLong(current + VALUE_OFFSET));
+                free = index;
+            }
+        }
+        unsafe.putOrderedLong(null, slotOf(free) + VALUE_OFFSET, noValue);
+        size--;
+        return old;
+    }
+
+    private void resize(int newCapacity) {
+        long oldTable = table;
+        int oldCapacity = capacity;
+        long newTable = newTable(newCapacity);
+        int newMask = newCapacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            long slot = oldTable + (long) i * SLOT_SIZE;
+            long value = unsafe.getLong(slot + VALUE_OFFSET);
+            if (value != noValue) {
+                long key = unsafe.getLong(slot);
+                int index = (int) mix(key) & newMask;
+                while (unsafe.getLong(newTable + (long) index * SLOT_SIZE + VALUE_OFFSET) != noValue) {
+                    index = (index + 1) & newMask;
+                }
+                long newSlot = newTable + (long) index * SLOT_SIZE;
+                unsafe.putLong(newSlot, key);
+                unsafe.putLong(newSlot + VALUE_OFFSET, value);
+            }
+        }
+        // Published filled
+        this.capacity = newCapacity;
+        this.mask = newMask;
+        this.table = newTable;
+        if (concurrentReads) {
+            // At most the size of current table
+            oldTables = Arrays.copyOf(oldTables, oldTables.length + 1);
+            oldTables[oldTables.length - 1] = oldTable;
+        } else {
+            unsafe.freeMemory(oldTable - HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Remove all entries, capacity is kept
+     */
+    public void clear() {
+        for (int i = 0; i < capacity; i++) {
+            unsafe.putOrderedLong(null, slotOf(i) + VALUE_OFFSET, noValue);
+        }
+        size = 0;
+    }
+
+    /**
+     * Index of next used slot, for walking entries without garbage:
+     * {@code for (int s = map.nextSlot(-1); s >= 0; s = map.nextSlot(s))}
+     *
+     * @param slot previous slot or -1
+     * @return next used slot or -1
+     */
+    public int nextSlot(int slot) {
+        for (int i = slot + 1; i < capacity; i++) {
+            if (unsafe.getLong(slotOf(i) + VALUE_OFFSET) != noValue) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public long keyAt(int slot) {
+        return unsafe.getLong(slotOf(slot));
+    }
+
+    public long valueAt(int slot) {
+        return unsafe.getLong(slotOf(slot) + VALUE_OFFSET);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long getNoValue() {
+        return noValue;
+    }
+
+    /**
+     * Give back native memory. Map cannot be used after
+     */
+    public void free() {
+        if (table != 0) {
+            unsafe.freeMemory(table - HEADER_SIZE);
+            for (long oldTable : oldTables) {
+                unsafe.freeMemory(oldTable - HEADER_SIZE);
+            }
+            oldTables = new long[0];
+            table = 0;
+            capacity = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,686 @@
+package jbu.cache;
+
+import jbu.exception.CannotDeserializeException;
+import jbu.exception.OutOfOffheapMemoryException;
+import jbu.offheap.Allocator;
+import jbu.offheap.EpochReclaimer;
+import jbu.offheap.StoreContext;
+import jbu.serializer.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static jbu.UnsafeUtil.unsafe;
+
+/**
+ * Index of keys stored off-heap, an entry use no object on heap.
+ * Keys are serialized in allocator memory. Table of each segment is an open addressing array of slots in native
+ * memory, probed linearly. A slot is [key address:8][value address:8][hash:4][access bit:1 | key length:31].
+ * A lookup serialize the key once in a scratch region of calling thread, then compare bytes of keys off-heap.
+ * Scratch regions are native memory of index, not of allocator: a lookup never fail when cache is full.
+ * Memory of a new key is taken outside segment lock by {@link KeyMemory}, which can evict entries.
+ * Writers of a segment take its lock and make its version odd during the write. Lookups take no lock (seqlock):
+ * they read the version, probe the table and retry if version changed. A lookup stay in epoch of
+ * {@link EpochReclaimer}: key of a removed entry and table replaced by a rehash are retired, never freed under a
+ * reader.
+ * A get set the access bit of the slot by a CAS only if it is clear, the CLOCK hand clear it under lock.
+ */
+final class OffheapIndex<K> implements KeyIndex<K> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OffheapIndex.class);
+
+    private static final int SLOT_SIZE = 24;
+    private static final int HEADER_SIZE = 8;
+    private static final int VALUE_OFFSET = 8;
+    private static final int HASH_OFFSET = 16;
+    private static final int LENGTH_OFFSET = 20;
+    private static final int REFERENCED = 0x80000000;
+    // Key address of a free slot. A table filled with 0xFF bytes is empty
+    private static final long EMPTY = -1;
+    private static final long DELETED = -2;
+
+    private static final int MAX_SEGMENTS = 1 << 16;
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 30;
+    private static final int MIN_SCRATCH_SIZE = 64;
+
+    private final Allocator allocator;
+    private final Serializer serializer;
+    private final KeyMemory keyMemory;
+    private final EpochReclaimer reclaimer;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int segmentMask;
+
+    // CLOCK hand, guarded by clock
+    private final Object clock = new Object();
+    private int handSegment = 0;
+    private int handSlot = 0;
+    private volatile long clockScanned = 0;
+
+    // Scratch of each thread, all kept for freeing them on close or when their thread is dead
+    private final List<Scratch> scratchs = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            freeDeadScratchs();
+            Scratch s = new Scratch(Thread.currentThread());
+            scratchs.add(s);
+            return s;
+        }
+    };
+
+    /**
+     * Index with 4 segments by available processor
+     *
+     * @param allocator  memory of keys
+     * @param serializer serializer of keys
+     */
+    OffheapIndex(Allocator allocator, Serializer serializer) {
+        this(allocator, serializer, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param allocator   memory of keys
+     * @param serializer  serializer of keys
+     * @param concurrency number of writers expected at the same time, rounded to a power of two
+     */
+    OffheapIndex(Allocator allocator, Serializer serializer, int concurrency) {
+        this(allocator, serializer, concurrency, null);
+    }
+
+    OffheapIndex(Allocator allocator, Serializer serializer, int concurrency, KeyMemory keyMemory) {
+        this(allocator, serializer, concurrency, keyMemory, new EpochReclaimer(allocator));
+    }
+
+    /**
+     * @param allocator   memory of keys
+     * @param serializer  serializer of keys
+     * @param concurrency number of writers expected at the same time, rounded to a power of two
+     * @param keyMemory   allocation of new keys, null for a plain alloc in allocator
+     * @param reclaimer   deferred free of removed keys and old tables, can be shared with values of cache
+     */
+    OffheapIndex(Allocator allocator, Serializer serializer, int concurrency, KeyMemory keyMemory,
+                 EpochReclaimer reclaimer) {
+        this.allocator = allocator;
+        this.serializer = serializer;
+        this.keyMemory = keyMemory;
+        this.reclaimer = reclaimer;
+        int nbSegments = 1;
+        while (nbSegments < concurrency && nbSegments < MAX_SEGMENTS) {
+            nbSegments <<= 1;
+        }
+        this.segments = new Segment[nbSegments];
+        for (int i = 0; i < nbSegments; i++) {
+            segments[i] = new Segment(allocator, reclaimer);
+        }
+        this.segmentMask = nbSegments - 1;
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(nbSegments);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    @Override
+    public long get(K key) {
+        return lookup(key, true);
+    }
+
+    @Override
+    public long peek(K key) {
+        return lookup(key, false);
+    }
+
+    private long lookup(K key, boolean access) {
+        int h = SegmentedIndex.hash(key);
+        Scratch probe = serializeKey(key);
+        Segment s = segmentFor(h);
+        reclaimer.enter();
+        try {
+            while (true) {
+                long v = s.version;
+                if ((v & 1) != 0) {
+                    continue;
+                }
+                long slot = s.findConcurrent(h, probe);
+                long addr = slot < 0 ? ABSENT : unsafe.getLongVolatile(null, slot + VALUE_OFFSET);
+                if (s.version != v) {
+                    continue;
+                }
+                if (access && slot >= 0) {
+                    int lengthAndBit = unsafe.getIntVolatile(null, slot + LENGTH_OFFSET);
+                    if ((lengthAndBit & REFERENCED) == 0) {
+                        // Fail if slot changed since, bit of another entry or a new length is never overwritten
+                        unsafe.compareAndSwapInt(null, slot + LENGTH_OFFSET, lengthAndBit, lengthAndBit | REFERENCED);
+                    }
+                }
+                return addr;
+            }
+        } finally {
+            reclaimer.exit();
+        }
+    }
+
+    /**
+     * Key of a new entry is stored outside lock (allocation can evict entries of other segments), so a missing key
+     * is looked up twice
+     */
+    @Override
+    public long put(K key, long addr) {
+        int h = SegmentedIndex.hash(key);
+        Scratch probe = serializeKey(key);
+        Segment s = segmentFor(h);
+        long keyAddr = -1;
+        try {
+            while (true) {
+                s.beginWrite();
+                try {
+                    long slot = s.find(h, probe);
+                    if (slot >= 0) {
+                        long old = unsafe.getLong(slot + VALUE_OFFSET);
+                        unsafe.putLong(slot + VALUE_OFFSET, addr);
+                        return old;
+                    }
+                    if (keyAddr >= 0) {
+                        s.insert(h, keyAddr, probe.length, addr);
+                        keyAddr = -1;
+                        return ABSENT;
+                    }
+                } finally {
+                    s.endWrite();
+                }
+                keyAddr = storeKey(key, probe.length);
+            }
+        } finally {
+            // Key added by another thread meanwhile
+            if (keyAddr >= 0) {
+                allocator.free(keyAddr);
+            }
+        }
+    }
+
+    @Override
+    public long remove(K key) {
+        int h = SegmentedIndex.hash(key);
+        return segmentFor(h).remove(h, serializeKey(key), ABSENT);
+    }
+
+    @Override
+    public boolean remove(K key, long addr) {
+        int h = SegmentedIndex.hash(key);
+        return segmentFor(h).remove(h, serializeKey(key), addr) != ABSENT;
+    }
+
+    @Override
+    public boolean replace(K key, long expected, long addr) {
+        int h = SegmentedIndex.hash(key);
+        Scratch probe = serializeKey(key);
+        Segment s = segmentFor(h);
+        s.beginWrite();
+        try {
+            long slot = s.find(h, probe);
+            if (slot < 0 || unsafe.getLong(slot + VALUE_OFFSET) != expected) {
+                return false;
+            }
+            unsafe.putLong(slot + VALUE_OFFSET, addr);
+            return true;
+        } finally {
+            s.endWrite();
+        }
+    }
+
+    @Override
+    public boolean removeAddr(int hash, long addr) {
+        Segment s = segmentFor(hash);
+        s.beginWrite();
+        try {
+            int mask = s.capacity - 1;
+            int index = hash & mask;
+            while (true) {
+                long slot = s.table + (long) index * SLOT_SIZE;
+                long keyAddr = unsafe.getLong(slot);
+                if (keyAddr == EMPTY) {
+                    return false;
+                }
+                if (keyAddr != DELETED && unsafe.getInt(slot + HASH_OFFSET) == hash
+                        && unsafe.getLong(slot + VALUE_OFFSET) == addr) {
+                    s.removeSlot(slot);
+                    return true;
+                }
+                index = (index + 1) & mask;
+            }
+        } finally {
+            s.endWrite();
+        }
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (Segment s : segments) {
+            size += s.count;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    int getNbSegments() {
+        return segments.length;
+    }
+
+    @Override
+    public Cursor<K> cursor() {
+        return new SlotCursor();
+    }
+
+    /**
+     * Hand visit slots of segments in order. Access bit of a referenced entry is cleared, first entry not referenced
+     * is removed. Hand stop after two full turns
+     */
+    @Override
+    public long evict() {
+        synchronized (clock) {
+            long budget = 0;
+            for (Segment s : segments) {
+                budget += s.capacity;
+            }
+            budget *= 2;
+            long scanned = 0;
+            try {
+                while (scanned < budget) {
+                    Segment s = segments[handSegment];
+                    s.beginWrite();
+                    try {
+                        while (handSlot < s.capacity && scanned < budget) {
+                            long slot = s.table + (long) handSlot * SLOT_SIZE;
+                            scanned++;
+                            if (unsafe.getLong(slot) >= 0) {
+                                int lengthAndBit = unsafe.getInt(slot + LENGTH_OFFSET);
+                                if ((lengthAndBit & REFERENCED) != 0) {
+                                    unsafe.putInt(slot + LENGTH_OFFSET, lengthAndBit & ~REFERENCED);
+                                } else {
+                                    long addr = unsafe.getLong(slot + VALUE_OFFSET);
+                                    s.removeSlot(slot);
+                                    return addr;
+                                }
+                            }
+                            handSlot++;
+                        }
+                        if (handSlot >= s.capacity) {
+                            handSlot = 0;
+                            handSegment = (handSegment + 1) & segmentMask;
+                        }
+                    } finally {
+                        s.endWrite();
+                    }
+                }
+                return ABSENT;
+            } finally {
+                clockScanned += scanned;
+            }
+        }
+    }
+
+    @Override
+    public long getClockScanned() {
+        return clockScanned;
+    }
+
+    /**
+     * Free keys, tables and scratch values. No thread must use index during and after close
+     */
+    @Override
+    public void close() {
+        for (Segment s : segments) {
+            s.beginWrite();
+            try {
+                s.free();
+            } finally {
+                s.endWrite();
+            }
+        }
+        for (Scratch s : scratchs) {
+            s.free();
+        }
+        scratchs.clear();
+        // Removed keys and old tables
+        reclaimer.reclaim();
+    }
+
+    /**
+     * Free scratch of threads which are dead, called when a thread create its scratch
+     */
+    private void freeDeadScratchs() {
+        for (Scratch s : scratchs) {
+            Thread owner = s.owner.get();
+            if (owner == null || !owner.isAlive()) {
+                scratchs.remove(s);
+                s.free();
+            }
+        }
+    }
+
+    /**
+     * Serialize key in scratch region of calling thread
+     */
+    private Scratch serializeKey(K key) {
+        int size = serializer.calculateSerializedSize(key);
+        Scratch s = scratch.get();
+        if (s.addr == 0 || size > s.capacity) {
+            s.free();
+            int capacity = Math.max(size, MIN_SCRATCH_SIZE);
+            s.addr = unsafe.allocateMemory(Allocator.regionSize(capacity));
+            s.capacity = capacity;
+        }
+        // Context is bounded to length of key, it check size given by serializer
+        StoreContext sc = Allocator.getRegionStoreContext(s.addr, size);
+        serializer.serialize(key, sc);
+        s.length = size;
+        return s;
+    }
+
+    /**
+     * Serialize key of a new entry in its own value
+     */
+    private long storeKey(K key, int length) {
+        long keyAddr = keyMemory != null ? keyMemory.alloc(length) : allocator.alloc(length);
+        if (keyAddr < 0) {
+            throw new OutOfOffheapMemoryException("Cannot allocate " + length + " bytes for key");
+        }
+        serializer.serialize(key, allocator.getStoreContext(keyAddr));
+        return keyAddr;
+    }
+
+    /**
+     * Allocation of memory of new keys
+     */
+    interface KeyMemory {
+        /**
+         * @param size
+         * @return address of value in allocator of index or -1
+         */
+        long alloc(int size);
+    }
+
+    private static final class Scratch {
+        final WeakReference<Thread> owner;
+        // Native region, 0 when not allocated
+        long addr = 0;
+        int capacity;
+        int length;
+
+        Scratch(Thread owner) {
+            this.owner = new WeakReference<>(owner);
+        }
+
+        void free() {
+            if (addr != 0) {
+                unsafe.freeMemory(addr);
+                addr = 0;
+            }
+        }
+    }
+
+    private static final class Segment extends ReentrantLock {
+        private final Allocator allocator;
+        private final EpochReclaimer reclaimer;
+        // Written under lock, read by lookups. Capacity is also in header of table for them
+        private volatile long table;
+        private int capacity;
+        private int deleted = 0;
+        // Written under lock, read without lock by size
+        volatile int count = 0;
+        // Odd during a write
+        volatile long version = 0;
+
+        Segment(Allocator allocator, EpochReclaimer reclaimer) {
+            this.allocator = allocator;
+            this.reclaimer = reclaimer;
+            this.capacity = INITIAL_SEGMENT_CAPACITY;
+            this.table = newTable(capacity);
+        }
+
+        void beginWrite() {
+            lock();
+            version++;
+        }
+
+        void endWrite() {
+            version++;
+            unlock();
+        }
+
+        /**
+         * Find without lock while a writer can modify table. Result is garbage if a write ran during the call,
+         * caller check version and retry
+         *
+         * @return native address of slot of key or -1
+         */
+        long findConcurrent(int hash, Scratch probe) {
+            long t = table;
+            if (t == 0) {
+                // Closed
+                return -1;
+            }
+            int mask = unsafe.getInt(t - HEADER_SIZE) - 1;
+            int index = hash & mask;
+            // Bounded, a table seen during a write can have no empty slot on the probe sequence
+            for (int i = 0; i <= mask; i++) {
+                long slot = t + (long) index * SLOT_SIZE;
+                long keyAddr = unsafe.getLongVolatile(null, slot);
+                if (keyAddr == EMPTY) {
+                    return -1;
+                }
+                // Key of slot is retired if removed meanwhile, still readable
+                if (keyAddr != DELETED
+                        && unsafe.getInt(slot + HASH_OFFSET) == hash
+                        && (unsafe.getInt(slot + LENGTH_OFFSET) & ~REFERENCED) == probe.length
+                        && allocator.dataEqualsRegion(keyAddr, probe.addr, probe.length)) {
+                    return slot;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * @return native address of slot of key or -1
+         */
+        long find(int hash, Scratch probe) {
+            int mask = capacity - 1;
+            int index = hash & mask;
+            while (true) {
+                long slot = table + (long) index * SLOT_SIZE;
+                long keyAddr = unsafe.getLong(slot);
+                if (keyAddr == EMPTY) {
+                    return -1;
+                }
+                if (keyAddr != DELETED
+                        && unsafe.getInt(slot + HASH_OFFSET) == hash
+                        && (unsafe.getInt(slot + LENGTH_OFFSET) & ~REFERENCED) == probe.length
+                        && allocator.dataEqualsRegion(keyAddr, probe.addr, probe.length)) {
+                    return slot;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        /**
+         * Add an entry of a key not in table. Under write lock
+         */
+        void insert(int hash, long keyAddr, int keyLength, long addr) {
+            if (count + deleted + 1 > capacity - (capacity >>> 2)) {
+                // Grow if half full, else only drop deleted slots
+                int newCapacity = count + 1 > capacity >>> 1 && capacity < MAX_SEGMENT_CAPACITY
+                        ? capacity << 1 : capacity;
+                rehash(newCapacity);
+            }
+            long slot = freeSlot(table, capacity, hash);
+            if (unsafe.getLong(slot) == DELETED) {
+                deleted--;
+            }
+            writeSlot(slot, keyAddr, addr, hash, keyLength | REFERENCED);
+            count++;
+        }
+
+        long remove(int hash, Scratch probe, long expected) {
+            beginWrite();
+            try {
+                long slot = find(hash, probe);
+                if (slot < 0) {
+                    return ABSENT;
+                }
+                long old = unsafe.getLong(slot + VALUE_OFFSET);
+                if (expected != ABSENT && old != expected) {
+                    return ABSENT;
+                }
+                removeSlot(slot);
+                return old;
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * Retire key of slot and mark it free. Under lock
+         */
+        void removeSlot(long slot) {
+            long keyAddr = unsafe.getLong(slot);
+            // A slot before an empty one end no probe sequence, it can be empty too
+            long next = table + (long) (((slot - table) / SLOT_SIZE + 1) & (capacity - 1)) * SLOT_SIZE;
+            if (unsafe.getLong(next) == EMPTY) {
+                unsafe.putLong(slot, EMPTY);
+            } else {
+                unsafe.putLong(slot, DELETED);
+                deleted++;
+            }
+            count--;
+            reclaimer.retire(keyAddr);
+        }
+
+        private void rehash(int newCapacity) {
+            long newTable = newTable(newCapacity);
+            for (int i = 0; i < capacity; i++) {
+                long slot = table + (long) i * SLOT_SIZE;
+                long keyAddr = unsafe.getLong(slot);
+                if (keyAddr >= 0) {
+                    int hash = unsafe.getInt(slot + HASH_OFFSET);
+                    writeSlot(freeSlot(newTable, newCapacity, hash), keyAddr, unsafe.getLong(slot + VALUE_OFFSET),
+                            hash, unsafe.getInt(slot + LENGTH_OFFSET));
+                }
+            }
+            long oldTable = table;
+            // Published filled
+            capacity = newCapacity;
+            table = newTable;
+            deleted = 0;
+            reclaimer.retireMemory(oldTable - HEADER_SIZE);
+        }
+
+        void free() {
+            if (table == 0) {
+                return;
+            }
+            for (int i = 0; i < capacity; i++) {
+                long keyAddr = unsafe.getLong(table + (long) i * SLOT_SIZE);
+                if (keyAddr >= 0) {
+                    allocator.free(keyAddr);
+                }
+            }
+            unsafe.freeMemory(table - HEADER_SIZE);
+            table = 0;
+            capacity = 0;
+            count = 0;
+            deleted = 0;
+        }
+    }
+
+    /**
+     * @return address of first slot of a new empty table, preceded by its capacity
+     */
+    private static long newTable(int capacity) {
+        long size = (long) capacity * SLOT_SIZE;
+        long table = unsafe.allocateMemory(HEADER_SIZE + size) + HEADER_SIZE;
+        unsafe.putInt(table - HEADER_SIZE, capacity);
+        unsafe.setMemory(table, size, (byte) 0xFF);
+        return table;
+    }
+
+    /**
+     * First empty or deleted slot of probe sequence of hash
+     */
+    private static long freeSlot(long table, int capacity, int hash) {
+        int mask = capacity - 1;
+        int index = hash & mask;
+        while (true) {
+            long slot = table + (long) index * SLOT_SIZE;
+            if (unsafe.getLong(slot) < 0) {
+                return slot;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private static void writeSlot(long slot, long keyAddr, long addr, int hash, int keyLength) {
+        unsafe.putLong(slot, keyAddr);
+        unsafe.putLong(slot + VALUE_OFFSET, addr);
+        unsafe.putInt(slot + HASH_OFFSET, hash);
+        unsafe.putInt(slot + LENGTH_OFFSET, keyLength);
+    }
+
+    /**
+     * Walk slots of each segment. Key is deserialized on heap under lock of segment
+     */
+    private final class SlotCursor implements Cursor<K> {
+        private int segmentIndex = 0;
+        private int slotIndex = 0;
+        private K key;
+        private long addr;
+
+        @Override
+        public boolean next() {
+            while (segmentIndex < segments.length) {
+                Segment s = segments[segmentIndex];
+                // Read only, version is not changed
+                s.lock();
+                try {
+                    while (slotIndex < s.capacity) {
+                        long slot = s.table + (long) slotIndex * SLOT_SIZE;
+                        slotIndex++;
+                        long keyAddr = unsafe.getLong(slot);
+                        if (keyAddr >= 0) {
+                            try {
+                                key = (K) serializer.deserialize(allocator.getLoadContext(keyAddr));
+                            } catch (CannotDeserializeException e) {
+                                LOGGER.error("Cannot deserialize key", e);
+                                continue;
+                            }
+                            addr = unsafe.getLong(slot + VALUE_OFFSET);
+                            return true;
+                        }
+                    }
+                } finally {
+                    s.unlock();
+                }
+                segmentIndex++;
+                slotIndex = 0;
+            }
+            key = null;
+            return false;
+        }
+
+        @Override
+        public K key() {
+            return key;
+        }
+
+        @Override
+        public long addr() {
+            return addr;
+        }
+    }
+}
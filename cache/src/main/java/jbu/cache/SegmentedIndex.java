@@ -0,0 +1,382 @@
+package jbu.cache;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Index of keys to addresses of values, split in segments.
+ * Reads take no lock: buckets are read with volatile semantic, entries are immutable except their address
+ * which is volatile. Writes lock only the segment of the key, so writers of different segments never wait.
+ * Addresses are stored as long, without boxing.
+ * A get set the access bit of entry, without lock: a lost update only give a value one less chance against
+ * eviction. The CLOCK hand walk buckets and clear this bit under segment lock.
+ */
+final class SegmentedIndex<K> implements KeyIndex<K> {
+
+    private static final int MAX_SEGMENTS = 1 << 16;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 30;
+
+    private final Segment<K>[] segments;
+    private final int segmentShift;
+    private final int segmentMask;
+
+    // CLOCK hand, guarded by clock
+    private final Object clock = new Object();
+    private int handSegment = 0;
+    private int handBucket = 0;
+    private volatile long clockScanned = 0;
+
+    /**
+     * Index with 4 segments by available processor
+     */
+    SegmentedIndex() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param concurrency number of writers expected at the same time, rounded to a power of two
+     */
+    SegmentedIndex(int concurrency) {
+        int nbSegments = 1;
+        while (nbSegments < concurrency && nbSegments < MAX_SEGMENTS) {
+            nbSegments <<= 1;
+        }
+        this.segments = new Segment[nbSegments];
+        for (int i = 0; i < nbSegments; i++) {
+            segments[i] = new Segment<>();
+        }
+        this.segmentMask = nbSegments - 1;
+        // Segment is chosen by high bits, bucket by low bits
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(nbSegments);
+    }
+
+    /**
+     * Spread hash code of key, same as {@code ConcurrentHashMap} of jdk 7
+     */
+    static int hash(Object key) {
+        int h = key.hashCode();
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        return h ^ (h >>> 16);
+    }
+
+    private Segment<K> segmentFor(int hash) {
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    @Override
+    public long get(K key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h, true);
+    }
+
+    @Override
+    public long peek(K key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h, false);
+    }
+
+    @Override
+    public long put(K key, long addr) {
+        int h = hash(key);
+        return segmentFor(h).put(key, h, addr);
+    }
+
+    @Override
+    public long remove(K key) {
+        int h = hash(key);
+        return segmentFor(h).remove(key, h, ABSENT);
+    }
+
+    @Override
+    public boolean remove(K key, long addr) {
+        int h = hash(key);
+        return segmentFor(h).remove(key, h, addr) != ABSENT;
+    }
+
+    @Override
+    public boolean replace(K key, long expected, long addr) {
+        int h = hash(key);
+        return segmentFor(h).replace(key, h, expected, addr);
+    }
+
+    @Override
+    public boolean removeAddr(int hash, long addr) {
+        return segmentFor(hash).removeAddr(hash, addr);
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (Segment<K> s : segments) {
+            size += s.count;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    int getNbSegments() {
+        return segments.length;
+    }
+
+    @Override
+    public Cursor<K> cursor() {
+        return new SegmentCursor<>(segments);
+    }
+
+    /**
+     * Hand visit buckets one by one. In a bucket, access bit of referenced entries is cleared and the first entry
+     * not referenced is removed. Hand stop after two full turns
+     */
+    @Override
+    public long evict() {
+        synchronized (clock) {
+            long budget = 0;
+            for (Segment<K> s : segments) {
+                budget += s.table.length() + s.count;
+            }
+            budget *= 2;
+            long scanned = 0;
+            try {
+                while (scanned < budget) {
+                    Segment<K> s = segments[handSegment];
+                    s.lock();
+                    try {
+                        AtomicReferenceArray<Entry<K>> tab = s.table;
+                        if (handBucket < tab.length()) {
+                            Entry<K> first = tab.get(handBucket);
+                            scanned++;
+                            for (Entry<K> e = first; e != null; e = e.next) {
+                                scanned++;
+                                if (e.referenced) {
+                                    e.referenced = false;
+                                } else {
+                                    // Hand stay on bucket, its other entries are looked by next eviction
+                                    s.unlink(tab, handBucket, first, e);
+                                    return e.addr;
+                                }
+                            }
+                        }
+                        if (++handBucket >= tab.length()) {
+                            handBucket = 0;
+                            handSegment = (handSegment + 1) & segmentMask;
+                        }
+                    } finally {
+                        s.unlock();
+                    }
+                }
+                return ABSENT;
+            } finally {
+                clockScanned += scanned;
+            }
+        }
+    }
+
+    @Override
+    public long getClockScanned() {
+        return clockScanned;
+    }
+
+    @Override
+    public void close() {
+        // Nothing off-heap
+    }
+
+    private static final class SegmentCursor<K> implements Cursor<K> {
+        private final Segment<K>[] segments;
+        private int segmentIndex = -1;
+        private AtomicReferenceArray<Entry<K>> table;
+        private int bucketIndex;
+        private Entry<K> entry;
+
+        private SegmentCursor(Segment<K>[] segments) {
+            this.segments = segments;
+        }
+
+        @Override
+        public boolean next() {
+            if (entry != null) {
+                entry = entry.next;
+            }
+            while (entry == null) {
+                if (table == null || ++bucketIndex >= table.length()) {
+                    if (++segmentIndex >= segments.length) {
+                        table = null;
+                        return false;
+                    }
+                    table = segments[segmentIndex].table;
+                    bucketIndex = 0;
+                }
+                entry = table.get(bucketIndex);
+            }
+            return true;
+        }
+
+        @Override
+        public K key() {
+            return entry.key;
+        }
+
+        @Override
+        public long addr() {
+            return entry.addr;
+        }
+    }
+
+    private static final class Entry<K> {
+        final K key;
+        final int hash;
+        volatile long addr;
+        // Access bit of CLOCK
+        boolean referenced;
+        final Entry<K> next;
+
+        Entry(K key, int hash, long addr, boolean referenced, Entry<K> next) {
+            this.key = key;
+            this.hash = hash;
+            this.addr = addr;
+            this.referenced = referenced;
+            this.next = next;
+        }
+    }
+
+    private static final class Segment<K> extends ReentrantLock {
+        // Replaced on resize. Written under lock
+        volatile AtomicReferenceArray<Entry<K>> table = new AtomicReferenceArray<>(INITIAL_SEGMENT_CAPACITY);
+        volatile int count = 0;
+
+        long get(Object key, int hash, boolean access) {
+            AtomicReferenceArray<Entry<K>> tab = table;
+            Entry<K> e = tab.get(hash & (tab.length() - 1));
+            while (e != null) {
+                if (e.hash == hash && key.equals(e.key)) {
+                    if (access && !e.referenced) {
+                        e.referenced = true;
+                    }
+                    return e.addr;
+                }
+                e = e.next;
+            }
+            return ABSENT;
+        }
+
+        long put(K key, int hash, long addr) {
+            lock();
+            try {
+                AtomicReferenceArray<Entry<K>> tab = table;
+                int index = hash & (tab.length() - 1);
+                Entry<K> first = tab.get(index);
+                for (Entry<K> e = first; e != null; e = e.next) {
+                    if (e.hash == hash && key.equals(e.key)) {
+                        long old = e.addr;
+                        e.addr = addr;
+                        return old;
+                    }
+                }
+                if (count + 1 > tab.length() - (tab.length() >>> 2) && tab.length() < MAX_SEGMENT_CAPACITY) {
+                    tab = resize(tab);
+                    index = hash & (tab.length() - 1);
+                    first = tab.get(index);
+                }
+                tab.set(index, new Entry<>(key, hash, addr, true, first));
+                count++;
+                return ABSENT;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Remove entry of key if its address is {@code expected}, or whatever its address if expected is absent
+         */
+        long remove(Object key, int hash, long expected) {
+            lock();
+            try {
+                AtomicReferenceArray<Entry<K>> tab = table;
+                int index = hash & (tab.length() - 1);
+                Entry<K> first = tab.get(index);
+                Entry<K> e = first;
+                while (e != null && (e.hash != hash || !key.equals(e.key))) {
+                    e = e.next;
+                }
+                if (e == null || (expected != ABSENT && e.addr != expected)) {
+                    return ABSENT;
+                }
+                long old = e.addr;
+                unlink(tab, index, first, e);
+                return old;
+            } finally {
+                unlock();
+            }
+        }
+
+        boolean removeAddr(int hash, long addr) {
+            lock();
+            try {
+                AtomicReferenceArray<Entry<K>> tab = table;
+                int index = hash & (tab.length() - 1);
+                Entry<K> first = tab.get(index);
+                for (Entry<K> e = first; e != null; e = e.next) {
+                    if (e.hash == hash && e.addr == addr) {
+                        unlink(tab, index, first, e);
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                unlock();
+            }
+        }
+
+        boolean replace(Object key, int hash, long expected, long addr) {
+            lock();
+            try {
+                AtomicReferenceArray<Entry<K>> tab = table;
+                for (Entry<K> e = tab.get(hash & (tab.length() - 1)); e != null; e = e.next) {
+                    if (e.hash == hash && key.equals(e.key)) {
+                        if (e.addr != expected) {
+                            return false;
+                        }
+                        e.addr = addr;
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Remove {@code e} from bucket {@code index}. Under lock
+         */
+        void unlink(AtomicReferenceArray<Entry<K>> tab, int index, Entry<K> first, Entry<K> e) {
+            // Links are final, entries before removed one are copied
+            Entry<K> newFirst = e.next;
+            for (Entry<K> p = first; p != e; p = p.next) {
+                newFirst = new Entry<>(p.key, p.hash, p.addr, p.referenced, newFirst);
+            }
+            tab.set(index, newFirst);
+            count--;
+        }
+
+        /**
+         * Copy entries in a table twice bigger. Readers of old table still see all its entries
+         */
+        private AtomicReferenceArray<Entry<K>> resize(AtomicReferenceArray<Entry<K>> oldTab) {
+            AtomicReferenceArray<Entry<K>> newTab = new AtomicReferenceArray<>(oldTab.length() << 1);
+            int mask = newTab.length() - 1;
+            for (int i = 0; i < oldTab.length(); i++) {
+                for (Entry<K> e = oldTab.get(i); e != null; e = e.next) {
+                    int index = e.hash & mask;
+                    newTab.set(index, new Entry<>(e.key, e.hash, e.addr, e.referenced, newTab.get(index)));
+                }
+            }
+            table = newTab;
+            return newTab;
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package jbu.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * W-TinyLFU eviction policy of a {@link Cache}.
+ * A new entry go in a small LRU admission window (1% of entries). Main space is a segmented LRU: probation, and
+ * protected (80% of main) where a probation entry is promoted on its next access. Oldest entry of a full window
+ * go to head of probation and is the candidate. When room is needed, candidate replace the victim (oldest entry of
+ * probation) only if its frequency estimated by {@link FrequencySketch} is higher, else it is evicted itself.
+ * Candidate is tracked by its node, an entry demoted from protected to probation is never a candidate. A candidate
+ * not yet dueled when next entry leave window is kept in probation like an admitted one.
+ * So a scan of keys read once never push out frequently read entries.
+ * Entries are nodes numbered in primitive arrays (address of value, hash of key, links, region), found by address
+ * in an off-heap {@link LongLongMap}: policy make no object by entry.
+ * Writes wait for policy lock. Reads never take it: an access is added to a ring buffer of a stripe chosen by
+ * thread, buffers are drained under lock by the next write or by the read which half fill a buffer (if lock is
+ * free). An access is dropped when its buffer is full, reads never block.
+ */
+final class WTinyLfuPolicy {
+
+    static final byte WINDOW = 0;
+    static final byte PROBATION = 1;
+    static final byte PROTECTED = 2;
+
+    private static final int NIL = -1;
+    private static final int INITIAL_NODES = 64;
+    // Accesses by buffer, power of 2
+    private static final int BUFFER_SIZE = 32;
+    private static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AccessBuffer[] buffers;
+    private final FrequencySketch sketch = new FrequencySketch();
+    // Address of value to node, guarded by lock
+    private final LongLongMap nodes = new LongLongMap(0, NIL);
+
+    // Nodes, guarded by lock. Free nodes are linked by next
+    private long[] addrs = new long[INITIAL_NODES];
+    private int[] hashes = new int[INITIAL_NODES];
+    private int[] prevs = new int[INITIAL_NODES];
+    private int[] nexts = new int[INITIAL_NODES];
+    private byte[] regions = new byte[INITIAL_NODES];
+    private int usedNodes = 0;
+    private int freeNode = NIL;
+
+    // LRU list of each region, head is most recent
+    private final int[] heads = {NIL, NIL, NIL};
+    private final int[] tails = {NIL, NIL, NIL};
+    private final int[] sizes = new int[3];
+    // Last entry gone from window to probation, not yet dueled, accessed or removed
+    private int candidate = NIL;
+
+    private volatile long admitted = 0;
+    private volatile long rejected = 0;
+
+    WTinyLfuPolicy() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors()) {
+            stripes <<= 1;
+        }
+        buffers = new AccessBuffer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            buffers[i] = new AccessBuffer();
+        }
+    }
+
+    /**
+     * New entry in window
+     *
+     * @param hash {@link SegmentedIndex#hash(Object)} of key
+     * @param addr address of value
+     */
+    void onInsert(int hash, long addr) {
+        lock.lock();
+        try {
+            drainBuffers();
+            sketch.increment(hash);
+            addNode(hash, addr);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Value of an entry replaced by a put, counted as an access
+     */
+    void onReplace(int hash, long oldAddr, long addr) {
+        lock.lock();
+        try {
+            drainBuffers();
+            sketch.increment(hash);
+            int node = (int) nodes.remove(oldAddr);
+            if (node == NIL) {
+                // Entry evicted meanwhile
+                addNode(hash, addr);
+            } else {
+                addrs[node] = addr;
+                nodes.put(addr, node);
+                onAccess(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Value of an entry moved by compaction, not an access
+     */
+    void onRelocate(int hash, long oldAddr, long addr) {
+        lock.lock();
+        try {
+            drainBuffers();
+            int node = (int) nodes.remove(oldAddr);
+            if (node == NIL) {
+                // Entry evicted meanwhile
+                addNode(hash, addr);
+            } else {
+                addrs[node] = addr;
+                nodes.put(addr, node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void onRemove(long addr) {
+        lock.lock();
+        try {
+            drainBuffers();
+            int node = (int) nodes.remove(addr);
+            if (node != NIL) {
+                unlink(node);
+                freeNode(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get of a key, {@code addr} is {@link KeyIndex#ABSENT} for a miss. Buffered, dropped if buffer is full
+     */
+    void recordAccess(int hash, long addr) {
+        AccessBuffer buffer = buffers[(int) Thread.currentThread().getId() & (buffers.length - 1)];
+        int pending = buffer.offer(hash, addr);
+        if (pending >= DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Apply buffered accesses, under lock.
+     * Address of an access can have been removed, even reused by another entry since: then access is lost or given
+     * to new entry, like a dropped access it only make policy a bit less accurate
+     */
+    private void drainBuffers() {
+        for (AccessBuffer buffer : buffers) {
+            buffer.drain(this);
+        }
+    }
+
+    private void applyAccess(int hash, long addr) {
+        sketch.increment(hash);
+        if (addr != KeyIndex.ABSENT) {
+            int node = (int) nodes.get(addr);
+            if (node != NIL) {
+                onAccess(node);
+            }
+        }
+    }
+
+    /**
+     * Choose a victim and remove it from {@code keys}
+     *
+     * @param keys index of cache
+     * @return address of value of evicted entry or {@link KeyIndex#ABSENT} if there is no entry
+     */
+    long evict(KeyIndex<?> keys) {
+        lock.lock();
+        try {
+            drainBuffers();
+            while (true) {
+                int victim = selectVictim();
+                if (victim == NIL) {
+                    return KeyIndex.ABSENT;
+                }
+                long addr = addrs[victim];
+                int hash = hashes[victim];
+                if (nodes.get(addr) == victim) {
+                    nodes.remove(addr);
+                }
+                unlink(victim);
+                freeNode(victim);
+                // Entry can have been removed or replaced since, then its node was stale
+                if (keys.removeAddr(hash, addr)) {
+                    return addr;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Under lock
+     */
+    private int selectVictim() {
+        if (candidate != NIL) {
+            int victim = tails[PROBATION] != candidate ? tails[PROBATION] : prevs[candidate];
+            int duelist = candidate;
+            candidate = NIL;
+            if (victim == NIL) {
+                // Alone in probation
+                return duelist;
+            }
+            if (sketch.frequency(hashes[duelist]) > sketch.frequency(hashes[victim])) {
+                admitted++;
+                return victim;
+            }
+            rejected++;
+            return duelist;
+        }
+        if (sizes[PROBATION] > 0) {
+            return tails[PROBATION];
+        }
+        return sizes[PROTECTED] > 0 ? tails[PROTECTED] : tails[WINDOW];
+    }
+
+    /**
+     * Move node to head of its LRU, a probation node is promoted
+     */
+    private void onAccess(int node) {
+        if (regions[node] == PROBATION) {
+            moveToHead(node, PROTECTED);
+            int protectedMax = (sizes[PROBATION] + sizes[PROTECTED]) * 4 / 5;
+            while (sizes[PROTECTED] > Math.max(1, protectedMax)) {
+                moveToHead(tails[PROTECTED], PROBATION);
+            }
+        } else {
+            moveToHead(node, regions[node]);
+        }
+    }
+
+    private void addNode(int hash, long addr) {
+        int stale = (int) nodes.get(addr);
+        if (stale != NIL) {
+            // Entry removed before its insert was recorded, address reused since
+            unlink(stale);
+            freeNode(stale);
+        }
+        int node = allocNode();
+        addrs[node] = addr;
+        hashes[node] = hash;
+        linkHead(node, WINDOW);
+        nodes.put(addr, node);
+        int entries = sizes[WINDOW] + sizes[PROBATION] + sizes[PROTECTED];
+        // Oldest entries of window become candidates of main space
+        int windowMax = Math.max(1, entries / 100);
+        while (sizes[WINDOW] > windowMax) {
+            int oldest = tails[WINDOW];
+            moveToHead(oldest, PROBATION);
+            candidate = oldest;
+        }
+        if (entries > sketch.capacity()) {
+            sketch.ensureCapacity(entries);
+        }
+    }
+
+    private void moveToHead(int node, byte region) {
+        unlink(node);
+        linkHead(node, region);
+    }
+
+    private void linkHead(int node, byte region) {
+        int head = heads[region];
+        regions[node] = region;
+        prevs[node] = NIL;
+        nexts[node] = head;
+        if (head == NIL) {
+            tails[region] = node;
+        } else {
+            prevs[head] = node;
+        }
+        heads[region] = node;
+        sizes[region]++;
+    }
+
+    private void unlink(int node) {
+        if (node == candidate) {
+            candidate = NIL;
+        }
+        byte region = regions[node];
+        int prev = prevs[node];
+        int next = nexts[node];
+        if (prev == NIL) {
+            heads[region] = next;
+        } else {
+            nexts[prev] = next;
+        }
+        if (next == NIL) {
+            tails[region] = prev;
+        } else {
+            prevs[next] = prev;
+        }
+        sizes[region]--;
+    }
+
+    private int allocNode() {
+        if (freeNode != NIL) {
+            int node = freeNode;
+            freeNode = nexts[node];
+            return node;
+        }
+        if (usedNodes == addrs.length) {
+            int length = addrs.length << 1;
+            addrs = Arrays.copyOf(addrs, length);
+            hashes = Arrays.copyOf(hashes, length);
+            prevs = Arrays.copyOf(prevs, length);
+            nexts = Arrays.copyOf(nexts, length);
+            regions = Arrays.copyOf(regions, length);
+        }
+        return usedNodes++;
+    }
+
+    private void freeNode(int node) {
+        nexts[node] = freeNode;
+        freeNode = node;
+    }
+
+    /**
+     * @return number of entries of region
+     */
+    int size(byte region) {
+        lock.lock();
+        try {
+            drainBuffers();
+            return sizes[region];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Region of entry of value {@code addr} or -1
+     */
+    int regionOf(long addr) {
+        lock.lock();
+        try {
+            drainBuffers();
+            int node = (int) nodes.get(addr);
+            return node == NIL ? -1 : regions[node];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int frequency(int hash) {
+        lock.lock();
+        try {
+            drainBuffers();
+            return sketch.frequency(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return candidates of window which replaced a victim of main space
+     */
+    long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * @return candidates of window evicted because not more frequent than victim
+     */
+    long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Lossy ring buffer of accesses, many writers and one reader holding policy lock.
+     * A writer reserve a slot by CAS on tail (dropped if it fail or buffer is full), write hash then address. Reader
+     * stop at first slot not yet written
+     */
+    private static final class AccessBuffer {
+        // Address of a slot not written
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        // Address and hash by slot
+        private final AtomicLongArray slots = new AtomicLongArray(2 * BUFFER_SIZE);
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head = 0;
+
+        AccessBuffer() {
+            for (int i = 0; i < BUFFER_SIZE; i++) {
+                slots.set(2 * i, EMPTY);
+            }
+        }
+
+        /**
+         * @return number of accesses in buffer, 0 if access is dropped
+         */
+        int offer(int hash, long addr) {
+            long t = tail.get();
+            long size = t - head;
+            if (size >= BUFFER_SIZE || !tail.compareAndSet(t, t + 1)) {
+                return 0;
+            }
+            int index = 2 * ((int) t & (BUFFER_SIZE - 1));
+            slots.lazySet(index + 1, hash);
+            // Publish hash with address
+            slots.set(index, addr);
+            return (int) size + 1;
+        }
+
+        void drain(WTinyLfuPolicy policy) {
+            long h = head;
+            long t = tail.get();
+            for (; h < t; h++) {
+                int index = 2 * ((int) h & (BUFFER_SIZE - 1));
+                long addr = slots.get(index);
+                if (addr == EMPTY) {
+                    // Writer between CAS and write
+                    break;
+                }
+                int hash = (int) slots.get(index + 1);
+                slots.lazySet(index, EMPTY);
+                policy.applyAccess(hash, addr);
+            }
+            head = h;
+        }
+    }
+
+    /**
+     * Give back native memory. Policy cannot be used after
+     */
+    void close() {
+        lock.lock();
+        try {
+            nodes.free();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
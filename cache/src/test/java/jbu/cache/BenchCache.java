@@ -2,6 +2,7 @@ package jbu.cache;
 
 import jbu.offheap.Allocator;
 import jbu.serializer.unsafe.UnsafePrimitiveBeanSerializer;
+import jbu.testobject.LotOfPrimitive;
 import jbu.testobject.LotOfPrimitiveAndArrayAndString;
 import jbu.testobject.LotOfString;
 import jbu.testobject.LotOfWrapper;
@@ -244,4 +245,44 @@ public class BenchCache {
 
     }
 
+    @Test
+    public void bench_concurrent_get() throws InterruptedException {
+        // Same cache read by 1, 2, 4... threads, gets/s should grow with threads
+        final int NB_OBJ = 100000;
+        final int NB_GET = 5000000;
+
+        Allocator allocator = new Allocator(1024l * 1024l * 1024l);
+        final Cache<Integer, LotOfPrimitive> cache = new Cache<Integer, LotOfPrimitive>("testCache", allocator, new UnsafePrimitiveBeanSerializer());
+        LotOfPrimitive cachedObject = new LotOfPrimitive();
+        for (int i = 0; i < NB_OBJ; i++) {
+            cache.put(i, cachedObject);
+        }
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int nbThreads = 1; nbThreads <= maxThreads; nbThreads *= 2) {
+            Thread[] readers = new Thread[nbThreads];
+            for (int t = 0; t < nbThreads; t++) {
+                final int seed = t;
+                readers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < NB_GET; i++) {
+                            cache.get((i * 31 + seed) % NB_OBJ);
+                        }
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            double timeSecond = (System.nanoTime() - start) / (double) (1000 * 1000 * 1000);
+            System.out.println("Threads : " + nbThreads);
+            System.out.println("Gets : " + (double) NB_GET * nbThreads / timeSecond + " object/s");
+            System.out.println("");
+        }
+        cache.clean();
+    }
 }
@@ -1,10 +1,23 @@
 package jbu.cache;
 
+import jbu.exception.OutOfOffheapMemoryException;
+import jbu.offheap.Allocator;
+import jbu.offheap.LoadContext;
+import jbu.offheap.OffheapView;
+import jbu.offheap.StoreContext;
+import jbu.serializer.Serializer;
 import jbu.testobject.LotOfPrimitiveAndArrayAndString;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestCache {
 
@@ -17,5 +30,359 @@ public class TestCache {
         Assert.assertEquals(res, cachedObject);
     }
 
+    @Test
+    public void compactor_should_move_chained_values_and_keep_them_readable() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 10 * 1024 * 1024)
+                .build();
+        Cache<Long, long[]> cache = new Cache<>("testCache", allocator, new LongArraySerializer());
+        for (long i = 0; i < 100; i++) {
+            cache.put(i, values(i));
+        }
+        CacheCompactor compactor = new CacheCompactor(cache, 2, 0);
+        assertEquals(100, compactor.compactOnce());
+        assertEquals(100, compactor.getValuesMoved());
+        assertTrue(compactor.getBytesMoved() > 0);
+        assertTrue(compactor.getChainLengthReduction() >= 100);
+        assertEquals(0, compactor.getPendingFrees());
+        // Already compacted
+        assertEquals(0, compactor.compactOnce());
+        for (long i = 0; i < 100; i++) {
+            assertArrayEquals(values(i), cache.get(i));
+        }
+    }
+
+    @Test
+    public void compaction_should_not_mark_entries_as_read() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 10 * 1024 * 1024)
+                .build();
+        Cache<Long, long[]> cache = new Cache<>("testCache", allocator, new LongArraySerializer());
+        KeyIndex<Long> keys = cache.getKeys();
+        for (long i = 0; i < 100; i++) {
+            cache.put(i, values(i));
+        }
+        // Clear access bits of all entries (first turn of hand), second turn remove one entry
+        cache.getReclaimer().retire(keys.evict());
+        for (long i = 0; i < 50; i++) {
+            cache.get(i);
+        }
+        assertTrue(new CacheCompactor(cache, 2, 0).compactOnce() > 0);
+        // Only cold entries are evicted
+        for (int i = 0; i < 20; i++) {
+            cache.getReclaimer().retire(keys.evict());
+        }
+        int hot = 0;
+        for (long i = 0; i < 50; i++) {
+            if (keys.peek(i) != KeyIndex.ABSENT) {
+                hot++;
+                assertArrayEquals(values(i), cache.get(i));
+            }
+        }
+        assertTrue(hot >= 49);
+        assertEquals(100 - 21, cache.getSize());
+    }
+
+    @Test
+    public void put_should_allocate_whole_value_before_writing() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 1024)
+                .contiguous(true)
+                .build();
+        Cache<Long, long[]> cache = new Cache<>("testCache", allocator, new LongArraySerializer());
+        long addr = cache.put(1L, values(1));
+        // 404 bytes in one run of 64 bytes chunks, not a chain
+        assertEquals(1, allocator.chainLength(addr));
+        assertArrayEquals(values(1), cache.get(1L));
+        long used = allocator.getUsedMemory();
+        try {
+            cache.put(2L, new long[64 * 1024]);
+            fail();
+        } catch (OutOfOffheapMemoryException e) {
+            // Nothing allocated
+        }
+        assertEquals(used, allocator.getUsedMemory());
+        assertNull(cache.get(2L));
+    }
+
+    @Test
+    public void put_should_free_replaced_value() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 1024)
+                .build();
+        Cache<Long, long[]> cache = new Cache<>("testCache", allocator, new LongArraySerializer());
+        cache.put(1L, values(1));
+        long used = allocator.getUsedMemory();
+        for (int i = 0; i < 100; i++) {
+            cache.put(1L, values(i));
+        }
+        // Replaced values are freed by batch
+        cache.getReclaimer().reclaim();
+        assertEquals(0, cache.getReclaimer().getPendingCount());
+        assertEquals(used, allocator.getUsedMemory());
+        assertArrayEquals(values(99), cache.get(1L));
+    }
 
+    @Test
+    public void cache_with_offheap_keys() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 1024 * 1024)
+                .build();
+        Cache<Long, long[]> cache = new Cache<>("testCache", allocator, new LongArraySerializer(), new LongSerializer());
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, values(i));
+        }
+        cache.put(1L, values(2));
+        assertArrayEquals(values(2), cache.get(1L));
+        assertArrayEquals(values(999), cache.get(999L));
+        assertNull(cache.get(1000L));
+        assertTrue(cache.remove(0L));
+        assertNull(cache.get(0L));
+        cache.close();
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void long_key_cache_put_get_remove() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 1024 * 1024)
+                .build();
+        LongKeyCache<long[]> cache = new LongKeyCache<>("testCache", allocator, new LongArraySerializer(), 4);
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, values(i));
+        }
+        long used = allocator.getUsedMemory();
+        cache.put(1L, values(2));
+        cache.getReclaimer().reclaim();
+        assertEquals(used, allocator.getUsedMemory());
+        assertEquals(1000, cache.getSize());
+        assertArrayEquals(values(2), cache.get(1L));
+        assertArrayEquals(values(999), cache.get(999L));
+        assertNull(cache.get(1000L));
+        assertTrue(cache.remove(0L));
+        assertFalse(cache.remove(0L));
+        assertNull(cache.get(0L));
+        cache.close();
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void long_key_cache_should_be_read_while_segments_grow() throws InterruptedException {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 16 * 1024 * 1024)
+                .build();
+        final LongKeyCache<long[]> cache = new LongKeyCache<>("testCache", allocator, new LongArraySerializer(), 2);
+        for (long i = 0; i < 100; i++) {
+            cache.put(i, values(i));
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final int[] errors = new int[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    for (long i = 0; i < 100; i++) {
+                        long[] v = cache.get(i);
+                        if (v == null || v[1] != i) {
+                            errors[0]++;
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        // Lot of resizes of segments while reader run
+        for (long i = 100; i < 20000; i++) {
+            cache.put(i, values(i));
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, errors[0]);
+        assertEquals(20000, cache.getSize());
+        assertArrayEquals(values(19999), cache.get(19999L));
+        cache.close();
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void full_cache_should_evict_cold_entries() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 1024)
+                .build();
+        Cache<Long, long[]> cache = new Cache<>("testCache", allocator, new LongArraySerializer());
+        cache.setEvictionEnabled(true);
+        // 404 bytes by value, about 150 fit
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, values(i));
+            // Key 0 is hot
+            assertArrayEquals(values(0), cache.get(0L));
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(1000, cache.getSize() + cache.getEvictions());
+        assertTrue(cache.getEvictionSweeps() > 0);
+        assertTrue(cache.getEvictionScannedEntries() >= cache.getEvictions());
+        assertArrayEquals(values(999), cache.get(999L));
+        assertArrayEquals(values(0), cache.get(0L));
+        assertEquals(0, cache.getReclaimer().getPendingCount());
+    }
+
+    @Test
+    public void pinned_view_should_not_let_a_put_flush_cache() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 1024)
+                .build();
+        Cache<Long, long[]> cache = new Cache<>("testCache", allocator, new LongArraySerializer());
+        cache.setEvictionEnabled(true);
+        long i = 0;
+        while (cache.getEvictions() == 0) {
+            cache.put(i, values(i));
+            i++;
+        }
+        int size = cache.getSize();
+        // View keep its thread in epoch, no evicted value can be freed
+        OffheapView view = cache.getView(i - 1);
+        try {
+            cache.put(i, values(i));
+            fail("Put should fail while evicted values are pinned");
+        } catch (OutOfOffheapMemoryException e) {
+            // Expected
+        }
+        assertEquals(1, cache.getFailedEvictionSweeps());
+        assertTrue(cache.getSize() >= size - 20);
+        view.release();
+        cache.put(i, values(i));
+        assertArrayEquals(values(i), cache.get(i));
+        assertEquals(0, cache.getReclaimer().getPendingCount());
+    }
+
+    @Test
+    public void offheap_keys_cache_should_evict_cold_entries() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 1024)
+                .build();
+        Cache<Long, long[]> cache = new Cache<>("testCache", allocator, new LongArraySerializer(), new LongSerializer());
+        cache.setEvictionEnabled(true);
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, values(i));
+            assertArrayEquals(values(0), cache.get(0L));
+        }
+        assertEquals(1000, cache.getSize() + cache.getEvictions());
+        assertArrayEquals(values(0), cache.get(0L));
+        cache.close();
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void tiny_lfu_cache_should_keep_hot_entries_during_scan() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 1024)
+                .build();
+        Cache<Long, long[]> cache = new Cache.Builder<Long, long[]>("testCache", allocator)
+                .serializer(new LongArraySerializer())
+                .tinyLfu(true)
+                .build();
+        assertTrue(cache.isEvictionEnabled());
+        assertEquals("W-TinyLFU", cache.getEvictionPolicy());
+        // About 110 values fit, 50 hot ones read often
+        for (long i = 0; i < 50; i++) {
+            cache.put(i, values(i));
+            for (int j = 0; j < 5; j++) {
+                cache.get(i);
+            }
+        }
+        // Scan of keys read once, while hot ones are still read
+        for (long i = 1000; i < 3000; i++) {
+            cache.put(i, values(i));
+            cache.get(i);
+            if (i % 2 == 0) {
+                cache.get(i / 2 % 50);
+            }
+        }
+        assertEquals(2050, cache.getSize() + cache.getEvictions());
+        assertTrue(cache.getAdmissionRejections() > 0);
+        for (long i = 0; i < 50; i++) {
+            assertArrayEquals(values(i), cache.get(i));
+        }
+        assertArrayEquals(values(2999), cache.get(2999L));
+        assertTrue(cache.getPolicy().size(WTinyLfuPolicy.PROTECTED) > 0);
+        cache.close();
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void tiny_lfu_cache_with_offheap_keys_should_track_removes_and_replaces() {
+        Allocator allocator = new Allocator.Builder()
+                .sizeClass(64, 64 * 1024)
+                .build();
+        Cache<Long, long[]> cache = new Cache.Builder<Long, long[]>("testCache", allocator)
+                .serializer(new LongArraySerializer())
+                .offheapKeys(new LongSerializer())
+                .tinyLfu(true)
+                .build();
+        long addr = cache.put(1L, values(1));
+        assertEquals(WTinyLfuPolicy.WINDOW, cache.getPolicy().regionOf(addr));
+        long newAddr = cache.put(1L, values(2));
+        assertEquals(-1, cache.getPolicy().regionOf(addr));
+        assertEquals(WTinyLfuPolicy.WINDOW, cache.getPolicy().regionOf(newAddr));
+        assertTrue(cache.remove(1L));
+        assertEquals(-1, cache.getPolicy().regionOf(newAddr));
+        for (long i = 0; i < 1000; i++) {
+            cache.put(i, values(i));
+            assertArrayEquals(values(0), cache.get(0L));
+        }
+        assertEquals(1000, cache.getSize() + cache.getEvictions());
+        assertArrayEquals(values(0), cache.get(0L));
+        cache.close();
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    private static long[] values(long seed) {
+        long[] res = new long[50];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = seed * i;
+        }
+        return res;
+    }
+
+    private static class LongArraySerializer implements Serializer {
+        @Override
+        public void serialize(Object obj, StoreContext sc) {
+            long[] values = (long[]) obj;
+            sc.storeInt(values.length);
+            for (long v : values) {
+                sc.storeLong(v);
+            }
+        }
+
+        @Override
+        public Object deserialize(LoadContext lc) {
+            long[] values = new long[lc.loadInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = lc.loadLong();
+            }
+            return values;
+        }
+
+        @Override
+        public int calculateSerializedSize(Object obj) {
+            return 4 + 8 * ((long[]) obj).length;
+        }
+    }
+
+    private static class LongSerializer implements Serializer {
+        @Override
+        public void serialize(Object obj, StoreContext sc) {
+            sc.storeLong((Long) obj);
+        }
+
+        @Override
+        public Object deserialize(LoadContext lc) {
+            return lc.loadLong();
+        }
+
+        @Override
+        public int calculateSerializedSize(Object obj) {
+            return 8;
+        }
+    }
 }
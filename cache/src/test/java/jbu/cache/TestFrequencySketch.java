@@ -0,0 +1,47 @@
+package jbu.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestFrequencySketch {
+
+    @Test
+    public void frequency_should_count_increments_up_to_15() {
+        FrequencySketch sketch = new FrequencySketch();
+        sketch.ensureCapacity(512);
+        int hot = SegmentedIndex.hash("hot");
+        assertEquals(0, sketch.frequency(hot));
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(hot);
+        }
+        assertEquals(10, sketch.frequency(hot));
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(hot);
+        }
+        assertEquals(15, sketch.frequency(hot));
+        // Count-min never under estimate, other keys are seldom over estimated
+        int overEstimated = 0;
+        for (int i = 0; i < 100; i++) {
+            if (sketch.frequency(SegmentedIndex.hash(i)) > 0) {
+                overEstimated++;
+            }
+        }
+        assertTrue(overEstimated < 10);
+    }
+
+    @Test
+    public void counters_should_be_halved_after_sample_size() {
+        FrequencySketch sketch = new FrequencySketch();
+        int hot = SegmentedIndex.hash("hot");
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(hot);
+        }
+        // 16 longs of table, reset after 160 additions
+        for (int i = 0; sketch.getResets() == 0; i++) {
+            sketch.increment(SegmentedIndex.hash(i));
+        }
+        assertTrue(sketch.frequency(hot) <= 4);
+    }
+}
@@ -0,0 +1,75 @@
+package jbu.cache;
+
+import jbu.exception.InvalidParameterException;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestLongLongMap {
+
+    @Test
+    public void put_get_remove_replace() {
+        LongLongMap map = new LongLongMap(0, -1);
+        assertEquals(-1, map.get(0));
+        assertEquals(-1, map.put(0, 10));
+        assertEquals(-1, map.put(Long.MIN_VALUE, 20));
+        assertEquals(10, map.put(0, 11));
+        assertEquals(11, map.get(0));
+        assertEquals(20, map.get(Long.MIN_VALUE));
+        assertFalse(map.replace(0, 10, 12));
+        assertTrue(map.replace(0, 11, 12));
+        assertFalse(map.replace(1, -1, 12));
+        assertEquals(12, map.remove(0));
+        assertEquals(-1, map.remove(0));
+        assertEquals(1, map.size());
+        map.free();
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void no_value_cannot_be_stored() {
+        LongLongMap map = new LongLongMap(0, -1);
+        try {
+            map.put(1, -1);
+        } finally {
+            map.free();
+        }
+    }
+
+    @Test
+    public void map_should_match_hashmap_after_random_operations() {
+        LongLongMap map = new LongLongMap(16, -1);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            // Few keys, lot of collisions and removes
+            long key = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                Long old = expected.remove(key);
+                assertEquals(old == null ? -1 : old, map.remove(key));
+            } else {
+                long value = random.nextInt(Integer.MAX_VALUE);
+                Long old = expected.put(key, value);
+                assertEquals(old == null ? -1 : old, map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 5000; key++) {
+            Long value = expected.get(key);
+            assertEquals(value == null ? -1 : value, map.get(key));
+        }
+        int walked = 0;
+        for (int slot = map.nextSlot(-1); slot >= 0; slot = map.nextSlot(slot)) {
+            assertEquals(expected.get(map.keyAt(slot)).longValue(), map.valueAt(slot));
+            walked++;
+        }
+        assertEquals(expected.size(), walked);
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.nextSlot(-1));
+        map.free();
+    }
+}
@@ -0,0 +1,171 @@
+package jbu.cache;
+
+import jbu.offheap.Allocator;
+import jbu.offheap.LoadContext;
+import jbu.offheap.StoreContext;
+import jbu.serializer.Serializer;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class TestOffheapIndex {
+
+    @Test
+    public void put_get_remove_replace() {
+        Allocator allocator = new Allocator(1024 * 1024);
+        OffheapIndex<String> index = new OffheapIndex<>(allocator, new StringSerializer(), 4);
+        assertEquals(4, index.getNbSegments());
+        assertEquals(KeyIndex.ABSENT, index.get("a"));
+        assertEquals(KeyIndex.ABSENT, index.put("a", 1));
+        assertEquals(1, index.put("a", 2));
+        // Long key chained in allocator
+        String longKey = new String(new char[500]).replace('\0', 'k');
+        assertEquals(KeyIndex.ABSENT, index.put(longKey, 10));
+        assertEquals(10, index.get(longKey));
+        assertEquals(KeyIndex.ABSENT, index.get(longKey + "k"));
+        assertEquals(2, index.get("a"));
+        assertFalse(index.replace("a", 1, 3));
+        assertTrue(index.replace("a", 2, 3));
+        assertFalse(index.replace("b", KeyIndex.ABSENT, 3));
+        assertFalse(index.remove("a", 2));
+        assertTrue(index.remove("a", 3));
+        assertEquals(KeyIndex.ABSENT, index.remove("a"));
+        assertEquals(10, index.remove(longKey));
+        assertEquals(0, index.size());
+        index.close();
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void index_should_grow_and_walk_all_entries() {
+        Allocator allocator = new Allocator(16 * 1024 * 1024);
+        OffheapIndex<String> index = new OffheapIndex<>(allocator, new StringSerializer(), 2);
+        for (int i = 0; i < 10000; i++) {
+            index.put("key" + i, i * 10L);
+        }
+        for (int i = 0; i < 10000; i += 3) {
+            assertEquals(i * 10L, index.remove("key" + i));
+        }
+        // Reuse deleted slots
+        for (int i = 0; i < 10000; i += 6) {
+            index.put("key" + i, i * 10L);
+        }
+        assertEquals(10000 - 3334 + 1667, index.size());
+        Set<String> seen = new HashSet<>();
+        KeyIndex.Cursor<String> cursor = index.cursor();
+        while (cursor.next()) {
+            assertEquals(Long.parseLong(cursor.key().substring(3)) * 10L, cursor.addr());
+            assertTrue(seen.add(cursor.key()));
+        }
+        assertEquals(index.size(), seen.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 3 == 0 && i % 6 != 0 ? KeyIndex.ABSENT : i * 10L, index.get("key" + i));
+        }
+        index.close();
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    @Test
+    public void lookups_should_work_when_allocator_is_full() throws InterruptedException {
+        final Allocator allocator = new Allocator(64 * 1024);
+        final int[] keyAllocs = new int[1];
+        final OffheapIndex<String> index = new OffheapIndex<>(allocator, new StringSerializer(), 2,
+                new OffheapIndex.KeyMemory() {
+                    @Override
+                    public long alloc(int size) {
+                        keyAllocs[0]++;
+                        return allocator.alloc(size);
+                    }
+                });
+        final String longKey = new String(new char[500]).replace('\0', 'k');
+        index.put("a", 1);
+        index.put(longKey, 2);
+        assertEquals(2, keyAllocs[0]);
+        while (allocator.alloc(64) >= 0) {
+            // Fill allocator
+        }
+        final long[] res = new long[3];
+        // New thread has no scratch yet
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                res[0] = index.get(longKey);
+                res[1] = index.get(longKey + "k");
+                res[2] = index.remove("a");
+            }
+        });
+        reader.start();
+        reader.join();
+        assertArrayEquals(new long[]{2, KeyIndex.ABSENT, 1}, res);
+        index.close();
+    }
+
+    @Test
+    public void lookups_should_not_lock_and_see_stable_keys_during_writes() throws InterruptedException {
+        Allocator allocator = new Allocator(64 * 1024 * 1024);
+        final OffheapIndex<String> index = new OffheapIndex<>(allocator, new StringSerializer(), 2);
+        for (int i = 0; i < 100; i++) {
+            index.put("stable" + i, i);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final int[] errors = new int[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    for (int i = 0; i < 100; i++) {
+                        if (index.get("stable" + i) != i) {
+                            errors[0]++;
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        // Rehashes, removed keys and reused slots while reader run
+        for (int i = 0; i < 20000; i++) {
+            index.put("key" + i, i);
+            if (i % 2 == 0) {
+                index.remove("key" + (i / 2));
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, errors[0]);
+        assertEquals(100 + 10000, index.size());
+        index.close();
+        assertEquals(0, allocator.getUsedMemory());
+    }
+
+    /**
+     * Chars of string without class reference
+     */
+    private static class StringSerializer implements Serializer {
+        @Override
+        public void serialize(Object obj, StoreContext sc) {
+            String s = (String) obj;
+            sc.storeInt(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                sc.storeChar(s.charAt(i));
+            }
+        }
+
+        @Override
+        public Object deserialize(LoadContext lc) {
+            char[] chars = new char[lc.loadInt()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = lc.loadChar();
+            }
+            return new String(chars);
+        }
+
+        @Override
+        public int calculateSerializedSize(Object obj) {
+            return 4 + 2 * ((String) obj).length();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package jbu.cache;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TestSegmentedIndex {
+
+    @Test
+    public void put_get_remove_replace() {
+        SegmentedIndex<String> index = new SegmentedIndex<>(4);
+        assertEquals(4, index.getNbSegments());
+        assertEquals(KeyIndex.ABSENT, index.get("a"));
+        assertEquals(KeyIndex.ABSENT, index.put("a", 1));
+        assertEquals(1, index.put("a", 2));
+        assertEquals(2, index.get("a"));
+        assertFalse(index.replace("a", 1, 3));
+        assertTrue(index.replace("a", 2, 3));
+        assertFalse(index.replace("b", KeyIndex.ABSENT, 3));
+        assertFalse(index.remove("a", 2));
+        assertTrue(index.remove("a", 3));
+        assertEquals(KeyIndex.ABSENT, index.remove("a"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void index_should_grow_and_walk_all_entries() {
+        SegmentedIndex<Integer> index = new SegmentedIndex<>(2);
+        for (int i = 0; i < 10000; i++) {
+            index.put(i, i * 10L);
+        }
+        // Remove in middle of buckets
+        for (int i = 0; i < 10000; i += 3) {
+            assertEquals(i * 10L, index.remove(i));
+        }
+        assertEquals(10000 - 3334, index.size());
+        Set<Integer> seen = new HashSet<>();
+        KeyIndex.Cursor<Integer> cursor = index.cursor();
+        while (cursor.next()) {
+            assertEquals(cursor.key() * 10L, cursor.addr());
+            assertTrue(seen.add(cursor.key()));
+        }
+        assertEquals(index.size(), seen.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 3 == 0 ? KeyIndex.ABSENT : i * 10L, index.get(i));
+        }
+    }
+
+    @Test
+    public void concurrent_writers_should_not_lose_entries() throws InterruptedException {
+        final SegmentedIndex<Integer> index = new SegmentedIndex<>();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int first = t * 20000;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = first; i < first + 20000; i++) {
+                        index.put(i, i);
+                        // Readers of same segments while it grows
+                        assertEquals(i, index.get(i));
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(80000, index.size());
+        for (int i = 0; i < 80000; i++) {
+            assertEquals(i, index.get(i));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package jbu.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestWTinyLfuPolicy {
+
+    @Test
+    public void buffered_accesses_should_be_applied_before_next_write() {
+        WTinyLfuPolicy policy = new WTinyLfuPolicy();
+        try {
+            policy.onInsert(1, 100);
+            policy.onInsert(2, 200);
+            policy.onInsert(3, 300);
+            // Window of 1 entry, 100 and 200 are in probation
+            assertEquals(WTinyLfuPolicy.PROBATION, policy.regionOf(100));
+            for (int i = 0; i < 5; i++) {
+                policy.recordAccess(1, 100);
+            }
+            policy.recordAccess(4, KeyIndex.ABSENT);
+            policy.onInsert(5, 500);
+            assertEquals(WTinyLfuPolicy.PROTECTED, policy.regionOf(100));
+            assertEquals(6, policy.frequency(1));
+            assertEquals(1, policy.frequency(4));
+        } finally {
+            policy.close();
+        }
+    }
+
+    @Test
+    public void window_candidate_should_duel_probation_victim_after_a_demotion() {
+        WTinyLfuPolicy policy = new WTinyLfuPolicy();
+        SegmentedIndex<Integer> keys = new SegmentedIndex<>(1);
+        try {
+            for (int k = 1; k <= 12; k++) {
+                keys.put(k, k * 100L);
+                policy.onInsert(SegmentedIndex.hash(k), k * 100L);
+            }
+            // Probation 11 (candidate) .. 1, promote 2 to 10: protected is full and 2 is demoted to probation head
+            for (int k = 2; k <= 10; k++) {
+                policy.recordAccess(SegmentedIndex.hash(k), k * 100L);
+            }
+            assertEquals(WTinyLfuPolicy.PROBATION, policy.regionOf(200));
+            assertEquals(3, policy.size(WTinyLfuPolicy.PROBATION));
+            // Demoted entry and victim are more frequent than candidate
+            for (int i = 0; i < 3; i++) {
+                policy.recordAccess(SegmentedIndex.hash(2), KeyIndex.ABSENT);
+            }
+            for (int i = 0; i < 2; i++) {
+                policy.recordAccess(SegmentedIndex.hash(1), KeyIndex.ABSENT);
+            }
+            assertEquals(1, policy.frequency(SegmentedIndex.hash(11)));
+            assertEquals(3, policy.frequency(SegmentedIndex.hash(1)));
+            assertEquals(5, policy.frequency(SegmentedIndex.hash(2)));
+            // Candidate lose against victim, demoted entry is not part of the duel
+            assertEquals(1100, policy.evict(keys));
+            assertEquals(1, policy.getRejected());
+            assertEquals(0, policy.getAdmitted());
+            assertEquals(KeyIndex.ABSENT, keys.get(11));
+            // No candidate anymore, oldest entry of probation is evicted
+            assertEquals(100, policy.evict(keys));
+            assertEquals(WTinyLfuPolicy.PROBATION, policy.regionOf(200));
+        } finally {
+            policy.close();
+        }
+    }
+
+    @Test
+    public void concurrent_reads_should_be_recorded() throws InterruptedException {
+        final WTinyLfuPolicy policy = new WTinyLfuPolicy();
+        try {
+            policy.onInsert(1, 100);
+            Thread[] readers = new Thread[4];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 10000; j++) {
+                            policy.recordAccess(1, 100);
+                        }
+                    }
+                });
+                readers[i].start();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            // Some accesses are dropped, not all
+            assertEquals(15, policy.frequency(1));
+            assertEquals(WTinyLfuPolicy.WINDOW, policy.regionOf(100));
+        } finally {
+            policy.close();
+        }
+    }
+}